@@ -0,0 +1,394 @@
+package org.webcat.diff;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.RandomAccess;
+
+//-------------------------------------------------------------------------
+/**
+ * A diff stored as runs over the two lists it compares, instead of as a
+ * linked list of {@link Diff} objects that each hold their own items.  Each
+ * run is an operation code, where it starts in both lists and how many
+ * items it covers, so a diff takes a few ints per run no matter how long
+ * the runs are.  {@link DiffPatcher} builds patches straight from these
+ * ranges, and {@link #toDiffList()} converts to the usual representation.
+ *
+ * @param <T> the type of object in the lists
+ *
+ * @author Last changed by $Author$
+ * @version $Revision$, $Date$
+ */
+public class CompactDiff<T>
+{
+    //~ Constructors ..........................................................
+
+    // ----------------------------------------------------------
+    /**
+     * Create an empty diff between two lists, to be filled with
+     * {@link #add(Diff.Operation, int)}.
+     *
+     * @param list1 The old list
+     * @param list2 The new list
+     */
+    CompactDiff(List<T> list1, List<T> list2)
+    {
+        this.list1 = randomAccess(list1);
+        this.list2 = randomAccess(list2);
+        operations = new byte[16];
+        starts1 = new int[16];
+        starts2 = new int[16];
+        lengths = new int[16];
+    }
+
+
+    //~ Public Methods ........................................................
+
+    // ----------------------------------------------------------
+    /**
+     * Convert a diff into runs over the lists it turns into each other.
+     *
+     * @param <T> the type of object in the lists
+     * @param diffs The diff to convert
+     * @return The compact diff.
+     */
+    public static <T> CompactDiff<T> fromDiffList(DiffList<T> diffs)
+    {
+        return fromDiffList(diffs.computeFirstList(), diffs);
+    }
+
+
+    // ----------------------------------------------------------
+    /**
+     * Convert a diff into runs over the given old list and the new list the
+     * diff turns it into.
+     *
+     * @param <T> the type of object in the lists
+     * @param list1 The old list, which must hold as many items as the
+     *            equalities and deletions of the diff
+     * @param diffs The diff to convert
+     * @return The compact diff.
+     */
+    public static <T> CompactDiff<T> fromDiffList(
+        List<T> list1, DiffList<T> diffs)
+    {
+        CompactDiff<T> result =
+            new CompactDiff<T>(list1, diffs.computeSecondList());
+        for (Diff<T> aDiff : diffs)
+        {
+            result.add(aDiff.operation, aDiff.list.size());
+        }
+        if (result.end1 != result.list1.size())
+        {
+            throw new IllegalArgumentException("Diff covers " + result.end1
+                + " items of a list of " + result.list1.size());
+        }
+        return result;
+    }
+
+
+    // ----------------------------------------------------------
+    /**
+     * Get the number of runs.
+     * @return The number of runs.
+     */
+    public int size()
+    {
+        return size;
+    }
+
+
+    // ----------------------------------------------------------
+    /**
+     * Get the operation of a run.
+     * @param run The run's index
+     * @return The operation.
+     */
+    public Diff.Operation getOperation(int run)
+    {
+        return OPERATIONS[operations[run]];
+    }
+
+
+    // ----------------------------------------------------------
+    /**
+     * Get where a run starts in the old list.  For an insertion this is
+     * where the new items go.
+     * @param run The run's index
+     * @return The start index in the old list.
+     */
+    public int getStart1(int run)
+    {
+        return starts1[run];
+    }
+
+
+    // ----------------------------------------------------------
+    /**
+     * Get where a run starts in the new list.  For a deletion this is where
+     * the removed items were.
+     * @param run The run's index
+     * @return The start index in the new list.
+     */
+    public int getStart2(int run)
+    {
+        return starts2[run];
+    }
+
+
+    // ----------------------------------------------------------
+    /**
+     * Get the number of items a run covers.
+     * @param run The run's index
+     * @return The length.
+     */
+    public int getLength(int run)
+    {
+        return lengths[run];
+    }
+
+
+    // ----------------------------------------------------------
+    /**
+     * Get the items of a run, as a view of the list they come from: the new
+     * list for insertions and the old list otherwise.
+     * @param run The run's index
+     * @return The items.
+     */
+    public List<T> getList(int run)
+    {
+        if (operations[run] == INSERT)
+        {
+            return list2.subList(starts2[run], starts2[run] + lengths[run]);
+        }
+        else
+        {
+            return list1.subList(starts1[run], starts1[run] + lengths[run]);
+        }
+    }
+
+
+    // ----------------------------------------------------------
+    /**
+     * Get the old list (all equalities and deletions).
+     * @return The old list.
+     */
+    public List<T> getList1()
+    {
+        return list1;
+    }
+
+
+    // ----------------------------------------------------------
+    /**
+     * Get the new list (all equalities and insertions).
+     * @return The new list.
+     */
+    public List<T> getList2()
+    {
+        return list2;
+    }
+
+
+    // ----------------------------------------------------------
+    /**
+     * Compute the Levenshtein distance; the number of inserted, deleted or
+     * substituted items.
+     * @return Number of changes.
+     */
+    public int getLevenshteinDistance()
+    {
+        int levenshtein = 0;
+        int insertions = 0;
+        int deletions = 0;
+
+        for (int i = 0; i < size; i++)
+        {
+            switch (operations[i])
+            {
+                case INSERT:
+                    insertions += lengths[i];
+                    break;
+
+                case DELETE:
+                    deletions += lengths[i];
+                    break;
+
+                default:
+                    // A deletion and an insertion is one substitution.
+                    levenshtein += Math.max(insertions, deletions);
+                    insertions = 0;
+                    deletions = 0;
+                    break;
+            }
+        }
+
+        levenshtein += Math.max(insertions, deletions);
+        return levenshtein;
+    }
+
+
+    // ----------------------------------------------------------
+    /**
+     * loc is a location in the old list, compute and return the equivalent
+     * location in the new list, as {@link DiffList#translateIndex(int)}
+     * does.  The runs are found by a binary search.
+     *
+     * @param loc Location within the old list.
+     * @return Location within the new list.
+     */
+    public int translateIndex(int loc)
+    {
+        // Find the first run that does not end at or before loc
+        int low = 0;
+        int high = size;
+        while (low < high)
+        {
+            int mid = (low + high) >>> 1;
+            int runEnd = starts1[mid];
+            if (operations[mid] != INSERT)
+            {
+                runEnd += lengths[mid];
+            }
+            if (runEnd > loc)
+            {
+                high = mid;
+            }
+            else
+            {
+                low = mid + 1;
+            }
+        }
+        if (low == size)
+        {
+            // Past the end, so everything before it is accounted for.
+            return end2 + (loc - end1);
+        }
+        if (operations[low] == DELETE)
+        {
+            // The location was deleted.
+            return starts2[low];
+        }
+        return starts2[low] + (loc - starts1[low]);
+    }
+
+
+    // ----------------------------------------------------------
+    /**
+     * Convert to the usual representation.  The lists of the resulting
+     * diffs are views of the old and new lists.
+     *
+     * @return The diff as a DiffList.
+     */
+    public DiffList<T> toDiffList()
+    {
+        DiffList<T> diffs = new DiffList<T>();
+        for (int i = 0; i < size; i++)
+        {
+            diffs.add(new Diff<T>(getOperation(i), getList(i)));
+        }
+        return diffs;
+    }
+
+
+    // ----------------------------------------------------------
+    /**
+     * Display a human-readable version of this diff.
+     *
+     * @return text version.
+     */
+    public String toString()
+    {
+        return toDiffList().toString();
+    }
+
+
+    //~ Package-private Methods ...............................................
+
+    // ----------------------------------------------------------
+    /**
+     * Append a run that continues where the last one left off.  Empty runs
+     * change nothing and are dropped.
+     *
+     * @param operation The run's operation
+     * @param length The number of items it covers
+     */
+    void add(Diff.Operation operation, int length)
+    {
+        if (length == 0)
+        {
+            return;
+        }
+        byte code = (byte)operation.ordinal();
+        if (size == lengths.length)
+        {
+            int capacity = size * 2;
+            operations = copyOf(operations, capacity);
+            starts1 = copyOf(starts1, capacity);
+            starts2 = copyOf(starts2, capacity);
+            lengths = copyOf(lengths, capacity);
+        }
+        operations[size] = code;
+        starts1[size] = end1;
+        starts2[size] = end2;
+        lengths[size] = length;
+        size++;
+        if (code != INSERT)
+        {
+            end1 += length;
+        }
+        if (code != DELETE)
+        {
+            end2 += length;
+        }
+    }
+
+
+    //~ Private Methods .......................................................
+
+    // ----------------------------------------------------------
+    private static <T> List<T> randomAccess(List<T> list)
+    {
+        if (list instanceof RandomAccess)
+        {
+            return list;
+        }
+        return new ArrayList<T>(list);
+    }
+
+
+    // ----------------------------------------------------------
+    private static byte[] copyOf(byte[] array, int length)
+    {
+        byte[] result = new byte[length];
+        System.arraycopy(array, 0, result, 0, Math.min(array.length, length));
+        return result;
+    }
+
+
+    // ----------------------------------------------------------
+    private static int[] copyOf(int[] array, int length)
+    {
+        int[] result = new int[length];
+        System.arraycopy(array, 0, result, 0, Math.min(array.length, length));
+        return result;
+    }
+
+
+    //~ Static/instance variables .............................................
+
+    // Operation codes, in the order Diff.Operation declares them
+    private static final Diff.Operation[] OPERATIONS =
+        Diff.Operation.values();
+    private static final byte DELETE = 0;
+    private static final byte INSERT = 1;
+
+    private final List<T> list1;
+    private final List<T> list2;
+    private byte[] operations;
+    private int[] starts1;
+    private int[] starts2;
+    private int[] lengths;
+    private int size;
+    private int end1;
+    private int end2;
+}
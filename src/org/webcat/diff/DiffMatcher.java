@@ -1,5 +1,6 @@
 package org.webcat.diff;
 
+import java.util.Arrays;
 import java.util.Comparator;
 import java.util.HashMap;
 import java.util.List;
@@ -19,8 +20,27 @@ public class DiffMatcher<T>
     // ----------------------------------------------------------
     public DiffMatcher(List<T> text, List<T> pattern, int loc,
                        Comparator<T> comp)
+    {
+        this(text, pattern, loc, comp, new Alphabet<T>());
+    }
+
+
+    // ----------------------------------------------------------
+    /**
+     * Locate the best instance of a pattern, reusing the tables of an
+     * alphabet that earlier matches have already filled in.
+     *
+     * @param text The text to search.
+     * @param pattern The pattern to search for, of any length.
+     * @param loc The location to search around.
+     * @param comp The comparator to use, or null to use equals()
+     * @param alphabet The alphabet to share with other matches
+     */
+    public DiffMatcher(List<T> text, List<T> pattern, int loc,
+                       Comparator<T> comp, Alphabet<T> alphabet)
     {
         this.comparator = comp;
+        this.alphabet = alphabet;
         bestMatchIndex = doMatch(text, pattern, loc);
     }
 
@@ -83,7 +103,9 @@ public class DiffMatcher<T>
     // ----------------------------------------------------------
     /**
      * Locate the best instance of 'pattern' in 'text' near 'loc' using the
-     * Bitap algorithm. Returns -1 if no match found.
+     * Bitap algorithm. Returns -1 if no match found.  The bit arrays are
+     * split into as many longs as the pattern needs, so there is no limit
+     * on its length.
      *
      * @param text
      *            The text to search.
@@ -95,11 +117,23 @@ public class DiffMatcher<T>
      */
     private int bitap(List<T> text, List<T> pattern, int loc)
     {
-        assert (Match_MaxBits == 0 || pattern.size() <= Match_MaxBits) : "Pattern too long for this application.";
-
         // Initialize the alphabet.
-        Map<T, Integer> s = makeAlphabet(pattern);
+        int[] patternIds = alphabet.addPattern(pattern);
+        try
+        {
+            return bitap(text, pattern, loc, patternIds);
+        }
+        finally
+        {
+            alphabet.clearPattern(patternIds, words(pattern.size()));
+        }
+    }
+
 
+    // ----------------------------------------------------------
+    private int bitap(List<T> text, List<T> pattern, int loc,
+            int[] patternIds)
+    {
         // Highest score beyond which we give up.
         double score_threshold = Match_Threshold;
         // Is there a nearby exact match? (speedup)
@@ -117,14 +151,21 @@ public class DiffMatcher<T>
             }
         }
 
-        // Initialize the bit arrays.
-        int matchmask = 1 << (pattern.size() - 1);
+        // Initialize the bit arrays.  Bit b of a bit array is bit (b % 64)
+        // of its (b / 64)th long.
+        int words = words(pattern.size());
+        int top = words - 1;
+        long matchmask = 1L << ((pattern.size() - 1) & 63);
         best_loc = -1;
 
+        // Alphabet ids of the text, looked up as they are needed.
+        int[] textIds = new int[text.size()];
+        Arrays.fill(textIds, UNKNOWN);
+
         int bin_min, bin_mid;
         int bin_max = pattern.size() + text.size();
         // Empty initialization added to appease Java compiler.
-        int[] last_rd = new int[0];
+        long[] last_rd = new long[0];
         for (int d = 0; d < pattern.size(); d++)
         {
             // Scan for the best match; each iteration allows for one more error.
@@ -150,34 +191,62 @@ public class DiffMatcher<T>
             int finish = Math.min(loc + bin_mid, text.size())
                     + pattern.size();
 
-            int[] rd = new int[finish + 2];
-            rd[finish + 1] = (1 << d) - 1;
+            long[] rd = new long[(finish + 2) * words];
+            // rd[finish + 1] = (1 << d) - 1
+            for (int w = 0; w < words && w * 64 < d; w++)
+            {
+                int bits = d - w * 64;
+                rd[(finish + 1) * words + w] =
+                    bits >= 64 ? -1L : (1L << bits) - 1;
+            }
             for (int j = finish; j >= start; j--)
             {
-                int charMatch;
-                if (text.size() <= j - 1
-                        || !s.containsKey(text.get(j - 1)))
+                long[] charMatch;
+                if (text.size() <= j - 1)
                 {
                     // Out of range.
-                    charMatch = 0;
+                    charMatch = null;
                 }
                 else
                 {
-                    charMatch = s.get(text.get(j - 1));
-                }
-                if (d == 0)
-                {
-                    // First pass: exact match.
-                    rd[j] = ((rd[j + 1] << 1) | 1) & charMatch;
+                    int id = textIds[j - 1];
+                    if (id == UNKNOWN)
+                    {
+                        id = alphabet.idOf(text.get(j - 1));
+                        textIds[j - 1] = id;
+                    }
+                    charMatch = alphabet.mask(id);
                 }
-                else
+                int here = j * words;
+                int next = here + words;
+                // The "| 1" of each shift, then the bit carried out of the
+                // word below.
+                long carry = 1;
+                long lastCarry = 1;
+                for (int w = 0; w < words; w++)
                 {
-                    // Subsequent passes: fuzzy match.
-                    rd[j] = ((rd[j + 1] << 1) | 1) & charMatch
-                            | (((last_rd[j + 1] | last_rd[j]) << 1) | 1)
-                            | last_rd[j + 1];
+                    long shifted = (rd[next + w] << 1) | carry;
+                    carry = rd[next + w] >>> 63;
+                    // Items of earlier, shorter patterns may have shorter
+                    // bit arrays, all zeros now.
+                    long value = charMatch == null || w >= charMatch.length
+                            ? 0 : shifted & charMatch[w];
+                    if (d == 0)
+                    {
+                        // First pass: exact match.
+                        rd[here + w] = value;
+                    }
+                    else
+                    {
+                        // Subsequent passes: fuzzy match.
+                        long last = last_rd[next + w] | last_rd[here + w];
+                        rd[here + w] = value
+                                | ((last << 1) | lastCarry)
+                                | last_rd[next + w];
+                        lastCarry = last >>> 63;
+                    }
                 }
-                if ((rd[j] & matchmask) != 0)
+                if ((rd[here + top] & matchmask) != 0)
                 {
                     double score = bitapScore(d, j - 1, loc, pattern);
                     // This match will almost certainly be better than any existing
@@ -240,27 +309,112 @@ public class DiffMatcher<T>
 
     // ----------------------------------------------------------
     /**
-     * Initialize the alphabet for the Bitap algorithm.
+     * Get the number of longs in a bit array for a pattern.
+     */
+    private static int words(int patternLength)
+    {
+        return (patternLength + 63) >>> 6;
+    }
+
+
+    //~ Nested classes ........................................................
+
+    // ----------------------------------------------------------
+    /**
+     * The alphabet for the Bitap algorithm: a small int id for every item
+     * seen in a pattern, and for each id a bit array of where it occurs in
+     * the pattern being matched.  One alphabet can be shared by any number
+     * of matches, one at a time, so that {@link DiffPatcher} builds it
+     * once for all of its patches instead of once per patch.
      *
-     * @param pattern
-     *            The text to encode.
-     * @return Hash of character locations.
+     * @param <T> the type of object being matched
      */
-    private Map<T, Integer> makeAlphabet(List<T> pattern)
+    public static class Alphabet<T>
     {
-        Map<T, Integer> s = new HashMap<T, Integer>();
+        // ----------------------------------------------------------
+        /**
+         * Get the id of an item.
+         *
+         * @return The id, or -1 if the item has not been in a pattern.
+         */
+        int idOf(T item)
+        {
+            Integer id = ids.get(item);
+            return id == null ? -1 : id;
+        }
+
+
+        // ----------------------------------------------------------
+        /**
+         * Get the bit array of an id, which has a bit set for every place
+         * its item occurs in the current pattern.
+         *
+         * @return The bit array, or null for -1.
+         */
+        long[] mask(int id)
+        {
+            return id < 0 ? null : masks[id];
+        }
+
 
-        for (T c : pattern)
+        // ----------------------------------------------------------
+        /**
+         * Make the current pattern the one given, filling in the bit arrays
+         * of its items.  Item i of the pattern sets bit (size - i - 1).
+         *
+         * @return The ids of the pattern's items.
+         */
+        int[] addPattern(List<T> pattern)
         {
-            s.put(c, 0);
+            int size = pattern.size();
+            int words = words(size);
+            int[] patternIds = new int[size];
+            int i = 0;
+            for (T c : pattern)
+            {
+                Integer id = ids.get(c);
+                if (id == null)
+                {
+                    id = ids.size();
+                    ids.put(c, id);
+                    if (id == masks.length)
+                    {
+                        long[][] newMasks = new long[id * 2][];
+                        System.arraycopy(masks, 0, newMasks, 0, id);
+                        masks = newMasks;
+                    }
+                }
+                long[] mask = masks[id];
+                if (mask == null || mask.length < words)
+                {
+                    mask = new long[words];
+                    masks[id] = mask;
+                }
+                int bit = size - i - 1;
+                mask[bit >>> 6] |= 1L << (bit & 63);
+                patternIds[i++] = id;
+            }
+            return patternIds;
         }
-        int i = 0;
-        for (T c : pattern)
+
+
+        // ----------------------------------------------------------
+        /**
+         * Clear the bit arrays of a pattern once matching is done.
+         */
+        void clearPattern(int[] patternIds, int words)
         {
-            s.put(c, s.get(c) | (1 << (pattern.size() - i - 1)));
-            i++;
+            for (int id : patternIds)
+            {
+                Arrays.fill(masks[id], 0, words, 0L);
+            }
         }
-        return s;
+
+
+        //~ Static/instance variables .........................................
+
+        private final Map<T, Integer> ids = new HashMap<T, Integer>();
+        private long[][] masks = new long[16][];
     }
 
 
@@ -274,9 +428,10 @@ public class DiffMatcher<T>
     // to the score (0.0 is a perfect match).
     private int Match_Distance = 1000;
 
-    // The number of bits in an int.
-    private short Match_MaxBits = 32;
+    // Alphabet id of text items that have not been looked up yet.
+    private static final int UNKNOWN = -2;
 
     private Comparator<T> comparator;
+    private Alphabet<T> alphabet;
     private int bestMatchIndex = -1;
 }
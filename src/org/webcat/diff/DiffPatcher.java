@@ -3,12 +3,13 @@ package org.webcat.diff;
 import java.io.UnsupportedEncodingException;
 import java.net.URLDecoder;
 import java.net.URLEncoder;
+import java.util.AbstractList;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Comparator;
 import java.util.LinkedList;
 import java.util.List;
-import java.util.ListIterator;
+import java.util.RandomAccess;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
@@ -26,9 +27,24 @@ public class DiffPatcher<T>
     // ----------------------------------------------------------
     public DiffPatcher(List<T> list1, DiffList<T> diffs,
                        Comparator<T> comp)
+    {
+        this(compact(list1, diffs), comp);
+    }
+
+
+    // ----------------------------------------------------------
+    /**
+     * Creates patches from a compact diff.  The patches refer to ranges of
+     * the diff's lists instead of copying them.
+     *
+     * @param diffs The differences between the old and new lists
+     * @param comp The comparator to use when applying patches, or null to
+     *            use equals()
+     */
+    public DiffPatcher(CompactDiff<T> diffs, Comparator<T> comp)
     {
         this.comparator = comp;
-        this.patches = makePatch(list1, diffs);
+        this.patches = makePatch(diffs);
     }
 
 
@@ -114,73 +130,82 @@ public class DiffPatcher<T>
     }
 
 
+    // ----------------------------------------------------------
+    private static <T> CompactDiff<T> compact(List<T> list1, DiffList<T> diffs)
+    {
+        if (list1 == null || diffs == null)
+        {
+            throw new IllegalArgumentException("Null inputs. (patch_make)");
+        }
+        return CompactDiff.fromDiffList(list1, diffs);
+    }
+
+
     // ----------------------------------------------------------
     /**
-     * Compute a list of patches to turn list1 into list2. list2 is not
-     * provided, diffs are the delta between list1 and list2.
+     * Compute a list of patches to turn list1 into list2, both of which are
+     * held by the diffs.
      *
-     * @param list1
-     *            Old list.
      * @param diffs
-     *            Array of diff tuples for list1 to list2.
+     *            The runs that turn list1 into list2.
      * @return LinkedList of Patch objects.
      */
-    private PatchList<T> makePatch(List<T> list1, DiffList<T> diffs)
+    private PatchList<T> makePatch(CompactDiff<T> diffs)
     {
-        if (list1 == null || diffs == null)
+        if (diffs == null)
         {
             throw new IllegalArgumentException("Null inputs. (patch_make)");
         }
 
         PatchList<T> patches = new PatchList<T>();
-        if (diffs.isEmpty())
+        if (diffs.size() == 0)
         {
             return patches; // Get rid of the null case.
         }
+        List<T> list1 = diffs.getList1();
+        List<T> list2 = diffs.getList2();
         Patch<T> patch = new Patch<T>();
-        int char_count1 = 0; // Number of characters into the list1 List<T>.
+        int char_count1 = 0; // Number of characters into the prepatch list.
         int char_count2 = 0; // Number of characters into the list2 List<T>.
         // Start with list1 (prepatch_list) and apply the diffs until we arrive at
         // list2 (postpatch_list). We recreate the patches one by one to determine
-        // context info.
+        // context info.  The postpatch list is always the part of list2 the
+        // diffs have reached followed by the rest of list1, so it is never
+        // built, only viewed.
         List<T> prepatch_list = list1;
-        List<T> postpatch_list = list1;
-        for (Diff<T> aDiff : diffs)
+        int last = diffs.size() - 1;
+        for (int i = 0; i <= last; i++)
         {
-            if (patch.diffs.isEmpty() && aDiff.operation != Diff.Operation.EQUAL)
+            Diff.Operation operation = diffs.getOperation(i);
+            int length = diffs.getLength(i);
+            if (patch.diffs.isEmpty() && operation != Diff.Operation.EQUAL)
             {
                 // A new patch starts here.
                 patch.start1 = char_count1;
                 patch.start2 = char_count2;
             }
 
-            switch (aDiff.operation)
+            switch (operation)
             {
             case INSERT:
-                patch.diffs.add(aDiff);
-                patch.length2 += aDiff.list.size();
-                postpatch_list = addLists(postpatch_list.subList(0, char_count2),
-                        aDiff.list, postpatch_list.subList(char_count2, postpatch_list.size()));
+                patch.diffs.add(new Diff<T>(operation, diffs.getList(i)));
+                patch.length2 += length;
                 break;
             case DELETE:
-                patch.length1 += aDiff.list.size();
-                patch.diffs.add(aDiff);
-                postpatch_list =
-                    addLists(postpatch_list.subList(0, char_count2),
-                        postpatch_list.subList(char_count2
-                                + aDiff.list.size(), postpatch_list.size()));
+                patch.length1 += length;
+                patch.diffs.add(new Diff<T>(operation, diffs.getList(i)));
                 break;
             case EQUAL:
-                if (aDiff.list.size() <= 2 * Patch_Margin
-                        && !patch.diffs.isEmpty() && aDiff != diffs.getLast())
+                if (length <= 2 * Patch_Margin
+                        && !patch.diffs.isEmpty() && i != last)
                 {
                     // Small equality inside a patch.
-                    patch.diffs.add(aDiff);
-                    patch.length1 += aDiff.list.size();
-                    patch.length2 += aDiff.list.size();
+                    patch.diffs.add(new Diff<T>(operation, diffs.getList(i)));
+                    patch.length1 += length;
+                    patch.length2 += length;
                 }
 
-                if (aDiff.list.size() >= 2 * Patch_Margin)
+                if (length >= 2 * Patch_Margin)
                 {
                     // Time for a new patch.
                     if (!patch.diffs.isEmpty())
@@ -192,7 +217,9 @@ public class DiffPatcher<T>
                         // http://code.google.com/p/google-diff-match-patch/wiki/Unidiff
                         // Update prepatch list & pos to reflect the application of the
                         // just completed patch.
-                        prepatch_list = postpatch_list;
+                        prepatch_list = new SplicedList<T>(
+                            list2.subList(0, diffs.getStart2(i)),
+                            list1.subList(diffs.getStart1(i), list1.size()));
                         char_count1 = char_count2;
                     }
                 }
@@ -200,13 +227,13 @@ public class DiffPatcher<T>
             }
 
             // Update the current character count.
-            if (aDiff.operation != Diff.Operation.INSERT)
+            if (operation != Diff.Operation.INSERT)
             {
-                char_count1 += aDiff.list.size();
+                char_count1 += length;
             }
-            if (aDiff.operation != Diff.Operation.DELETE)
+            if (operation != Diff.Operation.DELETE)
             {
-                char_count2 += aDiff.list.size();
+                char_count2 += length;
             }
         }
         // Pick up the leftover patch if not empty.
@@ -234,17 +261,25 @@ public class DiffPatcher<T>
      */
     public PatchApplication<T> apply(List<T> list)
     {
-        if (patches.isEmpty())
+        if (this.patches.isEmpty())
         {
             return new PatchApplication<T>(list, new boolean[0]);
         }
 
         // Deep copy the patches so that no changes are made to originals.
-        patches = patches.clone();
+        PatchList<T> patches = this.patches.clone();
 
         List<T> nullPadding = addPadding(patches, Patch_Margin);
-        list = addLists(nullPadding, list, nullPadding);
-        splitMax(patches);
+        // All patches are applied in place to this one copy of the list.
+        ArrayList<T> result =
+            new ArrayList<T>(list.size() + 2 * nullPadding.size());
+        result.addAll(nullPadding);
+        result.addAll(list);
+        result.addAll(nullPadding);
+        list = result;
+        // All patches share one bitap alphabet, and since the matcher takes
+        // patterns of any length, no patch needs splitting.
+        DiffMatcher.Alphabet<T> alphabet = new DiffMatcher.Alphabet<T>();
 
         int x = 0;
         // delta keeps track of the offset between the expected and actual location
@@ -257,30 +292,8 @@ public class DiffPatcher<T>
         {
             int expected_loc = aPatch.start2 + delta;
             List<T> list1 = aPatch.diffs.computeFirstList();
-            int start_loc;
-            int end_loc = -1;
-            if (list1.size() > this.Match_MaxBits)
-            {
-                // patch_splitMax will only provide an oversized pattern in the case of
-                // a monster delete.
-                start_loc = new DiffMatcher<T>(list, list1.subList(0,
-                        this.Match_MaxBits), expected_loc, comparator).getBestMatchIndex();
-                if (start_loc != -1)
-                {
-                    end_loc = new DiffMatcher<T>(list, list1.subList(list1.size()
-                            - this.Match_MaxBits, list1.size()), expected_loc
-                            + list1.size() - this.Match_MaxBits, comparator).getBestMatchIndex();
-                    if (end_loc == -1 || start_loc >= end_loc)
-                    {
-                        // Can't find valid trailing conlist.  Drop this patch.
-                        start_loc = -1;
-                    }
-                }
-            }
-            else
-            {
-                start_loc = new DiffMatcher<T>(list, list1, expected_loc, comparator).getBestMatchIndex();
-            }
+            int start_loc = new DiffMatcher<T>(list, list1, expected_loc,
+                comparator, alphabet).getBestMatchIndex();
             if (start_loc == -1)
             {
                 // No match found.  :(
@@ -293,60 +306,61 @@ public class DiffPatcher<T>
                 // Found a match.  :)
                 results[x] = true;
                 delta = start_loc - expected_loc;
-                List<T> list2;
-                if (end_loc == -1)
-                {
-                    list2 = list.subList(start_loc, Math.min(start_loc
-                            + list1.size(), list.size()));
-                }
-                else
-                {
-                    list2 = list.subList(start_loc, Math.min(end_loc
-                            + this.Match_MaxBits, list.size()));
-                }
+                List<T> list2 = list.subList(start_loc, Math.min(start_loc
+                        + list1.size(), list.size()));
                 if (DiffUtils.listsEqual(list1, list2, comparator))
                 {
                     // Perfect match, just shove the replacement list in.
-                    list = addLists(list.subList(0, start_loc),
-                            aPatch.diffs.computeSecondList(),
-                            list.subList(start_loc + list1.size(), list.size()));
+                    list2.clear();
+                    list.addAll(start_loc, aPatch.diffs.computeSecondList());
                 }
                 else
                 {
                     // Imperfect match.  Run a diff to get a framework of equivalent
                     // indices.
-                    DiffList<T> diffs = new Differ<T>(list1, list2, comparator).getDifferences();
+                    // Copy list2, since the list it views is about to change.
+                    CompactDiff<T> diffs = new Differ<T>(list1,
+                        new ArrayList<T>(list2),
+                        comparator).getCompactDifferences();
                     if (list1.size() > this.Match_MaxBits
                             && diffs.getLevenshteinDistance() / (float) list1.size() > this.Patch_DeleteThreshold)
                     {
-                        // The end points match, but the content is unacceptably bad.
+                        // Close enough for bitap, but a large patch with this
+                        // much changed is unacceptably bad.
                         results[x] = false;
                     }
                     else
                     {
                         //diff_cleanupSemanticLossless(diffs);
+                        // index1 counts items of list1 and shift the items the
+                        // edits so far have added to (or removed from) list,
+                        // so each edit lands where list1 lines up with list2
+                        // however long the patch is.
                         int index1 = 0;
+                        int shift = 0;
                         for (Diff<T> aDiff : aPatch.diffs)
                         {
                             if (aDiff.operation != Diff.Operation.EQUAL)
                             {
-                                int index2 = diffs.translateIndex(index1);
+                                int index2 = start_loc + shift
+                                    + diffs.translateIndex(index1);
                                 if (aDiff.operation == Diff.Operation.INSERT)
                                 {
                                     // Insertion
-                                    list = addLists(
-                                            list.subList(0, start_loc + index2),
-                                            aDiff.list,
-                                            list.subList(start_loc + index2, list.size()));
+                                    list.addAll(index2, aDiff.list);
+                                    shift += aDiff.list.size();
                                 }
                                 else if (aDiff.operation == Diff.Operation.DELETE)
                                 {
                                     // Deletion
-                                    list = addLists(list.subList(0, start_loc + index2),
-                                            list.subList(start_loc + diffs.translateIndex(index1 + aDiff.list.size()), list.size()));
+                                    int end2 = start_loc + shift
+                                        + diffs.translateIndex(
+                                            index1 + aDiff.list.size());
+                                    list.subList(index2, end2).clear();
+                                    shift -= end2 - index2;
                                 }
                             }
-                            if (aDiff.operation != Diff.Operation.DELETE)
+                            if (aDiff.operation != Diff.Operation.INSERT)
                             {
                                 index1 += aDiff.list.size();
                             }
@@ -439,147 +453,6 @@ public class DiffPatcher<T>
     }
 
 
-    // ----------------------------------------------------------
-    /**
-     * Look through the patches and break up any which are longer than the
-     * maximum limit of the match algorithm. Intended to be called only from
-     * within patch_apply.
-     *
-     * @param patches
-     *            LinkedList of Patch objects.
-     */
-    private void splitMax(PatchList<T> patches)
-    {
-        short patch_size = Match_MaxBits;
-        List<T> precontext, postcontext;
-        Patch<T> patch;
-        int start1, start2;
-        boolean empty;
-        Diff.Operation diff_type;
-        List<T> diff_text;
-        ListIterator<Patch<T>> pointer = patches.listIterator();
-        Patch<T> bigpatch = pointer.hasNext() ? pointer.next() : null;
-        while (bigpatch != null)
-        {
-            if (bigpatch.length1 <= Match_MaxBits)
-            {
-                bigpatch = pointer.hasNext() ? pointer.next() : null;
-                continue;
-            }
-            // Remove the big old patch.
-            pointer.remove();
-            start1 = bigpatch.start1;
-            start2 = bigpatch.start2;
-            precontext = new ArrayList<T>();
-            while (!bigpatch.diffs.isEmpty())
-            {
-                // Create one of several smaller patches.
-                patch = new Patch<T>();
-                empty = true;
-                patch.start1 = start1 - precontext.size();
-                patch.start2 = start2 - precontext.size();
-                if (precontext.size() != 0)
-                {
-                    patch.length1 = patch.length2 = precontext.size();
-                    patch.diffs.add(new Diff<T>(Diff.Operation.EQUAL, precontext));
-                }
-                while (!bigpatch.diffs.isEmpty()
-                        && patch.length1 < patch_size - Patch_Margin)
-                {
-                    diff_type = bigpatch.diffs.getFirst().operation;
-                    diff_text = bigpatch.diffs.getFirst().list;
-                    if (diff_type == Diff.Operation.INSERT)
-                    {
-                        // Insertions are harmless.
-                        patch.length2 += diff_text.size();
-                        start2 += diff_text.size();
-                        patch.diffs.addLast(bigpatch.diffs.removeFirst());
-                        empty = false;
-                    }
-                    else if (diff_type == Diff.Operation.DELETE
-                            && patch.diffs.size() == 1
-                            && patch.diffs.getFirst().operation == Diff.Operation.EQUAL
-                            && diff_text.size() > 2 * patch_size)
-                    {
-                        // This is a large deletion.  Let it pass in one chunk.
-                        patch.length1 += diff_text.size();
-                        start1 += diff_text.size();
-                        empty = false;
-                        patch.diffs.add(new Diff<T>(diff_type, diff_text));
-                        bigpatch.diffs.removeFirst();
-                    }
-                    else
-                    {
-                        // Deletion or equality.  Only take as much as we can stomach.
-                        diff_text = diff_text.subList(0, Math.min(diff_text
-                                .size(), patch_size - patch.length1
-                                - Patch_Margin));
-                        patch.length1 += diff_text.size();
-                        start1 += diff_text.size();
-                        if (diff_type == Diff.Operation.EQUAL)
-                        {
-                            patch.length2 += diff_text.size();
-                            start2 += diff_text.size();
-                        }
-                        else
-                        {
-                            empty = false;
-                        }
-                        patch.diffs.add(new Diff<T>(diff_type, diff_text));
-                        if (DiffUtils.listsEqual(diff_text, bigpatch.diffs.getFirst().list, comparator)/*diff_text.equals(bigpatch.diffs.getFirst().list)*/)
-                        {
-                            bigpatch.diffs.removeFirst();
-                        }
-                        else
-                        {
-                            bigpatch.diffs.getFirst().list =
-                                bigpatch.diffs.getFirst().list.subList(
-                                        diff_text.size(),
-                                        bigpatch.diffs.getFirst().list.size());
-                        }
-                    }
-                }
-                // Compute the head context for the next patch.
-                precontext = patch.diffs.computeSecondList();
-                precontext = precontext.subList(Math.max(0, precontext
-                        .size() - Patch_Margin), precontext.size());
-
-                List<T> firstList = bigpatch.diffs.computeFirstList();
-                // Append the end context for this patch.
-                if (firstList.size() > Patch_Margin)
-                {
-                    postcontext = firstList.subList(0, Patch_Margin);
-                }
-                else
-                {
-                    postcontext = firstList;
-                }
-                if (postcontext.size() != 0)
-                {
-                    patch.length1 += postcontext.size();
-                    patch.length2 += postcontext.size();
-                    if (!patch.diffs.isEmpty()
-                            && patch.diffs.getLast().operation == Diff.Operation.EQUAL)
-                    {
-                        patch.diffs.getLast().list =
-                            addLists(patch.diffs.getLast().list, postcontext);
-                    }
-                    else
-                    {
-                        patch.diffs.add(new Diff<T>(Diff.Operation.EQUAL, postcontext));
-                    }
-                }
-                if (!empty)
-                {
-                    pointer.add(patch);
-                }
-            }
-
-            bigpatch = pointer.hasNext() ? pointer.next() : null;
-        }
-    }
-
-
     //~ Static/instance variables .............................................
 
     // When deleting a large block of text (over ~64 characters), how close does
@@ -591,9 +464,50 @@ public class DiffPatcher<T>
     // Chunk size for context length.
     private short Patch_Margin = 4;
 
-    // The number of bits in an int.
+    // The longest pattern addContext() grows, and the size beyond which a
+    // fuzzy match must also pass Patch_DeleteThreshold.
     private short Match_MaxBits = 32;
 
     private Comparator<T> comparator;
     private PatchList<T> patches;
+
+
+    //~ Private classes .......................................................
+
+    // ----------------------------------------------------------
+    /**
+     * A read-only view of one list followed by another.
+     */
+    private static class SplicedList<T>
+        extends AbstractList<T>
+        implements RandomAccess
+    {
+        // ----------------------------------------------------------
+        public SplicedList(List<T> head, List<T> tail)
+        {
+            this.head = head;
+            this.tail = tail;
+        }
+
+
+        // ----------------------------------------------------------
+        public T get(int index)
+        {
+            int headSize = head.size();
+            return index < headSize ? head.get(index) : tail.get(index - headSize);
+        }
+
+
+        // ----------------------------------------------------------
+        public int size()
+        {
+            return head.size() + tail.size();
+        }
+
+
+        //~ Static/instance variables .........................................
+
+        private final List<T> head;
+        private final List<T> tail;
+    }
 }
@@ -9,6 +9,21 @@ public class DiffUtils
 {
     //~ Methods ...............................................................
 
+    // ----------------------------------------------------------
+    /**
+     * Get an equivalence based on equals() and hashCode(), with null
+     * only equivalent to null.
+     *
+     * @param <T> the type of object being compared
+     * @return The equivalence.
+     */
+    @SuppressWarnings("unchecked")
+    public static <T> Equivalence<T> naturalEquivalence()
+    {
+        return (Equivalence<T>)NATURAL;
+    }
+
+
     // ----------------------------------------------------------
     public static <T> boolean itemsEqual(T item1, T item2,
                                          Comparator<T> comparator)
@@ -143,4 +158,20 @@ public class DiffUtils
         return listIndexOf(list, subList, 0, comparator)
             == list.size() - subList.size();
     }
+
+
+    //~ Static/instance variables .............................................
+
+    private static final Equivalence<Object> NATURAL =
+        new Equivalence<Object>() {
+            public int hash(Object item)
+            {
+                return item == null ? 0 : item.hashCode();
+            }
+
+            public boolean equivalent(Object item1, Object item2)
+            {
+                return item1 == null ? item2 == null : item1.equals(item2);
+            }
+        };
 }
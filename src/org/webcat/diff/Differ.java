@@ -23,6 +23,7 @@ import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Comparator;
 import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * This class performs a diff between two lists or arrays and returns a list of
@@ -36,10 +37,55 @@ import java.util.List;
 public class Differ<T>
 {
 
+    //~ Nested types ..........................................................
+
+    // ----------------------------------------------------------
+    /**
+     * The ways {@link Differ#withEquivalence(List, List, Equivalence,
+     * Algorithm, float)} can find differences.
+     */
+    public static enum Algorithm
+    {
+        /**
+         * Myers' O(ND) bisection, which finds a minimal diff but may line
+         * up unrelated repeated items, such as blank lines.
+         */
+        MYERS,
+        /**
+         * Patience diff, which first lines up the items that occur exactly
+         * once in both lists and only uses Myers' bisection between them.
+         * Diffs of reordered or repetitive lists read better and usually
+         * come quicker, though they need not be minimal.
+         */
+        PATIENCE
+    }
+
+
     //~ Static/instance variables .............................................
 
     private Comparator<T> comparator;
     private DiffList<T> differences;
+    private CompactDiff<T> compactDifferences;
+
+    /**
+     * Time at which bisection gives up and settles for a coarse diff, or
+     * Long.MAX_VALUE for no limit.
+     */
+    private long deadline;
+    private boolean timedOut;
+
+    /**
+     * Number of seconds a diff may take before falling back to a coarse
+     * result, used when no timeout is given.  Zero or less means no limit.
+     */
+    private static volatile float Diff_Timeout = 1.0f;
+
+    /**
+     * Number of diffs that ran out of time, across all instances.
+     */
+    private static final AtomicLong timeouts = new AtomicLong();
+
+
     //~ Constructors ..........................................................
 
     // ----------------------------------------------------------
@@ -66,20 +112,238 @@ public class Differ<T>
     // ----------------------------------------------------------
     public Differ(List<T> text1, List<T> text2, Comparator<T> comp)
     {
-        this.comparator = comp;
+        this(text1, text2, comp, Diff_Timeout);
+    }
+
+
+    // ----------------------------------------------------------
+    /**
+     * Creates a diff that stops refining once the given time is up.  Past
+     * that point the parts still being bisected are reported as a plain
+     * deletion followed by an insertion, so the result is still a valid
+     * (if not minimal) diff from text1 to text2.
+     *
+     * @param text1 Old List<T> to be diffed.
+     * @param text2 New List<T> to be diffed.
+     * @param comp The comparator to use, or null to use equals()
+     * @param timeout Number of seconds to spend before falling back to a
+     *            coarse diff.  Zero or less means no limit.
+     */
+    public Differ(List<T> text1, List<T> text2, Comparator<T> comp,
+        float timeout)
+    {
+        this(comp, timeout);
         differences = doDiff(text1, text2);
     }
 
 
+    // ----------------------------------------------------------
+    private Differ(Comparator<T> comp, float timeout)
+    {
+        this.comparator = comp;
+        if (timeout <= 0)
+        {
+            deadline = Long.MAX_VALUE;
+        }
+        else
+        {
+            deadline = System.currentTimeMillis() + (long)(timeout * 1000);
+        }
+    }
+
+
+    //~ Factory methods .......................................................
+
+    // ----------------------------------------------------------
+    /**
+     * Creates a diff that first maps every item to an integer id, using the
+     * given equivalence, and then compares ids instead of items.  Each item
+     * is hashed once, so this is much faster than a Comparator when
+     * comparing items is expensive or the lists are long, such as for the
+     * lines of two program outputs.
+     *
+     * @param <T> the type of object in the lists
+     * @param text1 Old List<T> to be diffed.
+     * @param text2 New List<T> to be diffed.
+     * @param equivalence Decides which items are the same
+     * @return The diff.
+     */
+    public static <T> Differ<T> withEquivalence(
+        List<T> text1, List<T> text2, Equivalence<T> equivalence)
+    {
+        return withEquivalence(text1, text2, equivalence, Diff_Timeout);
+    }
+
+
+    // ----------------------------------------------------------
+    /**
+     * Creates a diff that first maps every item to an integer id, using the
+     * given equivalence, and stops refining once the given time is up.
+     *
+     * @param <T> the type of object in the lists
+     * @param text1 Old List<T> to be diffed.
+     * @param text2 New List<T> to be diffed.
+     * @param equivalence Decides which items are the same
+     * @param timeout Number of seconds to spend before falling back to a
+     *            coarse diff.  Zero or less means no limit.
+     * @return The diff.
+     */
+    public static <T> Differ<T> withEquivalence(List<T> text1,
+        List<T> text2, Equivalence<T> equivalence, float timeout)
+    {
+        return withEquivalence(
+            text1, text2, equivalence, Algorithm.MYERS, timeout);
+    }
+
+
+    // ----------------------------------------------------------
+    /**
+     * Creates a diff that first maps every item to an integer id, using the
+     * given equivalence, and then finds the differences with the given
+     * algorithm.
+     *
+     * @param <T> the type of object in the lists
+     * @param text1 Old List<T> to be diffed.
+     * @param text2 New List<T> to be diffed.
+     * @param equivalence Decides which items are the same
+     * @param algorithm How to find the differences
+     * @return The diff.
+     */
+    public static <T> Differ<T> withEquivalence(List<T> text1,
+        List<T> text2, Equivalence<T> equivalence, Algorithm algorithm)
+    {
+        return withEquivalence(
+            text1, text2, equivalence, algorithm, Diff_Timeout);
+    }
+
+
+    // ----------------------------------------------------------
+    /**
+     * Creates a diff that first maps every item to an integer id, using the
+     * given equivalence, finds the differences with the given algorithm and
+     * stops refining once the given time is up.
+     *
+     * @param <T> the type of object in the lists
+     * @param text1 Old List<T> to be diffed.
+     * @param text2 New List<T> to be diffed.
+     * @param equivalence Decides which items are the same
+     * @param algorithm How to find the differences
+     * @param timeout Number of seconds to spend before falling back to a
+     *            coarse diff.  Zero or less means no limit.
+     * @return The diff.
+     */
+    public static <T> Differ<T> withEquivalence(List<T> text1,
+        List<T> text2, Equivalence<T> equivalence, Algorithm algorithm,
+        float timeout)
+    {
+        // Check for null inputs.
+        if (text1 == null || text2 == null)
+        {
+            throw new IllegalArgumentException("Null inputs. (diff_main)");
+        }
+
+        Differ<T> differ = new Differ<T>(null, timeout);
+        Interner<T> interner =
+            new Interner<T>(equivalence, text1.size() + text2.size());
+        int[] ids1 = interner.intern(text1);
+        int[] ids2 = interner.intern(text2);
+        IntDiffer ids = new IntDiffer(
+            ids1, ids2, interner.size(), algorithm, differ.deadline);
+        if (ids.isTimedOut())
+        {
+            differ.timedOut = true;
+            timeouts.incrementAndGet();
+        }
+
+        CompactDiff<T> compact = new CompactDiff<T>(text1, text2);
+        for (int i = 0; i < ids.size(); i++)
+        {
+            compact.add(ids.operation(i), ids.length(i));
+        }
+        differ.compactDifferences = compact;
+        return differ;
+    }
+
+
     //~ Methods ...............................................................
 
     // ----------------------------------------------------------
     public DiffList<T> getDifferences()
     {
+        if (differences == null)
+        {
+            differences = compactDifferences.toDiffList();
+        }
         return differences;
     }
 
 
+    // ----------------------------------------------------------
+    /**
+     * Get the differences as runs over the two lists, which
+     * {@link DiffPatcher} can use without copying any items.
+     *
+     * @return The differences.
+     */
+    public CompactDiff<T> getCompactDifferences()
+    {
+        if (compactDifferences == null)
+        {
+            compactDifferences = CompactDiff.fromDiffList(differences);
+        }
+        return compactDifferences;
+    }
+
+
+    // ----------------------------------------------------------
+    /**
+     * Tells whether this diff ran out of time and contains coarse parts.
+     *
+     * @return True if the timeout was hit.
+     */
+    public boolean isTimedOut()
+    {
+        return timedOut;
+    }
+
+
+    // ----------------------------------------------------------
+    /**
+     * Get the number of seconds a diff may take when no timeout is given.
+     *
+     * @return The default timeout; zero or less means no limit.
+     */
+    public static float getDefaultTimeout()
+    {
+        return Diff_Timeout;
+    }
+
+
+    // ----------------------------------------------------------
+    /**
+     * Set the number of seconds a diff may take when no timeout is given.
+     *
+     * @param timeout The new default; zero or less means no limit.
+     */
+    public static void setDefaultTimeout(float timeout)
+    {
+        Diff_Timeout = timeout;
+    }
+
+
+    // ----------------------------------------------------------
+    /**
+     * Get the number of diffs that ran out of time and fell back to a
+     * coarse result since the class was loaded.
+     *
+     * @return The number of timed out diffs.
+     */
+    public static long getTimeoutCount()
+    {
+        return timeouts.get();
+    }
+
+
     // ----------------------------------------------------------
     /**
      * Find the differences between two texts. Simplifies the problem by
@@ -182,7 +446,7 @@ public class Differ<T>
 
         List<T> longtext = text1.size() > text2.size() ? text1 : text2;
         List<T> shorttext = text1.size() > text2.size() ? text2 : text1;
-        int i = longtext.indexOf(shorttext);
+        int i = listIndexOf(longtext, shorttext, 0);
         if (i != -1)
         {
             // Shorter text is inside the longer text (speedup).
@@ -271,6 +535,17 @@ public class Differ<T>
         int k2end = 0;
         for (int d = 0; d < max_d; d++)
         {
+            // Bail out if deadline is reached.
+            if (System.currentTimeMillis() > deadline)
+            {
+                if (!timedOut)
+                {
+                    timedOut = true;
+                    timeouts.incrementAndGet();
+                }
+                break;
+            }
+
             // Walk the front path one step.
             for (int k1 = -d + k1start; k1 <= d - k1end; k1 += 2)
             {
@@ -617,8 +892,11 @@ public class Differ<T>
         List<T> best_longtext_b = new ArrayList<T>();
         List<T> best_shorttext_a = new ArrayList<T>();
         List<T> best_shorttext_b = new ArrayList<T>();
-        while ((j = listIndexOf(shorttext, seed, j + 1)) != -1)
+        int found;
+        while ((found = listIndexOf(shorttext, seed, j + 1)) != -1)
         {
+            // listIndexOf() answers relative to where the search started
+            j += found + 1;
             int prefixLength = findCommonPrefix(longtext.subList(i, longtext.size()),
                     shorttext.subList(j, shorttext.size()));
             int suffixLength = findCommonSuffix(longtext.subList(0, i),
@@ -680,5 +958,86 @@ public class Differ<T>
     }
 
 
+    //~ Private classes .......................................................
+
+    // ----------------------------------------------------------
+    /**
+     * Hands out one integer id per group of equivalent items, using an open
+     * addressed hash table of ids.
+     */
+    private static class Interner<T>
+    {
+        // ----------------------------------------------------------
+        public Interner(Equivalence<T> equivalence, int expectedItems)
+        {
+            this.equivalence = equivalence;
+            int capacity = 16;
+            while (capacity < expectedItems * 2)
+            {
+                capacity <<= 1;
+            }
+            table = new int[capacity];
+            items = new Object[Math.max(expectedItems, 1)];
+            hashes = new int[items.length];
+        }
+
+
+        // ----------------------------------------------------------
+        /**
+         * Get the ids of the items in a list.
+         */
+        @SuppressWarnings("unchecked")
+        public int[] intern(List<T> list)
+        {
+            int[] result = new int[list.size()];
+            int mask = table.length - 1;
+            int i = 0;
+            for (T item : list)
+            {
+                int hash = equivalence.hash(item);
+                int slot = (hash ^ (hash >>> 16)) & mask;
+                int id;
+                while (true)
+                {
+                    id = table[slot] - 1;
+                    if (id < 0)
+                    {
+                        // Not seen before, so it gets the next id
+                        id = count++;
+                        table[slot] = id + 1;
+                        items[id] = item;
+                        hashes[id] = hash;
+                        break;
+                    }
+                    if (hashes[id] == hash
+                        && equivalence.equivalent((T)items[id], item))
+                    {
+                        break;
+                    }
+                    slot = (slot + 1) & mask;
+                }
+                result[i++] = id;
+            }
+            return result;
+        }
+
+
+        // ----------------------------------------------------------
+        /**
+         * Get the number of ids handed out so far.
+         */
+        public int size()
+        {
+            return count;
+        }
+
 
+        //~ Static/instance variables .........................................
+
+        private final Equivalence<T> equivalence;
+        private final int[] table;
+        private final Object[] items;
+        private final int[] hashes;
+        private int count;
+    }
 }
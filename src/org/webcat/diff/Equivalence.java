@@ -0,0 +1,39 @@
+package org.webcat.diff;
+
+//-------------------------------------------------------------------------
+/**
+ * Decides which items a diff treats as the same, along with a hash code
+ * that agrees with that decision.  Unlike a Comparator, an equivalence
+ * lets {@link Differ} map every item to a small integer once and then
+ * compare integers in its inner loops.
+ *
+ * @param <T> the type of object being compared
+ *
+ * @author Last changed by $Author$
+ * @version $Revision$, $Date$
+ */
+public interface Equivalence<T>
+{
+    //~ Methods ...............................................................
+
+    // ----------------------------------------------------------
+    /**
+     * Compute a hash code for an item.  Items that are equivalent must have
+     * the same hash code.
+     *
+     * @param item The item, which may be null
+     * @return The item's hash code.
+     */
+    int hash(T item);
+
+
+    // ----------------------------------------------------------
+    /**
+     * Tells whether two items are the same for the purposes of a diff.
+     *
+     * @param item1 The first item, which may be null
+     * @param item2 The second item, which may be null
+     * @return True if the items are equivalent.
+     */
+    boolean equivalent(T item1, T item2);
+}
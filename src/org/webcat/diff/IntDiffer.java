@@ -0,0 +1,700 @@
+/*
+ * Diff Match and Patch
+ *
+ * Copyright 2006 Google Inc.
+ * http://code.google.com/p/google-diff-match-patch/
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.webcat.diff;
+
+//-------------------------------------------------------------------------
+/**
+ * The same diff as {@link Differ}, run on two arrays of interned item ids,
+ * with patience diff as an alternative to Myers bisection.
+ * Ranges of the arrays stand in for the sublists Differ creates, and the
+ * result is a list of runs (an operation and a length) in order, which
+ * together walk both arrays from start to end.
+ *
+ * @author fraser@google.com (Neil Fraser)
+ * @author Last changed by $Author$
+ * @version $Revision$, $Date$
+ */
+final class IntDiffer
+{
+    //~ Constructors ..........................................................
+
+    // ----------------------------------------------------------
+    /**
+     * Diff two arrays of item ids.
+     *
+     * @param text1 Old ids to be diffed.
+     * @param text2 New ids to be diffed.
+     * @param ids The number of different ids; every id is less than this.
+     * @param algorithm How to find the differences.
+     * @param deadline Time at which bisection settles for a coarse diff.
+     */
+    IntDiffer(int[] text1, int[] text2, int ids, Differ.Algorithm algorithm,
+        long deadline)
+    {
+        this.text1 = text1;
+        this.text2 = text2;
+        this.deadline = deadline;
+        operations = new Diff.Operation[16];
+        lengths = new int[16];
+        if (algorithm == Differ.Algorithm.PATIENCE)
+        {
+            counts1 = new int[ids];
+            counts2 = new int[ids];
+            where2 = new int[ids];
+        }
+        diff(0, text1.length, 0, text2.length);
+    }
+
+
+    //~ Methods ...............................................................
+
+    // ----------------------------------------------------------
+    /**
+     * Get the number of runs in the result.
+     * @return The number of runs.
+     */
+    int size()
+    {
+        return size;
+    }
+
+
+    // ----------------------------------------------------------
+    /**
+     * Get the operation of a run.
+     * @param run The run's index.
+     * @return The operation.
+     */
+    Diff.Operation operation(int run)
+    {
+        return operations[run];
+    }
+
+
+    // ----------------------------------------------------------
+    /**
+     * Get the number of items covered by a run.
+     * @param run The run's index.
+     * @return The length.
+     */
+    int length(int run)
+    {
+        return lengths[run];
+    }
+
+
+    // ----------------------------------------------------------
+    /**
+     * Tells whether bisection ran out of time at some point.
+     * @return True if the deadline was hit.
+     */
+    boolean isTimedOut()
+    {
+        return timedOut;
+    }
+
+
+    // ----------------------------------------------------------
+    /**
+     * Find the differences between text1[start1, end1) and
+     * text2[start2, end2). Simplifies the problem by stripping any common
+     * prefix or suffix off the ranges before diffing.
+     */
+    private void diff(int start1, int end1, int start2, int end2)
+    {
+        // Trim off common prefix (speedup).
+        int commonlength = commonPrefix(start1, end1, start2, end2);
+        add(Diff.Operation.EQUAL, commonlength);
+        start1 += commonlength;
+        start2 += commonlength;
+
+        // Trim off common suffix (speedup).
+        commonlength = commonSuffix(start1, end1, start2, end2);
+
+        // Compute the diff on the middle block.
+        if (counts1 != null)
+        {
+            patience(start1, end1 - commonlength, start2, end2 - commonlength);
+        }
+        else
+        {
+            compute(start1, end1 - commonlength, start2, end2 - commonlength);
+        }
+
+        // Restore the suffix.
+        add(Diff.Operation.EQUAL, commonlength);
+    }
+
+
+    // ----------------------------------------------------------
+    /**
+     * Find the differences between two ranges. Assumes that the ranges do
+     * not have any common prefix or suffix.
+     */
+    private void compute(int start1, int end1, int start2, int end2)
+    {
+        int length1 = end1 - start1;
+        int length2 = end2 - start2;
+
+        if (length1 == 0)
+        {
+            // Just add some text (speedup).
+            add(Diff.Operation.INSERT, length2);
+            return;
+        }
+
+        if (length2 == 0)
+        {
+            // Just delete some text (speedup).
+            add(Diff.Operation.DELETE, length1);
+            return;
+        }
+
+        int i;
+        if (length1 > length2)
+        {
+            i = indexOf(text1, start1, end1, text2, start2, end2);
+        }
+        else
+        {
+            i = indexOf(text2, start2, end2, text1, start1, end1);
+        }
+        if (i != -1)
+        {
+            // Shorter text is inside the longer text (speedup).
+            Diff.Operation op = (length1 > length2) ? Diff.Operation.DELETE
+                    : Diff.Operation.INSERT;
+            int shortlength = Math.min(length1, length2);
+            add(op, i);
+            add(Diff.Operation.EQUAL, shortlength);
+            add(op, Math.max(length1, length2) - i - shortlength);
+            return;
+        }
+
+        if (length1 == 1 || length2 == 1)
+        {
+            // Single character range.
+            // After the previous speedup, the character can't be an equality.
+            add(Diff.Operation.DELETE, length1);
+            add(Diff.Operation.INSERT, length2);
+            return;
+        }
+
+        // Check to see if the problem can be split in two.
+        int[] hm = halfMatch(start1, end1, start2, end2);
+        if (hm != null)
+        {
+            // Send both pairs off for separate processing.
+            diff(start1, hm[0], start2, hm[1]);
+            add(Diff.Operation.EQUAL, hm[2]);
+            diff(hm[0] + hm[2], end1, hm[1] + hm[2], end2);
+            return;
+        }
+
+        bisect(start1, end1, start2, end2);
+    }
+
+
+    // ----------------------------------------------------------
+    /**
+     * Find the differences between two ranges by patience diff: the items
+     * that occur exactly once in each range are matched up, the longest run
+     * of those matches that keeps the same order in both ranges becomes a
+     * set of fixed equalities, and the gaps between them are diffed the
+     * same way.  Ranges without any such items fall back to
+     * {@link #compute(int, int, int, int)}.  Assumes that the ranges do not
+     * have any common prefix or suffix.
+     */
+    private void patience(int start1, int end1, int start2, int end2)
+    {
+        // Count the ids in both ranges.
+        for (int i = start1; i < end1; i++)
+        {
+            counts1[text1[i]]++;
+        }
+        for (int j = start2; j < end2; j++)
+        {
+            int id = text2[j];
+            counts2[id]++;
+            where2[id] = j;
+        }
+
+        // Pair up the ids that are unique in both, in text1 order.
+        int[] anchors1 = new int[Math.min(end1 - start1, end2 - start2)];
+        int[] anchors2 = new int[anchors1.length];
+        int anchors = 0;
+        for (int i = start1; i < end1; i++)
+        {
+            int id = text1[i];
+            if (counts1[id] == 1 && counts2[id] == 1)
+            {
+                anchors1[anchors] = i;
+                anchors2[anchors] = where2[id];
+                anchors++;
+            }
+        }
+        for (int i = start1; i < end1; i++)
+        {
+            counts1[text1[i]] = 0;
+        }
+        for (int j = start2; j < end2; j++)
+        {
+            counts2[text2[j]] = 0;
+        }
+        if (anchors == 0)
+        {
+            compute(start1, end1, start2, end2);
+            return;
+        }
+
+        // Find the longest increasing run of text2 positions by patience
+        // sorting: each pile keeps the pair with the smallest position that
+        // ends an increasing run of that length.
+        int[] piles = new int[anchors];
+        int[] previous = new int[anchors];
+        int pileCount = 0;
+        for (int n = 0; n < anchors; n++)
+        {
+            int low = 0;
+            int high = pileCount;
+            while (low < high)
+            {
+                int mid = (low + high) >>> 1;
+                if (anchors2[piles[mid]] < anchors2[n])
+                {
+                    low = mid + 1;
+                }
+                else
+                {
+                    high = mid;
+                }
+            }
+            previous[n] = low > 0 ? piles[low - 1] : -1;
+            piles[low] = n;
+            if (low == pileCount)
+            {
+                pileCount++;
+            }
+        }
+        int[] chain = new int[pileCount];
+        for (int n = piles[pileCount - 1], c = pileCount - 1; n >= 0;
+            n = previous[n], c--)
+        {
+            chain[c] = n;
+        }
+
+        // Diff the gaps between the anchors.
+        int pos1 = start1;
+        int pos2 = start2;
+        for (int n : chain)
+        {
+            diff(pos1, anchors1[n], pos2, anchors2[n]);
+            add(Diff.Operation.EQUAL, 1);
+            pos1 = anchors1[n] + 1;
+            pos2 = anchors2[n] + 1;
+        }
+        diff(pos1, end1, pos2, end2);
+    }
+
+
+    // ----------------------------------------------------------
+    /**
+     * Find the 'middle snake' of a diff, split the problem in two and
+     * recurse. See Myers 1986 paper: An O(ND) Difference Algorithm and Its
+     * Variations.
+     */
+    private void bisect(int start1, int end1, int start2, int end2)
+    {
+        int text1_length = end1 - start1;
+        int text2_length = end2 - start2;
+        int max_d = (text1_length + text2_length + 1) / 2;
+        int v_offset = max_d;
+        int v_length = 2 * max_d;
+        int[] v1 = new int[v_length];
+        int[] v2 = new int[v_length];
+        for (int x = 0; x < v_length; x++)
+        {
+            v1[x] = -1;
+            v2[x] = -1;
+        }
+        v1[v_offset + 1] = 0;
+        v2[v_offset + 1] = 0;
+        int delta = text1_length - text2_length;
+        // If the total number of characters is odd, then the front path will
+        // collide with the reverse path.
+        boolean front = (delta % 2 != 0);
+        // Offsets for start and end of k loop.
+        // Prevents mapping of space beyond the grid.
+        int k1start = 0;
+        int k1end = 0;
+        int k2start = 0;
+        int k2end = 0;
+        for (int d = 0; d < max_d; d++)
+        {
+            // Bail out if deadline is reached.
+            if (System.currentTimeMillis() > deadline)
+            {
+                timedOut = true;
+                break;
+            }
+
+            // Walk the front path one step.
+            for (int k1 = -d + k1start; k1 <= d - k1end; k1 += 2)
+            {
+                int k1_offset = v_offset + k1;
+                int x1;
+                if (k1 == -d || k1 != d
+                        && v1[k1_offset - 1] < v1[k1_offset + 1])
+                {
+                    x1 = v1[k1_offset + 1];
+                }
+                else
+                {
+                    x1 = v1[k1_offset - 1] + 1;
+                }
+                int y1 = x1 - k1;
+                while (x1 < text1_length && y1 < text2_length
+                        && text1[start1 + x1] == text2[start2 + y1])
+                {
+                    x1++;
+                    y1++;
+                }
+                v1[k1_offset] = x1;
+                if (x1 > text1_length)
+                {
+                    // Ran off the right of the graph.
+                    k1end += 2;
+                }
+                else if (y1 > text2_length)
+                {
+                    // Ran off the bottom of the graph.
+                    k1start += 2;
+                }
+                else if (front)
+                {
+                    int k2_offset = v_offset + delta - k1;
+                    if (k2_offset >= 0 && k2_offset < v_length
+                            && v2[k2_offset] != -1)
+                    {
+                        // Mirror x2 onto top-left coordinate system.
+                        int x2 = text1_length - v2[k2_offset];
+                        if (x1 >= x2)
+                        {
+                            // Overlap detected.
+                            diff(start1, start1 + x1, start2, start2 + y1);
+                            diff(start1 + x1, end1, start2 + y1, end2);
+                            return;
+                        }
+                    }
+                }
+            }
+
+            // Walk the reverse path one step.
+            for (int k2 = -d + k2start; k2 <= d - k2end; k2 += 2)
+            {
+                int k2_offset = v_offset + k2;
+                int x2;
+                if (k2 == -d || k2 != d
+                        && v2[k2_offset - 1] < v2[k2_offset + 1])
+                {
+                    x2 = v2[k2_offset + 1];
+                }
+                else
+                {
+                    x2 = v2[k2_offset - 1] + 1;
+                }
+                int y2 = x2 - k2;
+                while (x2 < text1_length && y2 < text2_length
+                        && text1[end1 - x2 - 1] == text2[end2 - y2 - 1])
+                {
+                    x2++;
+                    y2++;
+                }
+                v2[k2_offset] = x2;
+                if (x2 > text1_length)
+                {
+                    // Ran off the left of the graph.
+                    k2end += 2;
+                }
+                else if (y2 > text2_length)
+                {
+                    // Ran off the top of the graph.
+                    k2start += 2;
+                }
+                else if (!front)
+                {
+                    int k1_offset = v_offset + delta - k2;
+                    if (k1_offset >= 0 && k1_offset < v_length
+                            && v1[k1_offset] != -1)
+                    {
+                        int x1 = v1[k1_offset];
+                        int y1 = v_offset + x1 - k1_offset;
+                        // Mirror x2 onto top-left coordinate system.
+                        x2 = text1_length - x2;
+                        if (x1 >= x2)
+                        {
+                            // Overlap detected.
+                            diff(start1, start1 + x1, start2, start2 + y1);
+                            diff(start1 + x1, end1, start2 + y1, end2);
+                            return;
+                        }
+                    }
+                }
+            }
+        }
+        // Diff took too long and hit the deadline or
+        // number of diffs equals number of characters, no commonality at all.
+        add(Diff.Operation.DELETE, text1_length);
+        add(Diff.Operation.INSERT, text2_length);
+    }
+
+
+    // ----------------------------------------------------------
+    /**
+     * Determine the length of the common prefix of two ranges.
+     */
+    private int commonPrefix(int start1, int end1, int start2, int end2)
+    {
+        int n = Math.min(end1 - start1, end2 - start2);
+        for (int i = 0; i < n; i++)
+        {
+            if (text1[start1 + i] != text2[start2 + i])
+            {
+                return i;
+            }
+        }
+        return n;
+    }
+
+
+    // ----------------------------------------------------------
+    /**
+     * Determine the length of the common suffix of two ranges.
+     */
+    private int commonSuffix(int start1, int end1, int start2, int end2)
+    {
+        int n = Math.min(end1 - start1, end2 - start2);
+        for (int i = 1; i <= n; i++)
+        {
+            if (text1[end1 - i] != text2[end2 - i])
+            {
+                return i - 1;
+            }
+        }
+        return n;
+    }
+
+
+    // ----------------------------------------------------------
+    /**
+     * Do the two ranges share a run which is at least half the length of
+     * the longer range? This speedup can produce non-minimal diffs.
+     *
+     * @return Three element array, containing where the common run starts
+     *         in text1, where it starts in text2 and its length. Or null if
+     *         there was no match.
+     */
+    private int[] halfMatch(int start1, int end1, int start2, int end2)
+    {
+        boolean firstIsLonger = end1 - start1 > end2 - start2;
+        int[] longtext = firstIsLonger ? text1 : text2;
+        int longstart = firstIsLonger ? start1 : start2;
+        int longend = firstIsLonger ? end1 : end2;
+        int[] shorttext = firstIsLonger ? text2 : text1;
+        int shortstart = firstIsLonger ? start2 : start1;
+        int shortend = firstIsLonger ? end2 : end1;
+        int longlength = longend - longstart;
+        if (longlength < 4 || (shortend - shortstart) * 2 < longlength)
+        {
+            return null; // Pointless.
+        }
+
+        // First check if the second quarter is the seed for a half-match.
+        int[] hm1 = halfMatchI(longtext, longstart, longend,
+                shorttext, shortstart, shortend, (longlength + 3) / 4);
+        // Check again based on the third quarter.
+        int[] hm2 = halfMatchI(longtext, longstart, longend,
+                shorttext, shortstart, shortend, (longlength + 1) / 2);
+        int[] hm;
+        if (hm1 == null && hm2 == null)
+        {
+            return null;
+        }
+        else if (hm2 == null)
+        {
+            hm = hm1;
+        }
+        else if (hm1 == null)
+        {
+            hm = hm2;
+        }
+        else
+        {
+            // Both matched.  Select the longest.
+            hm = hm1[2] > hm2[2] ? hm1 : hm2;
+        }
+
+        // A half-match was found, sort out the return data.
+        if (firstIsLonger)
+        {
+            return hm;
+        }
+        else
+        {
+            return new int[] { hm[1], hm[0], hm[2] };
+        }
+    }
+
+
+    // ----------------------------------------------------------
+    /**
+     * Does a run of shorttext exist within longtext such that the run is at
+     * least half the length of longtext?
+     *
+     * @param i
+     *            Start of quarter length seed, relative to longstart.
+     * @return Three element array, containing where the common run starts
+     *         in longtext, where it starts in shorttext and its length. Or
+     *         null if there was no match.
+     */
+    private int[] halfMatchI(int[] longtext, int longstart, int longend,
+            int[] shorttext, int shortstart, int shortend, int i)
+    {
+        // Start with a 1/4 length run at position i as a seed.
+        int seedstart = longstart + i;
+        int seedend = seedstart + (longend - longstart) / 4;
+        int best_common = 0;
+        int best_longstart = 0;
+        int best_shortstart = 0;
+        int j = shortstart - 1;
+        int found;
+        while ((found = indexOf(shorttext, j + 1, shortend,
+                longtext, seedstart, seedend)) != -1)
+        {
+            j += found + 1;
+            int prefixLength = 0;
+            while (seedstart + prefixLength < longend
+                    && j + prefixLength < shortend
+                    && longtext[seedstart + prefixLength]
+                        == shorttext[j + prefixLength])
+            {
+                prefixLength++;
+            }
+            int suffixLength = 0;
+            while (seedstart - suffixLength > longstart
+                    && j - suffixLength > shortstart
+                    && longtext[seedstart - suffixLength - 1]
+                        == shorttext[j - suffixLength - 1])
+            {
+                suffixLength++;
+            }
+            if (best_common < suffixLength + prefixLength)
+            {
+                best_common = suffixLength + prefixLength;
+                best_longstart = seedstart - suffixLength;
+                best_shortstart = j - suffixLength;
+            }
+        }
+        if (best_common * 2 >= longend - longstart)
+        {
+            return new int[] { best_longstart, best_shortstart, best_common };
+        }
+        else
+        {
+            return null;
+        }
+    }
+
+
+    // ----------------------------------------------------------
+    /**
+     * Find the first place target[targetStart, targetEnd) occurs in
+     * source[start, end).
+     *
+     * @return The offset of the match from start, or -1 if there is none.
+     */
+    private static int indexOf(int[] source, int start, int end,
+            int[] target, int targetStart, int targetEnd)
+    {
+        int targetLength = targetEnd - targetStart;
+        int maxCandidate = end - targetLength;
+    nextCand:
+        for (int candidate = start; candidate <= maxCandidate; candidate++)
+        {
+            for (int i = 0; i < targetLength; i++)
+            {
+                if (source[candidate + i] != target[targetStart + i])
+                {
+                    continue nextCand;
+                }
+            }
+            return candidate - start;
+        }
+        return -1;  // No candidate matched the target
+    }
+
+
+    // ----------------------------------------------------------
+    /**
+     * Append a run to the result, merging it with the previous run when
+     * they have the same operation.
+     */
+    private void add(Diff.Operation operation, int length)
+    {
+        if (length == 0)
+        {
+            return;
+        }
+        if (size > 0 && operations[size - 1] == operation)
+        {
+            lengths[size - 1] += length;
+            return;
+        }
+        if (size == lengths.length)
+        {
+            Diff.Operation[] newOperations = new Diff.Operation[size * 2];
+            System.arraycopy(operations, 0, newOperations, 0, size);
+            operations = newOperations;
+            int[] newLengths = new int[size * 2];
+            System.arraycopy(lengths, 0, newLengths, 0, size);
+            lengths = newLengths;
+        }
+        operations[size] = operation;
+        lengths[size] = length;
+        size++;
+    }
+
+
+    //~ Static/instance variables .............................................
+
+    private final int[] text1;
+    private final int[] text2;
+    private final long deadline;
+    private boolean timedOut;
+
+    // Scratch space for patience diff, indexed by id
+    private int[] counts1;
+    private int[] counts2;
+    private int[] where2;
+
+    private Diff.Operation[] operations;
+    private int[] lengths;
+    private int size;
+}
@@ -26,7 +26,7 @@ import java.lang.reflect.Modifier;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
-import student.web.internal.MRUMap;
+import student.web.internal.ConcurrentMRUMap;
 
 //-------------------------------------------------------------------------
 /**
@@ -42,14 +42,15 @@ public class Fields
 {
     //~ Fields ................................................................
 
-    private static MRUMap<Class<?>, List<Field>> declaredFields =
-        new MRUMap<Class<?>, List<Field>>(100, 0);
-    private static MRUMap<Class<?>, List<Field>> publicOrProtectedFields =
-        new MRUMap<Class<?>, List<Field>>(100, 0);
-    private static MRUMap<Class<?>, List<Field>> packageFields =
-        new MRUMap<Class<?>, List<Field>>(100, 0);
-    private static MRUMap<Class<?>, List<Field>> allFields =
-        new MRUMap<Class<?>, List<Field>>(100, 0);
+    private static ConcurrentMRUMap<Class<?>, List<Field>> declaredFields =
+        new ConcurrentMRUMap<Class<?>, List<Field>>(100, 0);
+    private static ConcurrentMRUMap<Class<?>, List<Field>>
+        publicOrProtectedFields =
+        new ConcurrentMRUMap<Class<?>, List<Field>>(100, 0);
+    private static ConcurrentMRUMap<Class<?>, List<Field>> packageFields =
+        new ConcurrentMRUMap<Class<?>, List<Field>>(100, 0);
+    private static ConcurrentMRUMap<Class<?>, List<Field>> allFields =
+        new ConcurrentMRUMap<Class<?>, List<Field>>(100, 0);
 
 
     //~ Constructor ...........................................................
@@ -93,29 +94,26 @@ public class Fields
      */
     public static List<Field> fieldsIn(Class<?> clazz)
     {
-        synchronized(allFields)
+        List<Field> result = allFields.get(clazz);
+        if (result == null)
         {
-            List<Field> result = allFields.get(clazz);
-            if (result == null)
-            {
-                result = new ArrayList<Field>();
-
-                // Get all local fields, using cache if possible
-                result.addAll(fieldsDeclaredIn(clazz));
+            result = new ArrayList<Field>();
 
-                if (clazz.getSuperclass() != null)
-                {
-                    result.addAll(fieldsIn(clazz.getSuperclass()));
-                }
-                for (Class<?> superClass : clazz.getInterfaces())
-                {
-                    result.addAll(fieldsIn(superClass));
-                }
+            // Get all local fields, using cache if possible
+            result.addAll(fieldsDeclaredIn(clazz));
 
-                allFields.put(clazz, result);
+            if (clazz.getSuperclass() != null)
+            {
+                result.addAll(fieldsIn(clazz.getSuperclass()));
+            }
+            for (Class<?> superClass : clazz.getInterfaces())
+            {
+                result.addAll(fieldsIn(superClass));
             }
-            return result;
+
+            allFields.put(clazz, result);
         }
+        return result;
     }
 
 
@@ -127,16 +125,13 @@ public class Fields
      */
     public static List<Field> fieldsDeclaredIn(Class<?> clazz)
     {
-        synchronized(declaredFields)
+        List<Field> result = declaredFields.get(clazz);
+        if (result == null)
         {
-            List<Field> result = declaredFields.get(clazz);
-            if (result == null)
-            {
-                result = Arrays.asList(clazz.getDeclaredFields());
-                declaredFields.put(clazz, result);
-            }
-            return result;
+            result = Arrays.asList(clazz.getDeclaredFields());
+            declaredFields.put(clazz, result);
         }
+        return result;
     }
 
 
@@ -196,37 +191,34 @@ public class Fields
      */
     private static List<Field> publicOrProtectedFieldsIn(Class<?> clazz)
     {
-        synchronized(publicOrProtectedFields)
+        List<Field> result = publicOrProtectedFields.get(clazz);
+        if (result == null)
         {
-            List<Field> result = publicOrProtectedFields.get(clazz);
-            if (result == null)
-            {
-                result = new ArrayList<Field>();
-
-                // Get all non-private local fields, using cache if possible
-                for (Field field : fieldsDeclaredIn(clazz))
-                {
-                    if (Modifier.isPublic(field.getModifiers())
-                        || Modifier.isProtected(field.getModifiers()))
-                    {
-                        result.add(field);
-                    }
-                }
+            result = new ArrayList<Field>();
 
-                if (clazz.getSuperclass() != null)
-                {
-                    result.addAll(publicOrProtectedFieldsIn(
-                        clazz.getSuperclass()));
-                }
-                for (Class<?> superClass : clazz.getInterfaces())
+            // Get all non-private local fields, using cache if possible
+            for (Field field : fieldsDeclaredIn(clazz))
+            {
+                if (Modifier.isPublic(field.getModifiers())
+                    || Modifier.isProtected(field.getModifiers()))
                 {
-                    result.addAll(publicOrProtectedFieldsIn(superClass));
+                    result.add(field);
                 }
+            }
 
-                publicOrProtectedFields.put(clazz, result);
+            if (clazz.getSuperclass() != null)
+            {
+                result.addAll(publicOrProtectedFieldsIn(
+                    clazz.getSuperclass()));
             }
-            return result;
+            for (Class<?> superClass : clazz.getInterfaces())
+            {
+                result.addAll(publicOrProtectedFieldsIn(superClass));
+            }
+
+            publicOrProtectedFields.put(clazz, result);
         }
+        return result;
     }
 
 
@@ -243,34 +235,31 @@ public class Fields
      */
     private static List<Field> packageFieldsIn(Class<?> clazz)
     {
-        synchronized(packageFields)
+        List<Field> result = packageFields.get(clazz);
+        if (result == null)
         {
-            List<Field> result = packageFields.get(clazz);
-            if (result == null)
-            {
-                result = new ArrayList<Field>();
-
-                // Get all non-private local fields, using cache if possible
-                for (Field field : fieldsDeclaredIn(clazz))
-                {
-                    if (!Types.isPackageVisible(field.getModifiers()))
-                    {
-                        result.add(field);
-                    }
-                }
+            result = new ArrayList<Field>();
 
-                if (clazz.getSuperclass() != null)
-                {
-                    result.addAll(packageFieldsIn(clazz.getSuperclass()));
-                }
-                for (Class<?> superClass : clazz.getInterfaces())
+            // Get all non-private local fields, using cache if possible
+            for (Field field : fieldsDeclaredIn(clazz))
+            {
+                if (!Types.isPackageVisible(field.getModifiers()))
                 {
-                    result.addAll(packageFieldsIn(superClass));
+                    result.add(field);
                 }
+            }
 
-                packageFields.put(clazz, result);
+            if (clazz.getSuperclass() != null)
+            {
+                result.addAll(packageFieldsIn(clazz.getSuperclass()));
+            }
+            for (Class<?> superClass : clazz.getInterfaces())
+            {
+                result.addAll(packageFieldsIn(superClass));
             }
-            return result;
+
+            packageFields.put(clazz, result);
         }
+        return result;
     }
 }
@@ -41,7 +41,7 @@ import java.util.TreeSet;
 import java.util.jar.JarEntry;
 import java.util.jar.JarFile;
 import student.testingsupport.reflection.ReflectionError;
-import student.web.internal.MRUMap;
+import student.web.internal.ConcurrentMRUMap;
 
 //-------------------------------------------------------------------------
 /**
@@ -56,11 +56,11 @@ public class Types
 {
     //~ Fields ................................................................
 
-    private static MRUMap<ClassLoader, Map<String, PackageContent>>
+    private static ConcurrentMRUMap<ClassLoader, Map<String, PackageContent>>
         classesForPackage =
-        new MRUMap<ClassLoader, Map<String, PackageContent>>(10, 0);
-    private static MRUMap<ClassLoader, PackageContent> allClasses =
-        new MRUMap<ClassLoader, PackageContent>(10, 0);
+        new ConcurrentMRUMap<ClassLoader, Map<String, PackageContent>>(10, 0);
+    private static ConcurrentMRUMap<ClassLoader, PackageContent> allClasses =
+        new ConcurrentMRUMap<ClassLoader, PackageContent>(10, 0);
     private static Set<String> searchLocations = null;
     private static boolean searchDirectoriesOnly = true;
 
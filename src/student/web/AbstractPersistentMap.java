@@ -1,16 +1,33 @@
 package student.web;
 
+import java.util.AbstractCollection;
+import java.util.AbstractSet;
+import java.util.ArrayList;
 import java.util.Collection;
+import java.util.HashMap;
 import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.List;
 import java.util.Map;
+import java.util.NoSuchElementException;
 import java.util.Set;
 import java.util.TreeMap;
 import java.util.AbstractMap.SimpleEntry;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
 import student.web.internal.ApplicationSupportStrategy;
+import student.web.internal.BinaryStorageCodec;
 import student.web.internal.LocalityService;
 import student.web.internal.ObjectFieldExtractor;
 import student.web.internal.PersistentStorageManager;
-import student.web.internal.ReadOnlySet;
+import student.web.internal.StorageCodec;
 import student.web.internal.converters.AliasService;
 
 
@@ -79,6 +96,29 @@ public abstract class AbstractPersistentMap<T>
 
     private ApplicationSupportStrategy support;
 
+    /**
+     * The executor used to read stored values ahead of iteration, or null to
+     * read each value only when iteration reaches it.
+     */
+    private ExecutorService prefetchExecutor;
+
+    /**
+     * How many values to read ahead of iteration.
+     */
+    private int prefetchDepth;
+
+    /**
+     * The executor used to load values in bulk, or null to use the shared
+     * default one.
+     */
+    private ExecutorService loadExecutor;
+
+    /**
+     * The executor shared by all maps that have not been given their own
+     * for loading values in bulk.
+     */
+    private static ExecutorService defaultLoadExecutor;
+
     /**
      * Get the cache ID for this map.
      * @return This map's cache ID.
@@ -188,12 +228,91 @@ public abstract class AbstractPersistentMap<T>
     }
 
 
+    /**
+     * Store many values at once, as {@link #putAll(Map, boolean)} does
+     * without forcing the files to stable storage.  Unlike a series of
+     * {@link #put(String, Object)} calls, a value that cannot be stored
+     * does not stop the others from being stored, and its key keeps the
+     * value it had before instead of being removed from the store.  Once
+     * every value has been tried, the first failure is thrown.
+     * @param externalMap The values to store.
+     */
     public void putAll( Map<? extends String, ? extends T> externalMap )
     {
+        Map<String, Exception> failures = putAll( externalMap, false );
+        if ( !failures.isEmpty() )
+        {
+            Exception failure = failures.values().iterator().next();
+            if ( failure instanceof RuntimeException )
+            {
+                throw (RuntimeException)failure;
+            }
+            throw new RuntimeException( failure );
+        }
+    }
+
+
+    /**
+     * Store many values at once.  This is much faster than storing them
+     * one at a time: the store is locked once for the whole batch, and
+     * the files are written concurrently, each one to a temporary file that
+     * is then renamed into place.  A failure storing one value does not
+     * stop the others from being stored, and leaves the previously stored
+     * value for that key in place.
+     * @param externalMap The values to store.
+     * @param sync True to force each file to stable storage before this
+     *             method returns.
+     * @return The failures, keyed by the key whose value could not be
+     *         stored; empty if every value was stored.
+     */
+    public Map<String, Exception> putAll(
+        Map<? extends String, ? extends T> externalMap, boolean sync )
+    {
+        if ( loader == null )
+        {
+            loader = this.getClass().getClassLoader();
+        }
+        Map<String, PersistentStorageManager.StoredObject> batch =
+            new LinkedHashMap<String, PersistentStorageManager.StoredObject>();
         for ( Map.Entry<? extends String, ? extends T> entry : externalMap.entrySet() )
         {
-            setPersistentObject( entry.getKey(), entry.getValue() );
+            String key = entry.getKey();
+            PersistentStorageManager.StoredObject latest = context.get( key );
+            if ( latest != null )
+            {
+                latest.setValue( entry.getValue() );
+            }
+            else
+            {
+                latest = new PersistentStorageManager.StoredObject( key,
+                    PSM.sanitizeId( key ),
+                    entry.getValue(),
+                    null,
+                    0L );
+            }
+            batch.put( key, latest );
+        }
+        ExecutorService executor = loadExecutor;
+        if ( executor == null )
+        {
+            executor = defaultLoadExecutor();
+        }
+        Map<String, Exception> failures =
+            PSM.storePersistentObjects( batch, context, loader, sync, executor );
+        for ( Map.Entry<String, PersistentStorageManager.StoredObject> entry
+            : batch.entrySet() )
+        {
+            if ( failures.containsKey( entry.getKey() ) )
+            {
+                // The cached value no longer matches what is stored
+                context.remove( entry.getKey() );
+            }
+            else
+            {
+                context.put( entry.getKey(), entry.getValue() );
+            }
         }
+        return failures;
     }
 
 
@@ -204,12 +323,10 @@ public abstract class AbstractPersistentMap<T>
         String objectId = (String)key;
         assert objectId.length() > 0 : "An objectId cannot be an empty string";
         T foundObject = getPersistentObject( objectId );
-        if ( context.get( key ) != null
-            && PSM.hasFieldSetChanged( (String)key, context.get( key )
-                .timestamp() ) )
+        PersistentStorageManager.StoredObject latest = context.get( key );
+        if ( latest != null && PSM.hasFieldSetChanged( objectId, latest ) )
         {
-            PSM.refreshPersistentObject( (String)key, context,
-                context.get( key ),
+            PSM.refreshPersistentObject( objectId, context, latest,
                 typeAware.getClassLoader() );
         }
         return foundObject;
@@ -227,14 +344,14 @@ public abstract class AbstractPersistentMap<T>
 
     public int size()
     {
-        return PSM.getAllIds().size();
+        return PSM.size();
     }
 
 
     public boolean isEmpty()
     {
 
-        return PSM.getAllIds().isEmpty();
+        return PSM.size() == 0;
 
     }
 
@@ -242,11 +359,9 @@ public abstract class AbstractPersistentMap<T>
     //
     public boolean containsValue( Object value )
     {
-        for ( String id : PSM.getAllIds() )
+        for ( T persistedObject : values() )
         {
-            T persistedObject = getPersistentObject( id );
-            // Just incase the store shifted under us
-            if ( persistedObject != null && persistedObject.equals( value ) )
+            if ( persistedObject.equals( value ) )
             {
                 return true;
             }
@@ -276,36 +391,313 @@ public abstract class AbstractPersistentMap<T>
     }
 
 
+    /**
+     * Get a view of the distinct values in this map.  Values are loaded from
+     * the store one at a time as iteration reaches them, so iteration that
+     * stops early does not load the rest.  Each iteration reflects the keys
+     * in the store when it starts.  Asking for the size of this view loads
+     * every value.
+     * @return The values in this map.
+     */
     public Collection<T> values()
     {
-        Set<T> valueSet = new HashSet<T>();
-        for ( String key : PSM.getAllIds() )
+        return new AbstractCollection<T>()
         {
-            T lookup = getPersistentObject( key );
-            // Just incase the persistence store moved under us
-            if ( lookup != null )
-                valueSet.add( lookup );
-        }
-        return valueSet;
+            public Iterator<T> iterator()
+            {
+                final Iterator<Entry<String, T>> entries =
+                    new EntryIterator( true );
+                return new Iterator<T>()
+                {
+                    private Set<T> seen = new HashSet<T>();
+
+                    private T next;
+
+
+                    public boolean hasNext()
+                    {
+                        while ( next == null && entries.hasNext() )
+                        {
+                            T value = entries.next().getValue();
+                            if ( seen.add( value ) )
+                            {
+                                next = value;
+                            }
+                        }
+                        return next != null;
+                    }
+
+
+                    public T next()
+                    {
+                        if ( !hasNext() )
+                        {
+                            throw new NoSuchElementException();
+                        }
+                        T result = next;
+                        next = null;
+                        return result;
+                    }
+
+
+                    public void remove()
+                    {
+                        throw new UnsupportedOperationException();
+                    }
+                };
+            }
+
 
+            public int size()
+            {
+                return count( iterator() );
+            }
+        };
     }
 
 
+    /**
+     * Get a read-only view of the entries in this map.  Values are loaded
+     * from the store one at a time as iteration reaches them, so iteration
+     * that stops early does not load the rest.  Each iteration reflects the
+     * keys in the store when it starts.  Asking for the size of this view
+     * loads every value.
+     * @return The entries in this map.
+     */
     public Set<Entry<String, T>> entrySet()
     {
+        return new AbstractSet<Entry<String, T>>()
+        {
+            public Iterator<Entry<String, T>> iterator()
+            {
+                return new EntryIterator( true );
+            }
 
-        HashSet<Entry<String, T>> valueSet = new HashSet<Entry<String, T>>();
 
-        for ( String id : PSM.getAllIds() )
+            public int size()
+            {
+                return count( iterator() );
+            }
+        };
+    }
+
+
+    /**
+     * Receives the entries of a map, one at a time.
+     * @param <V> The type of values received.
+     */
+    public static interface EntryVisitor<V>
+    {
+        /**
+         * Receive one entry.
+         * @param key The entry's key.
+         * @param value The entry's value.
+         */
+        void visit( String key, V value );
+    }
+
+
+    /**
+     * Pass every entry in this map to a visitor, loading values one at a
+     * time.  Values that were not already cached when this method reached
+     * them are dropped from the cache once the visitor has seen them, so
+     * only one such value is held at a time, however large the store is.
+     * @param visitor The visitor to pass entries to.
+     */
+    public void forEachEntry( EntryVisitor<? super T> visitor )
+    {
+        Iterator<Entry<String, T>> entries = new EntryIterator( false );
+        while ( entries.hasNext() )
+        {
+            Entry<String, T> entry = entries.next();
+            visitor.visit( entry.getKey(), entry.getValue() );
+        }
+    }
+
+
+    /**
+     * Read stored values ahead of iteration over {@link #values()},
+     * {@link #entrySet()} and {@link #forEachEntry(EntryVisitor)}.  Reading
+     * the next values' files happens on the given executor while the
+     * current value is in use; values are still parsed, and added to this
+     * map's cache, on the iterating thread.
+     * @param executor The executor to read values on, or null to read each
+     *                 value only when iteration reaches it.
+     * @param depth How many values to read ahead.
+     */
+    public void setPrefetch( ExecutorService executor, int depth )
+    {
+        prefetchExecutor = executor;
+        prefetchDepth = ( executor == null ) ? 0 : depth;
+    }
+
+
+    /**
+     * Look up the values for many keys at once.  Values that are not
+     * already cached are read and parsed concurrently, and all of them are
+     * then added to this map's cache together.  Values that refer to other
+     * stored objects through aliases are parsed on the calling thread, so
+     * that those references resolve to the objects already in use here.
+     * @param keys The keys to look up.
+     * @return The values found, in the order of the given keys.  Keys with
+     *         no value of this map's type are left out.
+     */
+    public Map<String, T> getAll( Collection<String> keys )
+    {
+        Map<String, T> result = new LinkedHashMap<String, T>();
+        if ( loader == null )
         {
-            T lookup = getPersistentObject( id );
-            // Just incase the persistence store moved under us
-            if ( lookup != null )
+            loader = this.getClass().getClassLoader();
+        }
+        List<String> toLoad = new ArrayList<String>();
+        Set<String> queued = new HashSet<String>();
+        for ( String key : keys )
+        {
+            PersistentStorageManager.StoredObject latest = context.get( key );
+            if ( latest != null
+                && !PSM.hasFieldSetChanged( key, latest ) )
             {
-                valueSet.add( new SimpleEntry<String, T>( id, lookup ) );
+                if ( typeAware.isInstance( latest.value() ) )
+                {
+                    result.put( key, returnAsType( typeAware, latest.value() ) );
+                }
+            }
+            else if ( queued.add( key ) )
+            {
+                toLoad.add( key );
             }
         }
-        return new ReadOnlySet<Entry<String, T>>(valueSet);
+
+        List<Future<Loaded>> loads = submitLoads( toLoad );
+        for ( int i = 0; i < toLoad.size(); i++ )
+        {
+            String key = toLoad.get( i );
+            Loaded loaded = null;
+            boolean done = false;
+            if ( loads != null )
+            {
+                try
+                {
+                    loaded = loads.get( i ).get();
+                    done = true;
+                }
+                catch ( InterruptedException e )
+                {
+                    Thread.currentThread().interrupt();
+                }
+                catch ( ExecutionException e )
+                {
+                    // Load it on this thread instead
+                }
+            }
+            T value;
+            if ( !done )
+            {
+                value = getPersistentObject( key );
+            }
+            else if ( loaded == null )
+            {
+                // Not in the store
+                continue;
+            }
+            else
+            {
+                PersistentStorageManager.StoredObject latest = loaded.stored;
+                if ( latest == null )
+                {
+                    latest = PSM.getPersistentObject(
+                        key, context, loader, loaded.raw );
+                }
+                value = null;
+                if ( latest != null )
+                {
+                    value = returnAsType( typeAware, latest.value() );
+                    if ( value != latest.value() )
+                    {
+                        latest.setValue( value );
+                    }
+                    context.put( key, latest );
+                }
+            }
+            if ( value != null )
+            {
+                result.put( key, value );
+            }
+        }
+        return result;
+    }
+
+
+    /**
+     * Load the values for many keys into this map's cache at once, so that
+     * later calls to {@link #get(Object)} for them do not have to wait for
+     * the store.
+     * @param keys The keys to load.
+     * @see #getAll(Collection)
+     */
+    public void preload( Collection<String> keys )
+    {
+        getAll( keys );
+    }
+
+
+    /**
+     * Set the executor used to read and parse values concurrently in
+     * {@link #getAll(Collection)} and {@link #preload(Collection)}, and to
+     * write them concurrently in {@link #putAll(Map, boolean)}.
+     * @param executor The executor to use, or null to use one shared by all
+     *                 maps, with one thread per processor.
+     */
+    public void setLoadExecutor( ExecutorService executor )
+    {
+        loadExecutor = executor;
+    }
+
+
+    /**
+     * Turn write-behind mode on or off for the store backing this map.  In
+     * write-behind mode, {@link #put(String, Object)} returns once the value
+     * has been serialized, and the store writes pending values to disk in
+     * the background.  Use {@link #flush()} or {@link #sync()} where values
+     * must be on disk before continuing.
+     * @param enabled True to write stored values behind.
+     */
+    public void setWriteBehind( boolean enabled )
+    {
+        PSM.setWriteBehind( enabled );
+    }
+
+
+    /**
+     * Write any values that are still pending in write-behind mode to disk.
+     */
+    public void flush()
+    {
+        PSM.flush();
+    }
+
+
+    /**
+     * Write any values that are still pending in write-behind mode to disk,
+     * and force them to stable storage before returning.
+     */
+    public void sync()
+    {
+        PSM.sync();
+    }
+
+
+    /**
+     * Set the format the store backing this map writes values in from now
+     * on, such as {@link BinaryStorageCodec} for smaller files that are
+     * faster to parse.  Values already stored in another format can still
+     * be read, and are rewritten in the new format the next time they are
+     * stored.
+     * @param codec The format to write values in.
+     */
+    public void setStorageCodec( StorageCodec codec )
+    {
+        PSM.setCodec( codec );
     }
 
 
@@ -315,11 +707,25 @@ public abstract class AbstractPersistentMap<T>
      * @return The object associated with the given ID.
      */
     protected T getPersistentObject( String objectId )
+    {
+        return getPersistentObject( objectId, null );
+    }
+
+
+    /**
+     * Look up the persistent object with the given ID, parsing content read
+     * ahead of time if it is still current.
+     * @param objectId The object ID to look up.
+     * @param raw The object's content read ahead of time, or null.
+     * @return The object associated with the given ID.
+     */
+    private T getPersistentObject(
+        String objectId, PersistentStorageManager.RawObject raw )
     {
         T result = null;
         PersistentStorageManager.StoredObject latest = context.get( objectId );
         if ( latest != null
-            && !PSM.hasFieldSetChanged( objectId, latest.timestamp() ) )
+            && !PSM.hasFieldSetChanged( objectId, latest ) )
         {
 //            if ( latest.value().getClass().equals( typeAware ) )
             if( typeAware.isInstance( latest.value() ))
@@ -333,15 +739,15 @@ public abstract class AbstractPersistentMap<T>
             {
                 loader = this.getClass().getClassLoader();
             }
-            latest = PSM.getPersistentObject( objectId, context, loader );
+            latest = PSM.getPersistentObject( objectId, context, loader, raw );
             if ( latest != null )
             {
-                context.put( objectId, latest );
                 result = returnAsType( typeAware, latest.value() );
                 if ( result != latest.value() )
                 {
                     latest.setValue( result );
                 }
+                context.put( objectId, latest );
             }
         }
         return result;
@@ -415,4 +821,264 @@ public abstract class AbstractPersistentMap<T>
         PSM.removeFieldSet( objectId );
     }
 
+
+    /**
+     * Start reading and parsing the given keys concurrently.  Values that
+     * refer to aliases are only read, and left for the calling thread to
+     * parse.
+     * @return The loads, one per key in the same order, or null if they
+     *         could not be started and must be done on the calling thread.
+     */
+    private List<Future<Loaded>> submitLoads( List<String> keys )
+    {
+        if ( keys.isEmpty() )
+        {
+            return null;
+        }
+        ExecutorService executor = loadExecutor;
+        if ( executor == null )
+        {
+            executor = defaultLoadExecutor();
+        }
+        if ( executor == null )
+        {
+            return null;
+        }
+        final ClassLoader parseLoader = loader;
+        List<Future<Loaded>> loads = new ArrayList<Future<Loaded>>( keys.size() );
+        try
+        {
+            for ( final String key : keys )
+            {
+                loads.add( executor.submit( new Callable<Loaded>()
+                {
+                    public Loaded call()
+                    {
+                        PersistentStorageManager.RawObject raw =
+                            PSM.readRawObject( key );
+                        if ( raw == null )
+                        {
+                            return null;
+                        }
+                        Loaded result = new Loaded();
+                        result.raw = raw;
+                        if ( !raw.hasAliases() )
+                        {
+                            result.stored = PSM.parseRawObject( raw,
+                                new HashMap<String, PersistentStorageManager.StoredObject>(),
+                                parseLoader );
+                        }
+                        return result;
+                    }
+                } ) );
+            }
+        }
+        catch ( RejectedExecutionException e )
+        {
+            for ( Future<Loaded> load : loads )
+            {
+                load.cancel( false );
+            }
+            return null;
+        }
+        return loads;
+    }
+
+
+    private static synchronized ExecutorService defaultLoadExecutor()
+    {
+        if ( defaultLoadExecutor == null )
+        {
+            try
+            {
+                defaultLoadExecutor = Executors.newFixedThreadPool(
+                    Runtime.getRuntime().availableProcessors(),
+                    new ThreadFactory()
+                    {
+                        public Thread newThread( Runnable task )
+                        {
+                            Thread thread =
+                                new Thread( task, "persistent-map-loader" );
+                            thread.setDaemon( true );
+                            return thread;
+                        }
+                    } );
+            }
+            catch ( SecurityException e )
+            {
+                // No threads allowed here, so load on the calling thread
+            }
+        }
+        return defaultLoadExecutor;
+    }
+
+
+    /**
+     * The result of reading, and possibly parsing, one value for
+     * {@link #getAll(Collection)}.
+     */
+    private static class Loaded
+    {
+        PersistentStorageManager.RawObject raw;
+
+        PersistentStorageManager.StoredObject stored;
+    }
+
+
+    private static int count( Iterator<?> iterator )
+    {
+        int result = 0;
+        while ( iterator.hasNext() )
+        {
+            iterator.next();
+            result++;
+        }
+        return result;
+    }
+
+
+    /**
+     * Iterates over the entries in the store, loading each value only when
+     * it is reached, and optionally reading the next values ahead of time.
+     */
+    private class EntryIterator
+        implements Iterator<Entry<String, T>>
+    {
+        private Iterator<String> ids = PSM.getAllIds().iterator();
+
+        private LinkedList<String> queuedIds = new LinkedList<String>();
+
+        private LinkedList<Future<PersistentStorageManager.RawObject>> queuedReads =
+            new LinkedList<Future<PersistentStorageManager.RawObject>>();
+
+        private Entry<String, T> next;
+
+        private boolean keepInCache;
+
+        // The id of the last value returned, if it must be dropped from
+        // the cache before moving on.
+        private String evict;
+
+
+        public EntryIterator( boolean keepInCache )
+        {
+            this.keepInCache = keepInCache;
+        }
+
+
+        public boolean hasNext()
+        {
+            while ( next == null )
+            {
+                queue();
+                evictPrevious();
+                if ( queuedIds.isEmpty() )
+                {
+                    return false;
+                }
+                String id = queuedIds.removeFirst();
+                Future<PersistentStorageManager.RawObject> read =
+                    queuedReads.removeFirst();
+                boolean cached = context.containsKey( id );
+                T value = getPersistentObject( id, await( read ) );
+                if ( !keepInCache && !cached )
+                {
+                    evict = id;
+                }
+                if ( value != null )
+                {
+                    next = new SimpleEntry<String, T>( id, value );
+                }
+                else
+                {
+                    // Just incase the persistence store moved under us
+                    evictPrevious();
+                }
+            }
+            return true;
+        }
+
+
+        public Entry<String, T> next()
+        {
+            if ( !hasNext() )
+            {
+                throw new NoSuchElementException();
+            }
+            Entry<String, T> result = next;
+            next = null;
+            return result;
+        }
+
+
+        public void remove()
+        {
+            throw new UnsupportedOperationException();
+        }
+
+
+        private void queue()
+        {
+            ExecutorService executor = prefetchExecutor;
+            int depth = ( executor == null ) ? 1 : Math.max( prefetchDepth, 1 );
+            while ( queuedIds.size() < depth && ids.hasNext() )
+            {
+                final String id = ids.next();
+                Future<PersistentStorageManager.RawObject> read = null;
+                if ( executor != null )
+                {
+                    try
+                    {
+                        read = executor.submit(
+                            new Callable<PersistentStorageManager.RawObject>()
+                            {
+                                public PersistentStorageManager.RawObject call()
+                                {
+                                    return PSM.readRawObject( id );
+                                }
+                            } );
+                    }
+                    catch ( RejectedExecutionException e )
+                    {
+                        // Read it when it is reached instead
+                    }
+                }
+                queuedIds.add( id );
+                queuedReads.add( read );
+            }
+        }
+
+
+        private PersistentStorageManager.RawObject await(
+            Future<PersistentStorageManager.RawObject> read )
+        {
+            if ( read == null )
+            {
+                return null;
+            }
+            try
+            {
+                return read.get();
+            }
+            catch ( InterruptedException e )
+            {
+                Thread.currentThread().interrupt();
+            }
+            catch ( ExecutionException e )
+            {
+                // Read it again on this thread instead
+            }
+            return null;
+        }
+
+
+        private void evictPrevious()
+        {
+            if ( evict != null )
+            {
+                context.remove( evict );
+                evict = null;
+            }
+        }
+    }
 }
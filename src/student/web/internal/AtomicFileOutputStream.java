@@ -0,0 +1,337 @@
+/*==========================================================================*\
+ |  $Id$
+ |*-------------------------------------------------------------------------*|
+ |  Copyright (C) 2009-2010 Virginia Tech
+ |
+ |  This file is part of the Student-Library.
+ |
+ |  The Student-Library is free software; you can redistribute it and/or
+ |  modify it under the terms of the GNU Lesser General Public License as
+ |  published by the Free Software Foundation; either version 3 of the
+ |  License, or (at your option) any later version.
+ |
+ |  The Student-Library is distributed in the hope that it will be useful,
+ |  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ |  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ |  GNU Lesser General Public License for more details.
+ |
+ |  You should have received a copy of the GNU Lesser General Public License
+ |  along with the Student-Library; if not, see <http://www.gnu.org/licenses/>.
+\*==========================================================================*/
+
+package student.web.internal;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+//-------------------------------------------------------------------------
+/**
+ *  A buffered output stream that replaces a file only once it has been
+ *  completely written.  Output goes through a {@link FileChannel} to a
+ *  temporary file in the same directory, which {@link #close()} renames over
+ *  the destination.  Readers therefore see either the old content or the
+ *  new content, never a partial file, even if the program dies part way
+ *  through a write.  A stream that is abandoned, or {@link #abort() aborted},
+ *  leaves the destination untouched.
+ *  <p>
+ *  That guarantee relies on the platform being able to rename a file over
+ *  an existing one.  Where it cannot, the old file is renamed aside to a
+ *  temporary file first, and renamed back if the new one cannot take its
+ *  place.  If the program dies between those two renames, the destination
+ *  is missing, and its old content is only in that temporary file.
+ *  </p>
+ *  <p>
+ *  Since this is a {@link FileOutputStream}, callers can force written
+ *  content to stable storage with <code>getFD().sync()</code> after
+ *  {@link #flush()} and before {@link #close()}.
+ *  </p>
+ *
+ *  @author  agent
+ *  @author Last changed by $Author$
+ *  @version $Revision$, $Date$
+ */
+public class AtomicFileOutputStream
+    extends FileOutputStream
+{
+    //~ Instance/static variables .............................................
+
+    /** The suffix of temporary files, which are never mistaken for data. */
+    public static final String TEMP_SUFFIX = ".tmp";
+
+    /**
+     * How long a temporary file must have gone without being written to
+     * before {@link #removeStaleFiles(File)} takes it for the leftover of a
+     * stream that never finished.
+     */
+    public static final long STALE_AGE = 60 * 1000L;
+
+    // The names of temporary files, and of old files renamed aside, as
+    // File.createTempFile() names them after their destination.
+    private static final Pattern TEMP_NAME =
+        Pattern.compile( "(.+)-[0-9]+(-old)?" + Pattern.quote( TEMP_SUFFIX ) );
+
+    private static final int BUFFER_SIZE = 8192;
+
+    private final File dest;
+
+    private final File temp;
+
+    private final FileChannel channel;
+
+    private final ByteBuffer buffer = ByteBuffer.allocate( BUFFER_SIZE );
+
+    private boolean closed = false;
+
+
+    //~ Constructors ..........................................................
+
+    // ----------------------------------------------------------
+    /**
+     * Creates a new stream that will replace the given file when closed.
+     * @param dest The file to replace
+     * @throws IOException if the temporary file cannot be created
+     */
+    public AtomicFileOutputStream( File dest )
+        throws IOException
+    {
+        this( dest, File.createTempFile( dest.getName() + "-",
+            TEMP_SUFFIX, dest.getAbsoluteFile().getParentFile() ) );
+    }
+
+
+    // ----------------------------------------------------------
+    private AtomicFileOutputStream( File dest, File temp )
+        throws FileNotFoundException
+    {
+        super( temp );
+        this.dest = dest;
+        this.temp = temp;
+        channel = getChannel();
+    }
+
+
+    //~ Methods ...............................................................
+
+    // ----------------------------------------------------------
+    /**
+     * Clean up after streams that never finished because the program died
+     * while they were writing.  Temporary files that have not been written
+     * to for {@link #STALE_AGE} are deleted.  An old file that was renamed
+     * aside is put back if its destination is missing, and deleted
+     * otherwise.
+     * @param dir The directory to clean up
+     * @return The number of leftover files removed or put back
+     */
+    public static int removeStaleFiles( File dir )
+    {
+        File[] files = dir.listFiles();
+        if ( files == null )
+        {
+            return 0;
+        }
+        long staleBefore = System.currentTimeMillis() - STALE_AGE;
+        int removed = 0;
+        for ( File file : files )
+        {
+            Matcher name = TEMP_NAME.matcher( file.getName() );
+            if ( !name.matches() )
+            {
+                continue;
+            }
+            if ( name.group( 2 ) != null )
+            {
+                // Renaming aside keeps the old file's time, so its age says
+                // nothing about whether it was abandoned
+                File dest = new File( dir, name.group( 1 ) );
+                if ( dest.exists() ? file.delete() : file.renameTo( dest ) )
+                {
+                    removed++;
+                }
+            }
+            else if ( file.lastModified() < staleBefore && file.delete() )
+            {
+                removed++;
+            }
+        }
+        return removed;
+    }
+
+
+    // ----------------------------------------------------------
+    public void write( int b )
+        throws IOException
+    {
+        if ( !buffer.hasRemaining() )
+        {
+            drain();
+        }
+        buffer.put( (byte)b );
+    }
+
+
+    // ----------------------------------------------------------
+    public void write( byte[] b )
+        throws IOException
+    {
+        write( b, 0, b.length );
+    }
+
+
+    // ----------------------------------------------------------
+    public void write( byte[] b, int off, int len )
+        throws IOException
+    {
+        if ( len > buffer.remaining() )
+        {
+            drain();
+        }
+        if ( len >= buffer.capacity() )
+        {
+            ByteBuffer content = ByteBuffer.wrap( b, off, len );
+            while ( content.hasRemaining() )
+            {
+                channel.write( content );
+            }
+        }
+        else
+        {
+            buffer.put( b, off, len );
+        }
+    }
+
+
+    // ----------------------------------------------------------
+    /**
+     * Write any buffered content to the temporary file.  The destination
+     * is not changed until the stream is closed.
+     */
+    public void flush()
+        throws IOException
+    {
+        drain();
+    }
+
+
+    // ----------------------------------------------------------
+    /**
+     * Finish writing, and replace the destination file with what was
+     * written.
+     * @throws IOException if the content could not be written or the
+     *                     destination could not be replaced; the
+     *                     destination is left unchanged if so
+     */
+    public void close()
+        throws IOException
+    {
+        if ( closed )
+        {
+            return;
+        }
+        closed = true;
+        boolean replaced = false;
+        try
+        {
+            drain();
+            super.close();
+            if ( !temp.renameTo( dest ) && !replaceByRenamingAside() )
+            {
+                throw new IOException( "Cannot rename " + temp + " to " + dest );
+            }
+            replaced = true;
+        }
+        finally
+        {
+            if ( !replaced )
+            {
+                discard();
+            }
+        }
+    }
+
+
+    // ----------------------------------------------------------
+    /**
+     * Stop writing without changing the destination file, for use when the
+     * content could not be produced completely.
+     */
+    public void abort()
+    {
+        if ( !closed )
+        {
+            closed = true;
+            discard();
+        }
+    }
+
+
+    // ----------------------------------------------------------
+    /**
+     * Make sure a stream that was never closed does not replace its
+     * destination with partial content when it is collected.
+     */
+    protected void finalize()
+    {
+        abort();
+    }
+
+
+    // ----------------------------------------------------------
+    private void drain()
+        throws IOException
+    {
+        buffer.flip();
+        while ( buffer.hasRemaining() )
+        {
+            channel.write( buffer );
+        }
+        buffer.clear();
+    }
+
+
+    // ----------------------------------------------------------
+    /**
+     * Replace the destination on a platform that cannot rename a file over
+     * an existing one, by renaming the old file aside first.  The old file
+     * is put back if the new one cannot take its place.
+     * @return True if the destination was replaced
+     */
+    private boolean replaceByRenamingAside()
+    {
+        String name = temp.getName();
+        File aside = new File( temp.getParentFile(),
+            name.substring( 0, name.length() - TEMP_SUFFIX.length() )
+            + "-old" + TEMP_SUFFIX );
+        if ( !dest.renameTo( aside ) )
+        {
+            return false;
+        }
+        if ( temp.renameTo( dest ) )
+        {
+            aside.delete();
+            return true;
+        }
+        aside.renameTo( dest );
+        return false;
+    }
+
+
+    // ----------------------------------------------------------
+    private void discard()
+    {
+        try
+        {
+            super.close();
+        }
+        catch ( IOException e )
+        {
+            // Best attempt at close
+        }
+        temp.delete();
+    }
+}
@@ -0,0 +1,642 @@
+/*==========================================================================*\
+ |  $Id$
+ |*-------------------------------------------------------------------------*|
+ |  Copyright (C) 2009-2010 Virginia Tech
+ |
+ |  This file is part of the Student-Library.
+ |
+ |  The Student-Library is free software; you can redistribute it and/or
+ |  modify it under the terms of the GNU Lesser General Public License as
+ |  published by the Free Software Foundation; either version 3 of the
+ |  License, or (at your option) any later version.
+ |
+ |  The Student-Library is distributed in the hope that it will be useful,
+ |  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ |  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ |  GNU Lesser General Public License for more details.
+ |
+ |  You should have received a copy of the GNU Lesser General Public License
+ |  along with the Student-Library; if not, see <http://www.gnu.org/licenses/>.
+\*==========================================================================*/
+
+package student.web.internal;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+
+import com.thoughtworks.xstream.converters.ErrorWriter;
+import com.thoughtworks.xstream.io.ExtendedHierarchicalStreamWriter;
+import com.thoughtworks.xstream.io.HierarchicalStreamReader;
+import com.thoughtworks.xstream.io.HierarchicalStreamWriter;
+import com.thoughtworks.xstream.io.StreamException;
+
+//-------------------------------------------------------------------------
+/**
+ *  A compact binary storage format, in <code>.databin</code> files.  The
+ *  node tree is written as a sequence of tokens:
+ *  <pre>
+ *  file      := 'S' 'L' 'B' version token*
+ *  token     := START name | ATTRIBUTE name value | VALUE value | END
+ *  name      := symbol
+ *  value     := SYMBOL symbol | UUID msb lsb | TEXT text
+ *  symbol    := 0 text | index
+ *  text      := length utf8-bytes
+ *  </pre>
+ *  All integers are unsigned variable-length quantities, seven bits to a
+ *  byte, except the 64-bit halves of a UUID.  Node names, attribute names
+ *  and short values are written in full the first time they appear in a
+ *  file, and by their index in order of appearance after that, so class
+ *  and field names cost a byte or two each.  Values in the canonical form
+ *  of a UUID take 17 bytes instead of 36 characters.  Everything else is
+ *  kept exactly, so objects read back with the same ids, field sets and
+ *  aliases as from XML.
+ *
+ *  @author  agent
+ *  @author Last changed by $Author$
+ *  @version $Revision$, $Date$
+ */
+public class BinaryStorageCodec
+    implements StorageCodec
+{
+    //~ Instance/static variables .............................................
+
+    /** The extension of binary files. */
+    public static final String EXTENSION = ".databin";
+
+    private static final byte[] MAGIC = { 'S', 'L', 'B', 1 };
+
+    // Token types
+    private static final int START = 1;
+    private static final int ATTRIBUTE = 2;
+    private static final int VALUE = 3;
+    private static final int END = 4;
+
+    // Value types
+    private static final int SYMBOL = 0;
+    private static final int UUID_VALUE = 1;
+    private static final int TEXT = 2;
+
+    // Values longer than this are not added to the symbol table
+    private static final int MAX_SYMBOL_LENGTH = 64;
+
+    private static final int UUID_LENGTH = 36;
+
+
+    //~ Methods ...............................................................
+
+    // ----------------------------------------------------------
+    public String getExtension()
+    {
+        return EXTENSION;
+    }
+
+
+    // ----------------------------------------------------------
+    public HierarchicalStreamWriter createWriter( OutputStream out )
+    {
+        return new BinaryWriter( out );
+    }
+
+
+    // ----------------------------------------------------------
+    public HierarchicalStreamReader createReader( InputStream in )
+    {
+        try
+        {
+            return new BinaryReader( in );
+        }
+        catch ( IOException e )
+        {
+            throw new StreamException( e );
+        }
+    }
+
+
+    // ----------------------------------------------------------
+    /**
+     * Determine whether a value is a UUID in the exact form
+     * {@link UUID#toString()} produces, so that it can be written as two
+     * longs and read back unchanged.
+     */
+    private static boolean isCanonicalUuid( String value )
+    {
+        if ( value.length() != UUID_LENGTH )
+        {
+            return false;
+        }
+        for ( int i = 0; i < UUID_LENGTH; i++ )
+        {
+            char c = value.charAt( i );
+            if ( i == 8 || i == 13 || i == 18 || i == 23 )
+            {
+                if ( c != '-' )
+                {
+                    return false;
+                }
+            }
+            else if ( !( c >= '0' && c <= '9' ) && !( c >= 'a' && c <= 'f' ) )
+            {
+                return false;
+            }
+        }
+        return true;
+    }
+
+
+    //~ Nested classes ........................................................
+
+    // ----------------------------------------------------------
+    /**
+     * Writes node trees in the binary format.
+     */
+    private static class BinaryWriter
+        implements ExtendedHierarchicalStreamWriter
+    {
+        private final DataOutputStream out;
+
+        private final Map<String, Integer> symbols =
+            new HashMap<String, Integer>();
+
+        private boolean started = false;
+
+
+        // ----------------------------------------------------------
+        public BinaryWriter( OutputStream out )
+        {
+            this.out = new DataOutputStream( new BufferedOutputStream( out ) );
+        }
+
+
+        // ----------------------------------------------------------
+        public void startNode( String name )
+        {
+            try
+            {
+                if ( !started )
+                {
+                    out.write( MAGIC );
+                    started = true;
+                }
+                out.write( START );
+                writeSymbol( name );
+            }
+            catch ( IOException e )
+            {
+                throw new StreamException( e );
+            }
+        }
+
+
+        // ----------------------------------------------------------
+        @SuppressWarnings("rawtypes")
+        public void startNode( String name, Class clazz )
+        {
+            startNode( name );
+        }
+
+
+        // ----------------------------------------------------------
+        public void addAttribute( String name, String value )
+        {
+            try
+            {
+                out.write( ATTRIBUTE );
+                writeSymbol( name );
+                writeValue( value );
+            }
+            catch ( IOException e )
+            {
+                throw new StreamException( e );
+            }
+        }
+
+
+        // ----------------------------------------------------------
+        public void setValue( String text )
+        {
+            try
+            {
+                out.write( VALUE );
+                writeValue( text );
+            }
+            catch ( IOException e )
+            {
+                throw new StreamException( e );
+            }
+        }
+
+
+        // ----------------------------------------------------------
+        public void endNode()
+        {
+            try
+            {
+                out.write( END );
+            }
+            catch ( IOException e )
+            {
+                throw new StreamException( e );
+            }
+        }
+
+
+        // ----------------------------------------------------------
+        public void flush()
+        {
+            try
+            {
+                out.flush();
+            }
+            catch ( IOException e )
+            {
+                throw new StreamException( e );
+            }
+        }
+
+
+        // ----------------------------------------------------------
+        public void close()
+        {
+            try
+            {
+                out.close();
+            }
+            catch ( IOException e )
+            {
+                throw new StreamException( e );
+            }
+        }
+
+
+        // ----------------------------------------------------------
+        public HierarchicalStreamWriter underlyingWriter()
+        {
+            return this;
+        }
+
+
+        // ----------------------------------------------------------
+        private void writeValue( String value )
+            throws IOException
+        {
+            if ( value == null )
+            {
+                value = "";
+            }
+            if ( isCanonicalUuid( value ) )
+            {
+                UUID uuid = UUID.fromString( value );
+                out.write( UUID_VALUE );
+                out.writeLong( uuid.getMostSignificantBits() );
+                out.writeLong( uuid.getLeastSignificantBits() );
+            }
+            else if ( value.length() <= MAX_SYMBOL_LENGTH )
+            {
+                out.write( SYMBOL );
+                writeSymbol( value );
+            }
+            else
+            {
+                out.write( TEXT );
+                writeText( value );
+            }
+        }
+
+
+        // ----------------------------------------------------------
+        private void writeSymbol( String symbol )
+            throws IOException
+        {
+            Integer index = symbols.get( symbol );
+            if ( index != null )
+            {
+                writeNumber( index );
+            }
+            else
+            {
+                symbols.put( symbol, symbols.size() + 1 );
+                writeNumber( 0 );
+                writeText( symbol );
+            }
+        }
+
+
+        // ----------------------------------------------------------
+        private void writeText( String text )
+            throws IOException
+        {
+            byte[] bytes = text.getBytes( "UTF-8" );
+            writeNumber( bytes.length );
+            out.write( bytes );
+        }
+
+
+        // ----------------------------------------------------------
+        private void writeNumber( int number )
+            throws IOException
+        {
+            while ( ( number & ~0x7f ) != 0 )
+            {
+                out.write( ( number & 0x7f ) | 0x80 );
+                number >>>= 7;
+            }
+            out.write( number );
+        }
+    }
+
+
+    // ----------------------------------------------------------
+    /**
+     * One node of a tree read from the binary format.
+     */
+    private static class Node
+    {
+        String name;
+
+        List<String> attributeNames = new ArrayList<String>( 2 );
+
+        List<String> attributeValues = new ArrayList<String>( 2 );
+
+        String value = "";
+
+        List<Node> children = new ArrayList<Node>( 4 );
+
+        Node parent;
+
+        int nextChild = 0;
+    }
+
+
+    // ----------------------------------------------------------
+    /**
+     * Reads node trees in the binary format.  The whole tree is decoded up
+     * front, so moving around it never touches the stream.
+     */
+    private static class BinaryReader
+        implements HierarchicalStreamReader
+    {
+        private final List<String> symbols = new ArrayList<String>();
+
+        private Node current;
+
+
+        // ----------------------------------------------------------
+        public BinaryReader( InputStream in )
+            throws IOException
+        {
+            DataInputStream data =
+                new DataInputStream( new BufferedInputStream( in ) );
+            try
+            {
+                for ( byte expected : MAGIC )
+                {
+                    if ( data.readByte() != expected )
+                    {
+                        throw new IOException( "Not a binary store file" );
+                    }
+                }
+                current = readTree( data );
+            }
+            finally
+            {
+                data.close();
+            }
+        }
+
+
+        // ----------------------------------------------------------
+        public boolean hasMoreChildren()
+        {
+            return current.nextChild < current.children.size();
+        }
+
+
+        // ----------------------------------------------------------
+        public void moveDown()
+        {
+            current = current.children.get( current.nextChild++ );
+        }
+
+
+        // ----------------------------------------------------------
+        public void moveUp()
+        {
+            current = current.parent;
+        }
+
+
+        // ----------------------------------------------------------
+        public String getNodeName()
+        {
+            return current.name;
+        }
+
+
+        // ----------------------------------------------------------
+        public String getValue()
+        {
+            return current.value;
+        }
+
+
+        // ----------------------------------------------------------
+        public String getAttribute( String name )
+        {
+            int index = current.attributeNames.indexOf( name );
+            return index < 0 ? null : current.attributeValues.get( index );
+        }
+
+
+        // ----------------------------------------------------------
+        public String getAttribute( int index )
+        {
+            return current.attributeValues.get( index );
+        }
+
+
+        // ----------------------------------------------------------
+        public int getAttributeCount()
+        {
+            return current.attributeNames.size();
+        }
+
+
+        // ----------------------------------------------------------
+        public String getAttributeName( int index )
+        {
+            return current.attributeNames.get( index );
+        }
+
+
+        // ----------------------------------------------------------
+        @SuppressWarnings("rawtypes")
+        public Iterator getAttributeNames()
+        {
+            return current.attributeNames.iterator();
+        }
+
+
+        // ----------------------------------------------------------
+        public void appendErrors( ErrorWriter errorWriter )
+        {
+            errorWriter.add( "node", current.name );
+        }
+
+
+        // ----------------------------------------------------------
+        public void close()
+        {
+            // The stream was closed once the tree was read
+        }
+
+
+        // ----------------------------------------------------------
+        public HierarchicalStreamReader underlyingReader()
+        {
+            return this;
+        }
+
+
+        // ----------------------------------------------------------
+        private Node readTree( DataInputStream in )
+            throws IOException
+        {
+            Node root = null;
+            Node node = null;
+            int token;
+            while ( ( token = in.read() ) >= 0 )
+            {
+                switch ( token )
+                {
+                    case START:
+                        Node child = new Node();
+                        child.name = readSymbol( in );
+                        child.parent = node;
+                        if ( node == null )
+                        {
+                            if ( root != null )
+                            {
+                                throw new IOException( "More than one root node" );
+                            }
+                            root = child;
+                        }
+                        else
+                        {
+                            node.children.add( child );
+                        }
+                        node = child;
+                        break;
+                    case ATTRIBUTE:
+                        checkInNode( node );
+                        node.attributeNames.add( readSymbol( in ) );
+                        node.attributeValues.add( readValue( in ) );
+                        break;
+                    case VALUE:
+                        checkInNode( node );
+                        node.value = readValue( in );
+                        break;
+                    case END:
+                        checkInNode( node );
+                        node = node.parent;
+                        break;
+                    default:
+                        throw new IOException( "Unknown token " + token );
+                }
+            }
+            if ( root == null || node != null )
+            {
+                throw new EOFException( "Incomplete binary store file" );
+            }
+            return root;
+        }
+
+
+        // ----------------------------------------------------------
+        private static void checkInNode( Node node )
+            throws IOException
+        {
+            if ( node == null )
+            {
+                throw new IOException( "Token outside of any node" );
+            }
+        }
+
+
+        // ----------------------------------------------------------
+        private String readValue( DataInputStream in )
+            throws IOException
+        {
+            int type = in.readUnsignedByte();
+            switch ( type )
+            {
+                case SYMBOL:
+                    return readSymbol( in );
+                case UUID_VALUE:
+                    return new UUID( in.readLong(), in.readLong() ).toString();
+                case TEXT:
+                    return readText( in );
+                default:
+                    throw new IOException( "Unknown value type " + type );
+            }
+        }
+
+
+        // ----------------------------------------------------------
+        private String readSymbol( DataInputStream in )
+            throws IOException
+        {
+            int index = readNumber( in );
+            if ( index == 0 )
+            {
+                String symbol = readText( in );
+                symbols.add( symbol );
+                return symbol;
+            }
+            if ( index > symbols.size() )
+            {
+                throw new IOException( "Unknown symbol " + index );
+            }
+            return symbols.get( index - 1 );
+        }
+
+
+        // ----------------------------------------------------------
+        private static String readText( DataInputStream in )
+            throws IOException
+        {
+            byte[] bytes = new byte[readNumber( in )];
+            in.readFully( bytes );
+            return new String( bytes, "UTF-8" );
+        }
+
+
+        // ----------------------------------------------------------
+        private static int readNumber( DataInputStream in )
+            throws IOException
+        {
+            int result = 0;
+            for ( int shift = 0; shift < 32; shift += 7 )
+            {
+                int b = in.readUnsignedByte();
+                result |= ( b & 0x7f ) << shift;
+                if ( ( b & 0x80 ) == 0 )
+                {
+                    return result;
+                }
+            }
+            throw new IOException( "Malformed number" );
+        }
+    }
+}
@@ -0,0 +1,103 @@
+/*==========================================================================*\
+ |  $Id$
+ |*-------------------------------------------------------------------------*|
+ |  Copyright (C) 2009-2010 Virginia Tech
+ |
+ |  This file is part of the Student-Library.
+ |
+ |  The Student-Library is free software; you can redistribute it and/or
+ |  modify it under the terms of the GNU Lesser General Public License as
+ |  published by the Free Software Foundation; either version 3 of the
+ |  License, or (at your option) any later version.
+ |
+ |  The Student-Library is distributed in the hope that it will be useful,
+ |  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ |  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ |  GNU Lesser General Public License for more details.
+ |
+ |  You should have received a copy of the GNU Lesser General Public License
+ |  along with the Student-Library; if not, see <http://www.gnu.org/licenses/>.
+\*==========================================================================*/
+
+package student.web.internal;
+
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+
+//-------------------------------------------------------------------------
+/**
+ *  An input stream over the remaining content of a {@link ByteBuffer},
+ *  which may be a file read into memory or mapped from disk.  Since the
+ *  content is already in memory, reads never block and closing the stream
+ *  does nothing.
+ *
+ *  @author  agent
+ *  @author Last changed by $Author$
+ *  @version $Revision$, $Date$
+ */
+public class ByteBufferInputStream
+    extends InputStream
+{
+    //~ Instance/static variables .............................................
+
+    private final ByteBuffer content;
+
+
+    //~ Constructors ..........................................................
+
+    // ----------------------------------------------------------
+    /**
+     * Creates a new stream over a buffer's remaining content.
+     * @param content The content to read
+     */
+    public ByteBufferInputStream( ByteBuffer content )
+    {
+        this.content = content;
+    }
+
+
+    //~ Methods ...............................................................
+
+    // ----------------------------------------------------------
+    public int read()
+    {
+        if ( !content.hasRemaining() )
+        {
+            return -1;
+        }
+        return content.get() & 0xff;
+    }
+
+
+    // ----------------------------------------------------------
+    public int read( byte[] b, int off, int len )
+    {
+        if ( len == 0 )
+        {
+            return 0;
+        }
+        if ( !content.hasRemaining() )
+        {
+            return -1;
+        }
+        len = Math.min( len, content.remaining() );
+        content.get( b, off, len );
+        return len;
+    }
+
+
+    // ----------------------------------------------------------
+    public long skip( long n )
+    {
+        int skipped = (int)Math.max( 0L, Math.min( n, content.remaining() ) );
+        content.position( content.position() + skipped );
+        return skipped;
+    }
+
+
+    // ----------------------------------------------------------
+    public int available()
+    {
+        return content.remaining();
+    }
+}
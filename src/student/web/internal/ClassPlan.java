@@ -0,0 +1,384 @@
+/*==========================================================================*\
+ |  $Id$
+ |*-------------------------------------------------------------------------*|
+ |  Copyright (C) 2009-2010 Virginia Tech
+ |
+ |  This file is part of the Student-Library.
+ |
+ |  The Student-Library is free software; you can redistribute it and/or
+ |  modify it under the terms of the GNU Lesser General Public License as
+ |  published by the Free Software Foundation; either version 3 of the
+ |  License, or (at your option) any later version.
+ |
+ |  The Student-Library is distributed in the hope that it will be useful,
+ |  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ |  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ |  GNU Lesser General Public License for more details.
+ |
+ |  You should have received a copy of the GNU Lesser General Public License
+ |  along with the Student-Library; if not, see <http://www.gnu.org/licenses/>.
+\*==========================================================================*/
+
+package student.web.internal;
+
+import java.lang.ref.SoftReference;
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.WeakHashMap;
+
+//-------------------------------------------------------------------------
+/**
+ *  What the persistence converters need to know about a class, looked up
+ *  once: its public no-argument constructor, its optional public
+ *  <code>initializeFields()</code> method, and the fields they store, in a
+ *  fixed order, with their reflective accessors.  The fields are
+ *  the non-static, non-transient fields of the class and its superclasses,
+ *  the same ones XStream's reflection providers visit, sorted by name as
+ *  they are in a field set map.  A field hidden by one of the same name in
+ *  a subclass comes first, so the subclass's value wins when the values
+ *  are put in a map in order.
+ *  <p>
+ *  Plans are cached per class, so a class of the same name loaded by
+ *  another class loader has a plan of its own.  The cache holds classes
+ *  weakly, so it does not keep class loaders alive, and plans softly.
+ *  </p>
+ *
+ *  @author  agent
+ *  @author Last changed by $Author$
+ *  @version $Revision$, $Date$
+ */
+public class ClassPlan
+{
+    //~ Instance/static variables .............................................
+
+    private static final Map<Class<?>, SoftReference<ClassPlan>> PLANS =
+        new WeakHashMap<Class<?>, SoftReference<ClassPlan>>();
+
+    private final Constructor<?> constructor;
+
+    private final Method initializer;
+
+    // Null if the fields cannot be made accessible
+    private final Field[] fields;
+
+    private final String[] names;
+
+    // The last slot with each name, which holds the value a field set uses
+    private final Map<String, Integer> slots;
+
+
+    //~ Constructors ..........................................................
+
+    // ----------------------------------------------------------
+    private ClassPlan(
+        Constructor<?> constructor, Method initializer, Field[] fields )
+    {
+        this.constructor = constructor;
+        this.initializer = initializer;
+        this.fields = fields;
+        int size = fields == null ? 0 : fields.length;
+        names = new String[size];
+        slots = new HashMap<String, Integer>( size * 2 );
+        for ( int i = 0; i < size; i++ )
+        {
+            names[i] = fields[i].getName();
+            slots.put( names[i], i );
+        }
+    }
+
+
+    //~ Public Methods ........................................................
+
+    // ----------------------------------------------------------
+    /**
+     * Get the plan for a class.
+     * @param type The class
+     * @return The plan
+     */
+    public static ClassPlan forClass( Class<?> type )
+    {
+        ClassPlan plan = null;
+        synchronized ( PLANS )
+        {
+            SoftReference<ClassPlan> ref = PLANS.get( type );
+            if ( ref != null )
+            {
+                plan = ref.get();
+            }
+        }
+        if ( plan == null )
+        {
+            // Building a plan twice is harmless, so do it unlocked
+            plan = build( type );
+            synchronized ( PLANS )
+            {
+                PLANS.put( type, new SoftReference<ClassPlan>( plan ) );
+            }
+        }
+        return plan;
+    }
+
+
+    // ----------------------------------------------------------
+    /**
+     * Create an instance of the class with its public no-argument
+     * constructor.
+     * @return The new instance, or null if the class has no such
+     *         constructor or it failed
+     */
+    public Object newInstance()
+    {
+        if ( constructor == null )
+        {
+            return null;
+        }
+        try
+        {
+            return constructor.newInstance();
+        }
+        catch ( Exception e )
+        {
+            return null;
+        }
+    }
+
+
+    // ----------------------------------------------------------
+    /**
+     * Call an object's public <code>initializeFields()</code> method, if
+     * its class has one, so that it can set up fields that a stored
+     * version may not have.  Exceptions it throws are ignored.
+     * @param object The object, which must be an instance of the class
+     */
+    public void initialize( Object object )
+    {
+        if ( initializer != null )
+        {
+            try
+            {
+                initializer.invoke( object );
+            }
+            catch ( Exception e )
+            {
+                // It is only a courtesy
+            }
+        }
+    }
+
+
+    // ----------------------------------------------------------
+    /**
+     * Tell whether the fields can be accessed through this plan.  If not,
+     * the plan has no slots, and the reflection provider must be used
+     * instead.
+     * @return True if the fields are accessible
+     */
+    public boolean hasFields()
+    {
+        return fields != null;
+    }
+
+
+    // ----------------------------------------------------------
+    /**
+     * Get the number of fields.
+     * @return The number of slots in this plan
+     */
+    public int size()
+    {
+        return names.length;
+    }
+
+
+    // ----------------------------------------------------------
+    /**
+     * Get the name of a field.
+     * @param slot The field's slot
+     * @return The field's name
+     */
+    public String name( int slot )
+    {
+        return names[slot];
+    }
+
+
+    // ----------------------------------------------------------
+    /**
+     * Get the declared type of a field.
+     * @param slot The field's slot
+     * @return The field's type
+     */
+    public Class<?> type( int slot )
+    {
+        return fields[slot].getType();
+    }
+
+
+    // ----------------------------------------------------------
+    /**
+     * Get the class that declares a field.
+     * @param slot The field's slot
+     * @return The field's declaring class
+     */
+    public Class<?> declaringClass( int slot )
+    {
+        return fields[slot].getDeclaringClass();
+    }
+
+
+    // ----------------------------------------------------------
+    /**
+     * Find the slot holding the field with a given name.  If fields in
+     * several classes have the name, this is the subclass's.
+     * @param name The field's name
+     * @return The slot, or -1 if there is no such field
+     */
+    public int slotOf( String name )
+    {
+        Integer slot = slots.get( name );
+        return slot == null ? -1 : slot.intValue();
+    }
+
+
+    // ----------------------------------------------------------
+    /**
+     * Read the values of all of an object's fields.
+     * @param object The object, which must be an instance of the class
+     * @return The values, by slot
+     */
+    public Object[] read( Object object )
+    {
+        Object[] values = new Object[fields.length];
+        try
+        {
+            for ( int i = 0; i < fields.length; i++ )
+            {
+                values[i] = fields[i].get( object );
+            }
+        }
+        catch ( IllegalAccessException e )
+        {
+            // The fields were made accessible when the plan was built
+            throw new IllegalStateException( e );
+        }
+        return values;
+    }
+
+
+    // ----------------------------------------------------------
+    /**
+     * Turn field values into a field set map.
+     * @param values The values, by slot, as returned by {@link #read(Object)}
+     * @return A map from field name to value
+     */
+    public Map<String, Object> toFieldMap( Object[] values )
+    {
+        TreeMap<String, Object> result = new TreeMap<String, Object>();
+        for ( int i = 0; i < values.length; i++ )
+        {
+            result.put( names[i], values[i] );
+        }
+        return result;
+    }
+
+
+    // ----------------------------------------------------------
+    /**
+     * Set one field of an object.
+     * @param object The object, which must be an instance of the class
+     * @param slot The field's slot
+     * @param value The new value
+     * @return False if the value does not fit the field's type, in which
+     *         case the field is unchanged
+     */
+    public boolean write( Object object, int slot, Object value )
+    {
+        try
+        {
+            fields[slot].set( object, value );
+            return true;
+        }
+        catch ( IllegalArgumentException e )
+        {
+            return false;
+        }
+        catch ( IllegalAccessException e )
+        {
+            return false;
+        }
+    }
+
+
+    //~ Private Methods .......................................................
+
+    // ----------------------------------------------------------
+    private static ClassPlan build( Class<?> type )
+    {
+        Constructor<?> constructor = null;
+        Method initializer = null;
+        try
+        {
+            constructor = type.getConstructor();
+        }
+        catch ( Exception e )
+        {
+            // None, or not visible
+        }
+        try
+        {
+            initializer = type.getMethod( "initializeFields" );
+        }
+        catch ( Exception e )
+        {
+            // It is optional
+        }
+
+        List<Class<?>> hierarchy = new ArrayList<Class<?>>();
+        for ( Class<?> c = type; c != null && c != Object.class;
+            c = c.getSuperclass() )
+        {
+            hierarchy.add( 0, c );
+        }
+        List<Field> found = new ArrayList<Field>();
+        try
+        {
+            for ( Class<?> c : hierarchy )
+            {
+                for ( Field field : c.getDeclaredFields() )
+                {
+                    int modifiers = field.getModifiers();
+                    if ( Modifier.isStatic( modifiers )
+                        || Modifier.isTransient( modifiers ) )
+                    {
+                        continue;
+                    }
+                    field.setAccessible( true );
+                    found.add( field );
+                }
+            }
+        }
+        catch ( SecurityException e )
+        {
+            return new ClassPlan( constructor, initializer, null );
+        }
+        Field[] fields = found.toArray( new Field[found.size()] );
+        // A stable sort, so superclass fields stay ahead of hiding fields
+        Arrays.sort( fields, new Comparator<Field>()
+        {
+            public int compare( Field left, Field right )
+            {
+                return left.getName().compareTo( right.getName() );
+            }
+        } );
+        return new ClassPlan( constructor, initializer, fields );
+    }
+}
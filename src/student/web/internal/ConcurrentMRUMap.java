@@ -0,0 +1,1020 @@
+/*==========================================================================*\
+ |  $Id$
+ |*-------------------------------------------------------------------------*|
+ |  Copyright (C) 2009-2010 Virginia Tech
+ |
+ |  This file is part of the Student-Library.
+ |
+ |  The Student-Library is free software; you can redistribute it and/or
+ |  modify it under the terms of the GNU Lesser General Public License as
+ |  published by the Free Software Foundation; either version 3 of the
+ |  License, or (at your option) any later version.
+ |
+ |  The Student-Library is distributed in the hope that it will be useful,
+ |  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ |  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ |  GNU Lesser General Public License for more details.
+ |
+ |  You should have received a copy of the GNU Lesser General Public License
+ |  along with the Student-Library; if not, see <http://www.gnu.org/licenses/>.
+\*==========================================================================*/
+
+package student.web.internal;
+
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.SoftReference;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.ReentrantLock;
+
+//-------------------------------------------------------------------------
+/**
+ *  A thread-safe version of {@link MRUMap}, with the same capacity limit,
+ *  age limit and soft values.  Reads never lock: they look entries up in a
+ *  concurrent hash map, and record which entries were used in small
+ *  per-thread-striped buffers.  The recorded uses are applied to the
+ *  least-recently-used order in batches, by whichever thread finds a
+ *  buffer half full and the eviction lock free, or by the next write.
+ *  Writes take the eviction lock, so the map never holds more entries
+ *  than its capacity once a write returns.  Since uses are applied in
+ *  batches, and may be dropped when a buffer overflows, the entry evicted
+ *  is the least recently used one only approximately.
+ *  <p>
+ *  With the {@link Policy#FREQUENCY} policy, the map instead keeps the
+ *  entries that are used most often, so that a scan through many keys
+ *  that are each used once does not flush out the ones used all the time.
+ *  New entries enter a small window kept in least-recently-used order.
+ *  Entries leaving the window only displace an entry of the main region if
+ *  a {@link FrequencySketch} estimates they have been used more often.
+ *  The main region is itself split into a probation segment and a
+ *  protected segment for entries used again while on probation.
+ *  </p>
+ *  <p>
+ *  The map also counts hits, misses and evictions, where evictions include
+ *  entries removed to make room, entries that expired, and entries whose
+ *  values were reclaimed by the garbage collector.
+ *  </p>
+ *
+ *  @param <K> The type for keys
+ *  @param <V> The type for values
+ *
+ *  @author  agent
+ *  @author Last changed by $Author$
+ *  @version $Revision$, $Date$
+ */
+public class ConcurrentMRUMap<K, V>
+    implements Map<K, V>
+{
+    //~ Instance/static variables .............................................
+
+    // ----------------------------------------------------------
+    /**
+     * The ways a full map can choose which entry to evict.
+     */
+    public static enum Policy
+    {
+        /** Evict the least recently used entry. */
+        LRU,
+
+        /**
+         * Admit new entries through a small window, and keep the entries
+         * used most often, as in W-TinyLFU.
+         */
+        FREQUENCY
+    }
+
+    // The regions of a map with the FREQUENCY policy
+    private static final int WINDOW = 0;
+    private static final int PROBATION = 1;
+    private static final int PROTECTED = 2;
+
+    // The number of read buffers, which must be a power of two
+    private static final int STRIPES = 4;
+
+    // The number of uses each read buffer holds, a power of two
+    private static final int BUFFER_SIZE = 32;
+
+    private final ConcurrentHashMap<K, Node<K, V>> map;
+    private final int capacity;
+    private final long ageLimit;
+    private final ReferenceQueue<V> staleRefs = new ReferenceQueue<V>();
+
+    // Guards the two chains below and all changes to the map
+    private final ReentrantLock evictionLock = new ReentrantLock();
+
+    // Sentinel of the chain of entries in least- to most-recently used
+    // order, threaded through previous/next.  With the FREQUENCY policy,
+    // this is the probation segment, and the other two sentinels are for
+    // the window and the protected segment.
+    private final Node<K, V> mruSentinel = new Node<K, V>();
+    private final Node<K, V> windowSentinel = new Node<K, V>();
+    private final Node<K, V> protectedSentinel = new Node<K, V>();
+
+    // Null with the LRU policy
+    private final FrequencySketch sketch;
+
+    // The sizes of the regions, with the FREQUENCY policy
+    private final int[] regionSizes = new int[3];
+    private final int maxWindow;
+    private final int maxProtected;
+
+    // Sentinel of the chain of entries in oldest to newest order, threaded
+    // through older/newer
+    private final Node<K, V> ageSentinel = new Node<K, V>();
+
+    private final AtomicReferenceArray<Node<K, V>> readBuffers =
+        new AtomicReferenceArray<Node<K, V>>( STRIPES * BUFFER_SIZE );
+    private final AtomicInteger[] readCounts = new AtomicInteger[STRIPES];
+    // The number of uses drained from each buffer, guarded by the lock
+    private final int[] drainCounts = new int[STRIPES];
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong evictions = new AtomicLong();
+
+
+    //~ Constructors ..........................................................
+
+    // ----------------------------------------------------------
+    /**
+     * Creates a new ConcurrentMRUMap.
+     * @param maxCapacity The limit on the maximum number of entries this
+     *                    map should hold (or zero if there is no limit).  If
+     *                    a non-zero limit is given, then least recently used
+     *                    entries will be removed to make room for new entries
+     *                    once the map reaches this size.
+     * @param ageLimitInSeconds The maximum amount of time to hold any one
+     *                    entry (or zero if there is no limit).  If a non-zero
+     *                    limit is given, then entries that have been stored
+     *                    in the map longer than this amount of time will
+     *                    automatically be removed.  The age of an entry is
+     *                    automatically updated each time the put() method
+     *                    is used on the corresponding key.
+     */
+    public ConcurrentMRUMap( int maxCapacity, long ageLimitInSeconds )
+    {
+        this( maxCapacity, ageLimitInSeconds, Policy.LRU );
+    }
+
+
+    // ----------------------------------------------------------
+    /**
+     * Creates a new ConcurrentMRUMap with a given eviction policy.
+     * @param maxCapacity The limit on the maximum number of entries this
+     *                    map should hold (or zero if there is no limit).
+     * @param ageLimitInSeconds The maximum amount of time to hold any one
+     *                    entry (or zero if there is no limit).
+     * @param policy      How to choose the entry to remove once the map
+     *                    reaches its capacity.  Ignored when there is no
+     *                    capacity limit.
+     * @see #ConcurrentMRUMap(int, long)
+     */
+    public ConcurrentMRUMap(
+        int maxCapacity, long ageLimitInSeconds, Policy policy )
+    {
+        int initialCap = (int)( maxCapacity / 0.75f + 1 );
+        if ( initialCap < 128 )
+        {
+            initialCap = 128;
+        }
+        map = new ConcurrentHashMap<K, Node<K, V>>( initialCap );
+        capacity = maxCapacity;
+        ageLimit = ageLimitInSeconds * 1000;
+        for ( int i = 0; i < STRIPES; i++ )
+        {
+            readCounts[i] = new AtomicInteger();
+        }
+        mruSentinel.previous = mruSentinel;
+        mruSentinel.next = mruSentinel;
+        windowSentinel.previous = windowSentinel;
+        windowSentinel.next = windowSentinel;
+        protectedSentinel.previous = protectedSentinel;
+        protectedSentinel.next = protectedSentinel;
+        if ( policy == Policy.FREQUENCY && maxCapacity > 0 )
+        {
+            sketch = new FrequencySketch( maxCapacity );
+            maxWindow = Math.max( 1, maxCapacity / 100 );
+            maxProtected = ( maxCapacity - maxWindow ) * 4 / 5;
+        }
+        else
+        {
+            sketch = null;
+            maxWindow = 0;
+            maxProtected = 0;
+        }
+        ageSentinel.older = ageSentinel;
+        ageSentinel.newer = ageSentinel;
+    }
+
+
+    //~ Public methods ........................................................
+
+    // ----------------------------------------------------------
+    /**
+     * Empty the map by removing all its elements.
+     */
+    public void clear()
+    {
+        evictionLock.lock();
+        try
+        {
+            for ( Node<K, V> node : map.values() )
+            {
+                unlink( node );
+            }
+            map.clear();
+            for ( int i = 0; i < readBuffers.length(); i++ )
+            {
+                readBuffers.set( i, null );
+            }
+            for ( int i = 0; i < STRIPES; i++ )
+            {
+                drainCounts[i] = readCounts[i].get();
+            }
+            // Empty the stale reference queue completely
+            while ( staleRefs.poll() != null )
+            {
+                // Nothing else to do
+            }
+        }
+        finally
+        {
+            evictionLock.unlock();
+        }
+    }
+
+
+    // ----------------------------------------------------------
+    /**
+     * Check to see if a key is in the map.
+     * @param key The key to check.
+     * @return True if an entry for the key is stored in the map.
+     */
+    public boolean containsKey( Object key )
+    {
+        return liveNode( key ) != null;
+    }
+
+
+    // ----------------------------------------------------------
+    /**
+     * Get the time at which the value for a key was set.
+     * @param key The key to check.
+     * @return The time the key's value was set, or zero if the key is not
+     * in the map.
+     */
+    public long keyLastSetTime( Object key )
+    {
+        return getTimestampFor( key );
+    }
+
+
+    // ----------------------------------------------------------
+    /**
+     * Check to see if a value is in the map.  This operation is
+     * <b>unsupported</b> by this class.
+     * @param value The value to check.
+     * @return Always throws an UnsupportedOperationException.
+     */
+    public boolean containsValue( Object value )
+    {
+        throw new UnsupportedOperationException();
+    }
+
+
+    // ----------------------------------------------------------
+    /**
+     * Get a set of all entries stored in this map.  The set is a copy, so
+     * later changes to the map do not affect it.
+     * @return A set of all key/value pairs stored in the map.
+     */
+    public Set<Map.Entry<K, V>> entrySet()
+    {
+        cleanUp();
+        Set<Map.Entry<K, V>> result = new HashSet<Map.Entry<K, V>>();
+        for ( Node<K, V> node : map.values() )
+        {
+            V value = node.get();
+            if ( value != null )
+            {
+                result.add( new Entry<K, V>( node.key, value ) );
+            }
+        }
+        return result;
+    }
+
+
+    // ----------------------------------------------------------
+    /**
+     * Look up the value stored for a given key.
+     * @param key The key to look up.
+     * @return The value associated with the key, or null if there is none.
+     */
+    public V get( Object key )
+    {
+        Node<K, V> node = liveNode( key );
+        V result = node == null ? null : node.get();
+        if ( result == null )
+        {
+            misses.incrementAndGet();
+        }
+        else
+        {
+            hits.incrementAndGet();
+            recordUse( node );
+        }
+        return result;
+    }
+
+
+    // ----------------------------------------------------------
+    /**
+     * Look up the value stored for a given key, along with the time it
+     * was set.
+     * @param key The key to look up.
+     * @return The value and its timestamp, or null if there is none.
+     */
+    public MRUMap.ValueWithTimestamp<V> getTimestampedValue( Object key )
+    {
+        Node<K, V> node = liveNode( key );
+        V value = node == null ? null : node.get();
+        if ( value == null )
+        {
+            misses.incrementAndGet();
+            return null;
+        }
+        hits.incrementAndGet();
+        recordUse( node );
+        MRUMap.ValueWithTimestamp<V> result =
+            new MRUMap.ValueWithTimestamp<V>();
+        result.value = value;
+        result.timestamp = node.creationTime;
+        return result;
+    }
+
+
+    // ----------------------------------------------------------
+    /**
+     * Look up the timestamp associated with the cached value for a given key.
+     * @param key The key to look up.
+     * @return The timestamp value associated with the key,
+     * or 0 if there is none.
+     */
+    public long getTimestampFor( Object key )
+    {
+        Node<K, V> node = liveNode( key );
+        return node == null ? 0L : node.creationTime;
+    }
+
+
+    // ----------------------------------------------------------
+    /**
+     * Check to see if the map has any entries at all.
+     * @return True iff the map's size is zero.
+     */
+    public boolean isEmpty()
+    {
+        return size() == 0;
+    }
+
+
+    // ----------------------------------------------------------
+    /**
+     * Get a set of all the keys stored in this map.  The set cannot be
+     * changed, and reflects later changes to the map.
+     * @return A set of all this map's keys.
+     */
+    public Set<K> keySet()
+    {
+        cleanUp();
+        return Collections.unmodifiableSet( map.keySet() );
+    }
+
+
+    // ----------------------------------------------------------
+    /**
+     * Set the value associated with a given key.
+     * @param key The key to associate.
+     * @param value The value to associate with the key.
+     * @return The previous value associated with the given key, or null if
+     * there was no value associated with the key prior to the call.
+     */
+    public V put( K key, V value )
+    {
+        if ( value == null )
+        {
+            remove( key );
+            return value;
+        }
+        return store( new Node<K, V>( key, value, staleRefs ) );
+    }
+
+
+    // ----------------------------------------------------------
+    /**
+     * Set the value associated with a given key.
+     * @param key The key to associate.
+     * @param value The value to associate with the key.
+     * @return The timestamp associated with the newly inserted value,
+     * or zero is the value inserted was null.
+     */
+    public long putReturningTimestamp( K key, V value )
+    {
+        if ( value == null )
+        {
+            remove( key );
+            return 0L;
+        }
+        Node<K, V> node = new Node<K, V>( key, value, staleRefs );
+        store( node );
+        return node.creationTime;
+    }
+
+
+    // ----------------------------------------------------------
+    /**
+     * Add all the associations stored in the given map to this map.
+     * @param otherMap The map to copy key/value pairs from.
+     */
+    public void putAll( Map<? extends K, ? extends V> otherMap )
+    {
+        for ( Map.Entry<? extends K, ? extends V> entry : otherMap.entrySet() )
+        {
+            put( entry.getKey(), entry.getValue() );
+        }
+    }
+
+
+    // ----------------------------------------------------------
+    /**
+     * Remove an entry from the map.
+     * @param key The key for the association to remove.
+     * @return The value that was associated with the key prior to the call,
+     * or null if there was none.
+     */
+    public V remove( Object key )
+    {
+        evictionLock.lock();
+        try
+        {
+            Node<K, V> node = map.remove( key );
+            V result = null;
+            if ( node != null )
+            {
+                result = node.get();
+                unlink( node );
+            }
+            maintain();
+            return result;
+        }
+        finally
+        {
+            evictionLock.unlock();
+        }
+    }
+
+
+    // ----------------------------------------------------------
+    /**
+     * Get the number of entries stored in the map.
+     * @return The number of entries.
+     */
+    public int size()
+    {
+        cleanUp();
+        return map.size();
+    }
+
+
+    // ----------------------------------------------------------
+    /**
+     * Get a list of all the values stored in this map.  The list is a copy,
+     * so later changes to the map do not affect it.
+     * @return A collection of all the values.
+     */
+    public Collection<V> values()
+    {
+        cleanUp();
+        ArrayList<V> result = new ArrayList<V>( map.size() );
+        for ( Node<K, V> node : map.values() )
+        {
+            V value = node.get();
+            if ( value != null )
+            {
+                result.add( value );
+            }
+        }
+        return result;
+    }
+
+
+    // ----------------------------------------------------------
+    /**
+     * Get the number of lookups that found a value.
+     * @return The number of hits.
+     */
+    public long getHitCount()
+    {
+        return hits.get();
+    }
+
+
+    // ----------------------------------------------------------
+    /**
+     * Get the number of lookups that found no value.
+     * @return The number of misses.
+     */
+    public long getMissCount()
+    {
+        return misses.get();
+    }
+
+
+    // ----------------------------------------------------------
+    /**
+     * Get the number of entries removed by the map itself, because it was
+     * full, because they expired, or because the garbage collector reclaimed
+     * their values.
+     * @return The number of evictions.
+     */
+    public long getEvictionCount()
+    {
+        return evictions.get();
+    }
+
+
+    // ----------------------------------------------------------
+    /**
+     * Remove expired entries and entries whose values have been reclaimed,
+     * and apply all recorded uses.  Other operations do this as needed, so
+     * calling it is never necessary.
+     */
+    public void cleanUp()
+    {
+        evictionLock.lock();
+        try
+        {
+            maintain();
+        }
+        finally
+        {
+            evictionLock.unlock();
+        }
+    }
+
+
+    // ----------------------------------------------------------
+    /**
+     * Get a human-readable representation of this map.
+     * @return A human-readable representation of this map.
+     */
+    public String toString()
+    {
+        return map.toString();
+    }
+
+
+    //~ Private classes and methods ...........................................
+
+    // ----------------------------------------------------------
+    /**
+     * Find the node for a key, as long as it has not expired and its value
+     * has not been reclaimed.
+     */
+    private Node<K, V> liveNode( Object key )
+    {
+        Node<K, V> node = map.get( key );
+        if ( node == null || node.get() == null )
+        {
+            return null;
+        }
+        if ( ageLimit > 0
+            && System.currentTimeMillis() - node.creationTime > ageLimit )
+        {
+            return null;
+        }
+        return node;
+    }
+
+
+    // ----------------------------------------------------------
+    /**
+     * Add a new node, replacing any node for the same key.
+     *
+     * @return The value of the node replaced, or null if there was none
+     */
+    private V store( Node<K, V> node )
+    {
+        evictionLock.lock();
+        try
+        {
+            Node<K, V> old = map.put( node.key, node );
+            V oldValue = null;
+            int region = WINDOW;
+            if ( old != null )
+            {
+                oldValue = old.get();
+                if ( old.linked )
+                {
+                    // A replacement keeps the place of the old value
+                    region = old.region;
+                }
+                unlink( old );
+            }
+            node.linked = true;
+            if ( sketch == null )
+            {
+                node.addBefore( mruSentinel );
+            }
+            else
+            {
+                sketch.increment( node.key );
+                place( node, region );
+            }
+            node.addNewerThan( ageSentinel.older );
+            maintain();
+            return oldValue;
+        }
+        finally
+        {
+            evictionLock.unlock();
+        }
+    }
+
+
+    // ----------------------------------------------------------
+    /**
+     * Record that an entry was used, applying the recorded uses if this
+     * thread's buffer is half full and no other thread holds the lock.
+     */
+    private void recordUse( Node<K, V> node )
+    {
+        if ( capacity <= 0 )
+        {
+            // Without a capacity, the order of use is never needed
+            return;
+        }
+        int stripe = (int)Thread.currentThread().getId() & ( STRIPES - 1 );
+        int count = readCounts[stripe].getAndIncrement();
+        readBuffers.set(
+            stripe * BUFFER_SIZE + ( count & ( BUFFER_SIZE - 1 ) ), node );
+        if ( ( count & ( BUFFER_SIZE / 2 - 1 ) ) == BUFFER_SIZE / 2 - 1
+            && evictionLock.tryLock() )
+        {
+            try
+            {
+                maintain();
+            }
+            finally
+            {
+                evictionLock.unlock();
+            }
+        }
+    }
+
+
+    // ----------------------------------------------------------
+    /**
+     * Apply recorded uses, then remove reclaimed, expired and
+     * least-recently-used entries.  Must hold the eviction lock.
+     */
+    @SuppressWarnings("unchecked")
+    private void maintain()
+    {
+        for ( int stripe = 0; stripe < STRIPES; stripe++ )
+        {
+            int end = readCounts[stripe].get();
+            int start = drainCounts[stripe];
+            if ( end - start > BUFFER_SIZE )
+            {
+                // Older uses were overwritten
+                start = end - BUFFER_SIZE;
+            }
+            for ( int i = start; i != end; i++ )
+            {
+                Node<K, V> used = readBuffers.getAndSet(
+                    stripe * BUFFER_SIZE + ( i & ( BUFFER_SIZE - 1 ) ), null );
+                if ( used != null && used.linked )
+                {
+                    onUse( used );
+                }
+            }
+            drainCounts[stripe] = end;
+        }
+
+        // Drain any garbage-collected references
+        Node<K, V> stale = (Node<K, V>)staleRefs.poll();
+        while ( stale != null )
+        {
+            evict( stale );
+            stale = (Node<K, V>)staleRefs.poll();
+        }
+
+        if ( ageLimit > 0 )
+        {
+            long time = System.currentTimeMillis();
+            while ( ageSentinel.newer != ageSentinel
+                && time - ageSentinel.newer.creationTime > ageLimit )
+            {
+                evict( ageSentinel.newer );
+            }
+        }
+
+        if ( sketch != null )
+        {
+            evictByFrequency();
+        }
+        else
+        {
+            while ( capacity > 0 && map.size() > capacity
+                && mruSentinel.next != mruSentinel )
+            {
+                evict( mruSentinel.next );
+            }
+        }
+    }
+
+
+    // ----------------------------------------------------------
+    /**
+     * Apply one recorded use of an entry.  Must hold the eviction lock.
+     */
+    private void onUse( Node<K, V> node )
+    {
+        if ( sketch == null )
+        {
+            node.removeFromMruChain();
+            node.addBefore( mruSentinel );
+            return;
+        }
+        sketch.increment( node.key );
+        int region = node.region;
+        remove( node );
+        if ( region == PROBATION )
+        {
+            // Used again on probation, so protect it
+            place( node, PROTECTED );
+            while ( regionSizes[PROTECTED] > maxProtected )
+            {
+                Node<K, V> demoted = protectedSentinel.next;
+                remove( demoted );
+                place( demoted, PROBATION );
+            }
+        }
+        else
+        {
+            place( node, region );
+        }
+    }
+
+
+    // ----------------------------------------------------------
+    /**
+     * Move entries that no longer fit in the window to probation, then
+     * evict until the map is within its capacity, each time keeping
+     * whichever of the newest and least recently used probation entries
+     * has been used more often.  Must hold the eviction lock.
+     */
+    private void evictByFrequency()
+    {
+        while ( regionSizes[WINDOW] > maxWindow )
+        {
+            Node<K, V> candidate = windowSentinel.next;
+            remove( candidate );
+            place( candidate, PROBATION );
+        }
+        while ( map.size() > capacity )
+        {
+            Node<K, V> victim = mruSentinel.next;
+            Node<K, V> candidate = mruSentinel.previous;
+            if ( victim == mruSentinel )
+            {
+                // Nothing on probation
+                victim = protectedSentinel.next != protectedSentinel
+                    ? protectedSentinel.next
+                    : windowSentinel.next;
+                if ( victim == windowSentinel )
+                {
+                    return;
+                }
+            }
+            else if ( candidate != victim
+                && sketch.frequency( candidate.key )
+                    <= sketch.frequency( victim.key ) )
+            {
+                victim = candidate;
+            }
+            evict( victim );
+        }
+    }
+
+
+    // ----------------------------------------------------------
+    /**
+     * Add an entry as the most recently used one in a region of a map
+     * with the FREQUENCY policy.
+     */
+    private void place( Node<K, V> node, int region )
+    {
+        node.region = region;
+        regionSizes[region]++;
+        node.addBefore( region == WINDOW
+            ? windowSentinel
+            : region == PROTECTED ? protectedSentinel : mruSentinel );
+    }
+
+
+    // ----------------------------------------------------------
+    /**
+     * Take an entry out of its chain, keeping the region sizes current.
+     */
+    private void remove( Node<K, V> node )
+    {
+        node.removeFromMruChain();
+        if ( sketch != null )
+        {
+            regionSizes[node.region]--;
+        }
+    }
+
+
+    // ----------------------------------------------------------
+    private void evict( Node<K, V> node )
+    {
+        if ( node.linked && map.remove( node.key, node ) )
+        {
+            evictions.incrementAndGet();
+        }
+        unlink( node );
+    }
+
+
+    // ----------------------------------------------------------
+    private void unlink( Node<K, V> node )
+    {
+        if ( node.linked )
+        {
+            node.linked = false;
+            remove( node );
+            node.removeFromAgeChain();
+        }
+        // prevent the node from being added to the reference queue
+        node.clear();
+    }
+
+
+    // ----------------------------------------------------------
+    /**
+     * An immutable key/value pair, used in the sets returned by
+     * {@link ConcurrentMRUMap#entrySet()}.
+     */
+    private static class Entry<K, V>
+        implements Map.Entry<K, V>
+    {
+        // ----------------------------------------------------------
+        public Entry( K key, V value )
+        {
+            this.key = key;
+            this.value = value;
+        }
+
+        // ----------------------------------------------------------
+        public K getKey()
+        {
+            return key;
+        }
+
+        // ----------------------------------------------------------
+        public V getValue()
+        {
+            return value;
+        }
+
+        // ----------------------------------------------------------
+        public V setValue( V newValue )
+        {
+            throw new UnsupportedOperationException();
+        }
+
+        // ----------------------------------------------------------
+        public boolean equals( Object other )
+        {
+            if ( !( other instanceof Map.Entry ) )
+            {
+                return false;
+            }
+            Map.Entry<?, ?> entry = (Map.Entry<?, ?>)other;
+            return ( key == null
+                    ? entry.getKey() == null
+                    : key.equals( entry.getKey() ) )
+                && ( value == null
+                    ? entry.getValue() == null
+                    : value.equals( entry.getValue() ) );
+        }
+
+        // ----------------------------------------------------------
+        public int hashCode()
+        {
+            return ( key == null ? 0 : key.hashCode() )
+                ^ ( value == null ? 0 : value.hashCode() );
+        }
+
+        // ----------------------------------------------------------
+        public String toString()
+        {
+            return key + "=" + value;
+        }
+
+        private final K key;
+        private final V value;
+    }
+
+
+    // ----------------------------------------------------------
+    /**
+     * The value wrapper stored in the underlying map.  Nodes are threaded
+     * into both the chain of entries in order of use and the chain of
+     * entries in order of age.  Putting a value always creates a new node,
+     * so a node's creation time never changes.
+     */
+    private static class Node<K, V>
+        extends SoftReference<V>
+    {
+        // ----------------------------------------------------------
+        /**
+         * Create a sentinel node.
+         */
+        public Node()
+        {
+            super( null );
+            key = null;
+            creationTime = 0L;
+        }
+
+        // ----------------------------------------------------------
+        public Node( K theKey, V val, ReferenceQueue<V> q )
+        {
+            super( val, q );
+            key = theKey;
+            creationTime = System.currentTimeMillis();
+        }
+
+        // ----------------------------------------------------------
+        public void addBefore( Node<K, V> node )
+        {
+            next = node;
+            previous = node.previous;
+            previous.next = this;
+            node.previous = this;
+        }
+
+        // ----------------------------------------------------------
+        public void removeFromMruChain()
+        {
+            previous.next = next;
+            next.previous = previous;
+        }
+
+        // ----------------------------------------------------------
+        public void addNewerThan( Node<K, V> node )
+        {
+            older = node;
+            newer = node.newer;
+            newer.older = this;
+            node.newer = this;
+        }
+
+        // ----------------------------------------------------------
+        public void removeFromAgeChain()
+        {
+            older.newer = newer;
+            newer.older = older;
+        }
+
+        // ----------------------------------------------------------
+        public String toString()
+        {
+            V val = get();
+            return val == null ? "null" : val.toString();
+        }
+
+        // ----------------------------------------------------------
+        private final K key;
+        private final long creationTime;
+        // All of these are guarded by the map's eviction lock
+        private boolean linked;
+        private int region;
+        private Node<K, V> previous;
+        private Node<K, V> next;
+        private Node<K, V> older;
+        private Node<K, V> newer;
+    }
+}
@@ -0,0 +1,164 @@
+/*==========================================================================*\
+ |  $Id$
+ |*-------------------------------------------------------------------------*|
+ |  Copyright (C) 2009-2010 Virginia Tech
+ |
+ |  This file is part of the Student-Library.
+ |
+ |  The Student-Library is free software; you can redistribute it and/or
+ |  modify it under the terms of the GNU Lesser General Public License as
+ |  published by the Free Software Foundation; either version 3 of the
+ |  License, or (at your option) any later version.
+ |
+ |  The Student-Library is distributed in the hope that it will be useful,
+ |  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ |  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ |  GNU Lesser General Public License for more details.
+ |
+ |  You should have received a copy of the GNU Lesser General Public License
+ |  along with the Student-Library; if not, see <http://www.gnu.org/licenses/>.
+\*==========================================================================*/
+
+package student.web.internal;
+
+import java.io.File;
+import java.util.concurrent.atomic.AtomicLong;
+
+//-------------------------------------------------------------------------
+/**
+ *  Tracks changes to the objects stored in one directory with a generation
+ *  number, so that a cached object that was known to be current in the
+ *  present generation can be used without checking its file.  The
+ *  generation moves on whenever the manager for the directory stores or
+ *  removes an object, and whenever the directory's modification time
+ *  shows that something else changed it.  Files written to a temporary
+ *  file and renamed into place change the directory's modification time,
+ *  but files rewritten in place do not, so the generation can only vouch
+ *  for a file for a while: the manager checks a cached object's file
+ *  again once it was last checked a {@link #getCheckInterval() check
+ *  interval} ago.
+ *  <p>
+ *  The directory is checked at most once per check interval too, so
+ *  changes made by other processes may go unnoticed for that long.
+ *  Changes made through the manager are seen immediately.  This class is
+ *  thread-safe.
+ *  </p>
+ *
+ *  @author  agent
+ *  @author Last changed by $Author$
+ *  @version $Revision$, $Date$
+ */
+public class DirectoryChangeTracker
+{
+    //~ Instance/static variables .............................................
+
+    /** The default time between checks of the directory, in milliseconds. */
+    public static final long DEFAULT_CHECK_INTERVAL = 1000L;
+
+    // Directory modification times may only have a resolution of a second,
+    // so a directory modified within this long of a check might change
+    // again without its modification time changing.
+    private static final long MTIME_RESOLUTION = 1000L;
+
+    private final AtomicLong generation = new AtomicLong();
+
+    private volatile long checkInterval = DEFAULT_CHECK_INTERVAL;
+
+    // When the directory is due to be checked again
+    private volatile long nextCheck = 0L;
+
+    // Guarded by this
+    private File checkedDir;
+
+    private long checkedModified;
+
+
+    //~ Public Methods ........................................................
+
+    // ----------------------------------------------------------
+    /**
+     * Get the current generation of the given directory, first checking
+     * the directory for changes if it is due to be checked.
+     *
+     * @param dir The directory being tracked
+     * @return The current generation
+     */
+    public long current( File dir )
+    {
+        long now = System.currentTimeMillis();
+        if ( now >= nextCheck )
+        {
+            check( dir, now );
+        }
+        return generation.get();
+    }
+
+
+    // ----------------------------------------------------------
+    /**
+     * Start a new generation, because an object in the directory has been
+     * stored or removed.
+     *
+     * @return The new generation
+     */
+    public long changed()
+    {
+        return generation.incrementAndGet();
+    }
+
+
+    // ----------------------------------------------------------
+    /**
+     * Get the time between checks of the directory.
+     *
+     * @return The interval, in milliseconds
+     */
+    public long getCheckInterval()
+    {
+        return checkInterval;
+    }
+
+
+    // ----------------------------------------------------------
+    /**
+     * Set the time between checks of the directory, which is also how
+     * long the generation vouches for a cached object's file.  With an
+     * interval of zero, the directory is checked every time the generation
+     * is asked for, and a cached object's file every time it is read.
+     *
+     * @param checkInterval The interval, in milliseconds
+     */
+    public void setCheckInterval( long checkInterval )
+    {
+        if ( checkInterval < 0L )
+        {
+            throw new IllegalArgumentException(
+                "checkInterval must not be negative: " + checkInterval );
+        }
+        this.checkInterval = checkInterval;
+        nextCheck = 0L;
+    }
+
+
+    //~ Private Methods .......................................................
+
+    // ----------------------------------------------------------
+    private synchronized void check( File dir, long now )
+    {
+        if ( now < nextCheck )
+        {
+            // Another thread just checked
+            return;
+        }
+        long modified = dir.lastModified();
+        if ( !dir.equals( checkedDir )
+            || modified != checkedModified
+            || now - modified <= MTIME_RESOLUTION )
+        {
+            checkedDir = dir;
+            checkedModified = modified;
+            generation.incrementAndGet();
+        }
+        nextCheck = now + checkInterval;
+    }
+}
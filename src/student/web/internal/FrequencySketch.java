@@ -0,0 +1,154 @@
+/*==========================================================================*\
+ |  $Id$
+ |*-------------------------------------------------------------------------*|
+ |  Copyright (C) 2009-2010 Virginia Tech
+ |
+ |  This file is part of the Student-Library.
+ |
+ |  The Student-Library is free software; you can redistribute it and/or
+ |  modify it under the terms of the GNU Lesser General Public License as
+ |  published by the Free Software Foundation; either version 3 of the
+ |  License, or (at your option) any later version.
+ |
+ |  The Student-Library is distributed in the hope that it will be useful,
+ |  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ |  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ |  GNU Lesser General Public License for more details.
+ |
+ |  You should have received a copy of the GNU Lesser General Public License
+ |  along with the Student-Library; if not, see <http://www.gnu.org/licenses/>.
+\*==========================================================================*/
+
+package student.web.internal;
+
+//-------------------------------------------------------------------------
+/**
+ *  An estimate of how often each key has been used recently, for deciding
+ *  which of two entries a full cache should keep.  This is a count-min
+ *  sketch of 4-bit counters, sixteen to a long: each key has one counter in
+ *  each of four rows, and its estimate is the smallest of the four.  Once
+ *  ten times as many uses as the cache's capacity have been counted, all
+ *  counters are halved, so that keys that were popular long ago fade.
+ *  This class is not thread-safe.
+ *
+ *  @author  agent
+ *  @author Last changed by $Author$
+ *  @version $Revision$, $Date$
+ */
+class FrequencySketch
+{
+    //~ Instance/static variables .............................................
+
+    private static final long[] SEEDS = {
+        0xc3a5c85c97cb3127L, 0xb492b66fbe98f273L,
+        0x9ae16a3b2f90404fL, 0xcbf29ce484222325L };
+
+    private static final long RESET_MASK = 0x7777777777777777L;
+
+    private final long[] table;
+    private final int mask;
+    private final int sampleSize;
+    private int size;
+
+
+    //~ Constructors ..........................................................
+
+    // ----------------------------------------------------------
+    /**
+     * Creates a new sketch.
+     * @param capacity The number of entries in the cache it serves
+     */
+    public FrequencySketch( int capacity )
+    {
+        int length = 16;
+        while ( length < capacity && length < ( 1 << 30 ) )
+        {
+            length <<= 1;
+        }
+        table = new long[length];
+        mask = length - 1;
+        sampleSize = 10 * Math.max( capacity, 16 );
+    }
+
+
+    //~ Methods ...............................................................
+
+    // ----------------------------------------------------------
+    /**
+     * Estimate how often a key has been used.
+     * @param key The key
+     * @return The estimate, from 0 to 15
+     */
+    public int frequency( Object key )
+    {
+        int hash = spread( key.hashCode() );
+        int start = ( hash & 3 ) << 2;
+        int result = 15;
+        for ( int i = 0; i < 4; i++ )
+        {
+            int shift = ( start + i ) << 2;
+            int count = (int)( ( table[indexOf( hash, i )] >>> shift ) & 0xfL );
+            result = Math.min( result, count );
+        }
+        return result;
+    }
+
+
+    // ----------------------------------------------------------
+    /**
+     * Count one use of a key.
+     * @param key The key
+     */
+    public void increment( Object key )
+    {
+        int hash = spread( key.hashCode() );
+        int start = ( hash & 3 ) << 2;
+        boolean added = false;
+        for ( int i = 0; i < 4; i++ )
+        {
+            int index = indexOf( hash, i );
+            int shift = ( start + i ) << 2;
+            if ( ( ( table[index] >>> shift ) & 0xfL ) != 0xfL )
+            {
+                table[index] += 1L << shift;
+                added = true;
+            }
+        }
+        if ( added && ++size >= sampleSize )
+        {
+            reset();
+        }
+    }
+
+
+    // ----------------------------------------------------------
+    /**
+     * Halve every counter.
+     */
+    private void reset()
+    {
+        for ( int i = 0; i < table.length; i++ )
+        {
+            table[i] = ( table[i] >>> 1 ) & RESET_MASK;
+        }
+        size /= 2;
+    }
+
+
+    // ----------------------------------------------------------
+    private int indexOf( int hash, int row )
+    {
+        long result = ( hash + SEEDS[row] ) * SEEDS[row];
+        result += result >>> 32;
+        return (int)result & mask;
+    }
+
+
+    // ----------------------------------------------------------
+    private static int spread( int hash )
+    {
+        hash = ( ( hash >>> 16 ) ^ hash ) * 0x45d9f3b;
+        hash = ( ( hash >>> 16 ) ^ hash ) * 0x45d9f3b;
+        return ( hash >>> 16 ) ^ hash;
+    }
+}
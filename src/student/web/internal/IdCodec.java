@@ -0,0 +1,341 @@
+/*==========================================================================*\
+ |  $Id$
+ |*-------------------------------------------------------------------------*|
+ |  Copyright (C) 2009-2010 Virginia Tech
+ |
+ |  This file is part of the Student-Library.
+ |
+ |  The Student-Library is free software; you can redistribute it and/or
+ |  modify it under the terms of the GNU Lesser General Public License as
+ |  published by the Free Software Foundation; either version 3 of the
+ |  License, or (at your option) any later version.
+ |
+ |  The Student-Library is distributed in the hope that it will be useful,
+ |  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ |  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ |  GNU Lesser General Public License for more details.
+ |
+ |  You should have received a copy of the GNU Lesser General Public License
+ |  along with the Student-Library; if not, see <http://www.gnu.org/licenses/>.
+\*==========================================================================*/
+
+package student.web.internal;
+
+import java.io.UnsupportedEncodingException;
+import student.web.WebUtilities;
+
+//-------------------------------------------------------------------------
+/**
+ * Converts ids to and from the file names they are stored under.  An
+ * encoded id is the id url-encoded as UTF-8, followed by a '-' and one
+ * lower case hex digit for every four characters of the id, whose bits
+ * mark which of those characters are upper case.  That keeps ids that
+ * differ only by case apart on file systems that ignore case.
+ * <p>
+ * Both directions run in a single pass over a char array and produce
+ * exactly what {@link WebUtilities#urlEncode(String)} and
+ * {@link WebUtilities#urlDecode(String)} would, so existing files keep
+ * their names.
+ * </p>
+ *
+ * @author  agent
+ * @author Last changed by $Author$
+ * @version $Revision$, $Date$
+ */
+public final class IdCodec
+{
+    // ~ Constructor ...........................................................
+
+    // ----------------------------------------------------------
+    private IdCodec()
+    {
+        // Only static methods
+    }
+
+
+    // ~ Public Methods ........................................................
+
+    // ----------------------------------------------------------
+    /**
+     * Transforms an id into something safe to use as a file name.
+     *
+     * @param id
+     *            The id to transform
+     * @return A version of the id safe for use as a file name.
+     */
+    public static String encode( String id )
+    {
+        int length = id.length();
+        // Most ids need few escapes, so size for that case
+        char[] out = new char[length + length / 2 + 1 + ( length + 3 ) / 4];
+        int count = 0;
+        for ( int i = 0; i < length; i++ )
+        {
+            char c = id.charAt( i );
+            if ( isUnreserved( c ) )
+            {
+                out = ensure( out, count, 1 );
+                out[count++] = c;
+            }
+            else if ( c == ' ' )
+            {
+                out = ensure( out, count, 1 );
+                out[count++] = '+';
+            }
+            else
+            {
+                int codePoint = c;
+                if ( Character.isHighSurrogate( c ) && i + 1 < length
+                    && Character.isLowSurrogate( id.charAt( i + 1 ) ) )
+                {
+                    codePoint = Character.toCodePoint( c, id.charAt( ++i ) );
+                }
+                else if ( Character.isHighSurrogate( c )
+                    || Character.isLowSurrogate( c ) )
+                {
+                    // Unpaired surrogates become '?', as they do in
+                    // String.getBytes()
+                    codePoint = '?';
+                }
+                out = ensure( out, count, 12 );
+                count = appendUtf8( out, count, codePoint );
+            }
+        }
+
+        out = ensure( out, count, 1 + ( length + 3 ) / 4 );
+        out[count++] = '-';
+        int marker = 0;
+        for ( int i = 0; i < length; i++ )
+        {
+            if ( Character.isUpperCase( id.charAt( i ) ) )
+            {
+                marker += 1 << ( i % 4 );
+            }
+            if ( i % 4 == 3 )
+            {
+                out[count++] = HEX_LOWER[marker];
+                marker = 0;
+            }
+        }
+        if ( length % 4 > 0 )
+        {
+            out[count++] = HEX_LOWER[marker];
+        }
+        return new String( out, 0, count );
+    }
+
+
+    // ----------------------------------------------------------
+    /**
+     * Recovers the id that {@link #encode(String)} turned into the given
+     * file name.
+     *
+     * @param encoded
+     *            The encoded id
+     * @return The original id.
+     */
+    public static String decode( String encoded )
+    {
+        int end = encoded.length();
+        int capsStart = end;
+        int pos = encoded.lastIndexOf( '-' );
+        if ( pos > 0 )
+        {
+            end = pos;
+            capsStart = pos + 1;
+        }
+
+        char[] out = urlDecode( encoded, end );
+        int length = out.length;
+        pos = 0;
+        for ( int i = capsStart; i < encoded.length() && pos < length; i++ )
+        {
+            int digit = Character.digit( encoded.charAt( i ), 16 );
+            if ( digit < 0 )
+            {
+                throw new NumberFormatException( "For input string: \""
+                    + encoded.charAt( i ) + "\"" );
+            }
+            for ( int j = 0; j < 4 && pos < length; j++ )
+            {
+                if ( ( digit & ( 1 << j ) ) != 0 )
+                {
+                    out[pos] = Character.toUpperCase( out[pos] );
+                }
+                else
+                {
+                    out[pos] = Character.toLowerCase( out[pos] );
+                }
+                pos++;
+            }
+        }
+        return new String( out );
+    }
+
+
+    // ~ Private Methods .......................................................
+
+    // ----------------------------------------------------------
+    /**
+     * Url-decodes the first <code>end</code> characters of the given
+     * string.  Anything this does not handle itself, like a malformed
+     * escape, is passed on to {@link WebUtilities#urlDecode(String)} so
+     * that it fails the same way.
+     */
+    private static char[] urlDecode( String encoded, int end )
+    {
+        char[] out = new char[end];
+        int count = 0;
+        byte[] bytes = null;
+        for ( int i = 0; i < end; )
+        {
+            char c = encoded.charAt( i );
+            if ( c == '+' )
+            {
+                out[count++] = ' ';
+                i++;
+            }
+            else if ( c != '%' )
+            {
+                out[count++] = c;
+                i++;
+            }
+            else
+            {
+                // A run of escapes is one UTF-8 byte sequence
+                if ( bytes == null )
+                {
+                    bytes = new byte[( end - i ) / 3];
+                }
+                int size = 0;
+                while ( i + 2 < end && encoded.charAt( i ) == '%' )
+                {
+                    int high = Character.digit( encoded.charAt( i + 1 ), 16 );
+                    int low = Character.digit( encoded.charAt( i + 2 ), 16 );
+                    if ( high < 0 || low < 0 )
+                    {
+                        break;
+                    }
+                    bytes[size++] = (byte)( ( high << 4 ) + low );
+                    i += 3;
+                }
+                if ( size == 0 || ( i < end && encoded.charAt( i ) == '%' ) )
+                {
+                    return WebUtilities.urlDecode(
+                        encoded.substring( 0, end ) ).toCharArray();
+                }
+                String text = utf8( bytes, size );
+                text.getChars( 0, text.length(), out, count );
+                count += text.length();
+            }
+        }
+        if ( count == out.length )
+        {
+            return out;
+        }
+        char[] result = new char[count];
+        System.arraycopy( out, 0, result, 0, count );
+        return result;
+    }
+
+
+    // ----------------------------------------------------------
+    private static String utf8( byte[] bytes, int size )
+    {
+        try
+        {
+            return new String( bytes, 0, size, "UTF-8" );
+        }
+        catch ( UnsupportedEncodingException e )
+        {
+            throw new RuntimeException( e );
+        }
+    }
+
+
+    // ----------------------------------------------------------
+    /**
+     * Tells whether URLEncoder leaves the given character alone.
+     */
+    private static boolean isUnreserved( char c )
+    {
+        return c < 128 && UNRESERVED[c];
+    }
+
+
+    // ----------------------------------------------------------
+    /**
+     * Appends the escaped UTF-8 bytes of a code point, in upper case hex
+     * as URLEncoder writes them.
+     */
+    private static int appendUtf8( char[] out, int count, int codePoint )
+    {
+        if ( codePoint < 0x80 )
+        {
+            count = appendByte( out, count, codePoint );
+        }
+        else if ( codePoint < 0x800 )
+        {
+            count = appendByte( out, count, 0xc0 | ( codePoint >> 6 ) );
+            count = appendByte( out, count, 0x80 | ( codePoint & 0x3f ) );
+        }
+        else if ( codePoint < 0x10000 )
+        {
+            count = appendByte( out, count, 0xe0 | ( codePoint >> 12 ) );
+            count = appendByte(
+                out, count, 0x80 | ( ( codePoint >> 6 ) & 0x3f ) );
+            count = appendByte( out, count, 0x80 | ( codePoint & 0x3f ) );
+        }
+        else
+        {
+            count = appendByte( out, count, 0xf0 | ( codePoint >> 18 ) );
+            count = appendByte(
+                out, count, 0x80 | ( ( codePoint >> 12 ) & 0x3f ) );
+            count = appendByte(
+                out, count, 0x80 | ( ( codePoint >> 6 ) & 0x3f ) );
+            count = appendByte( out, count, 0x80 | ( codePoint & 0x3f ) );
+        }
+        return count;
+    }
+
+
+    // ----------------------------------------------------------
+    private static int appendByte( char[] out, int count, int b )
+    {
+        out[count++] = '%';
+        out[count++] = HEX_UPPER[( b >> 4 ) & 0xf];
+        out[count++] = HEX_UPPER[b & 0xf];
+        return count;
+    }
+
+
+    // ----------------------------------------------------------
+    private static char[] ensure( char[] out, int count, int needed )
+    {
+        if ( count + needed <= out.length )
+        {
+            return out;
+        }
+        char[] larger = new char[Math.max( out.length * 2, count + needed )];
+        System.arraycopy( out, 0, larger, 0, count );
+        return larger;
+    }
+
+
+    // ~ Instance/static variables .............................................
+
+    private static final char[] HEX_LOWER = "0123456789abcdef".toCharArray();
+
+    private static final char[] HEX_UPPER = "0123456789ABCDEF".toCharArray();
+
+    private static final boolean[] UNRESERVED = new boolean[128];
+    static
+    {
+        for ( char c = 0; c < 128; c++ )
+        {
+            UNRESERVED[c] = ( c >= 'a' && c <= 'z' ) || ( c >= 'A' && c <= 'Z' )
+                || ( c >= '0' && c <= '9' ) || c == '.' || c == '-' || c == '*'
+                || c == '_';
+        }
+    }
+}
@@ -0,0 +1,344 @@
+/*==========================================================================*\
+ |  $Id$
+ |*-------------------------------------------------------------------------*|
+ |  Copyright (C) 2009-2010 Virginia Tech
+ |
+ |  This file is part of the Student-Library.
+ |
+ |  The Student-Library is free software; you can redistribute it and/or
+ |  modify it under the terms of the GNU Lesser General Public License as
+ |  published by the Free Software Foundation; either version 3 of the
+ |  License, or (at your option) any later version.
+ |
+ |  The Student-Library is distributed in the hope that it will be useful,
+ |  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ |  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ |  GNU Lesser General Public License for more details.
+ |
+ |  You should have received a copy of the GNU Lesser General Public License
+ |  along with the Student-Library; if not, see <http://www.gnu.org/licenses/>.
+\*==========================================================================*/
+
+package student.web.internal;
+
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.SortedSet;
+import java.util.TreeSet;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+//-------------------------------------------------------------------------
+/**
+ *  The set of ids in a persistent store, along with an n-gram index over
+ *  the lower-cased ids so that case-insensitive substring searches only
+ *  look at ids sharing the fragment's rarest n-gram, rather than at every
+ *  id in the store.  Every substring of up to {@link #GRAM_LENGTH}
+ *  characters of an id is indexed.  This class is thread-safe: searches
+ *  run concurrently with each other, and additions and removals take
+ *  turns with them.
+ *
+ *  @author  agent
+ *  @author Last changed by $Author$
+ *  @version $Revision$, $Date$
+ */
+public class IdIndex
+{
+    //~ Instance/static variables .............................................
+
+    /** The longest substrings indexed. */
+    public static final int GRAM_LENGTH = 3;
+
+    private final Set<String> ids = new HashSet<String>( 256 );
+
+    // Maps each indexed substring of a lower-cased id to the ids containing
+    // it.
+    private final Map<String, Set<String>> grams =
+        new HashMap<String, Set<String>>( 1024 );
+
+    private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+
+
+    //~ Constructors ..........................................................
+
+    // ----------------------------------------------------------
+    /**
+     * Creates a new, empty index.
+     */
+    public IdIndex()
+    {
+        // Nothing to do
+    }
+
+
+    // ----------------------------------------------------------
+    /**
+     * Creates a new index holding the given ids.
+     * @param ids The ids to index
+     */
+    public IdIndex( Collection<String> ids )
+    {
+        for ( String id : ids )
+        {
+            addId( id );
+        }
+    }
+
+
+    //~ Methods ...............................................................
+
+    // ----------------------------------------------------------
+    /**
+     * Add an id to the index.
+     * @param id The id to add
+     * @return True if the id was not already in the index
+     */
+    public boolean add( String id )
+    {
+        lock.writeLock().lock();
+        try
+        {
+            return addId( id );
+        }
+        finally
+        {
+            lock.writeLock().unlock();
+        }
+    }
+
+
+    // ----------------------------------------------------------
+    /**
+     * Remove an id from the index.
+     * @param id The id to remove
+     * @return True if the id was in the index
+     */
+    public boolean remove( String id )
+    {
+        lock.writeLock().lock();
+        try
+        {
+            if ( !ids.remove( id ) )
+            {
+                return false;
+            }
+            for ( String gram : gramsOf( id.toLowerCase() ) )
+            {
+                Set<String> postings = grams.get( gram );
+                if ( postings != null )
+                {
+                    postings.remove( id );
+                    if ( postings.isEmpty() )
+                    {
+                        grams.remove( gram );
+                    }
+                }
+            }
+            return true;
+        }
+        finally
+        {
+            lock.writeLock().unlock();
+        }
+    }
+
+
+    // ----------------------------------------------------------
+    /**
+     * Get the number of ids in the index.
+     * @return The number of ids
+     */
+    public int size()
+    {
+        lock.readLock().lock();
+        try
+        {
+            return ids.size();
+        }
+        finally
+        {
+            lock.readLock().unlock();
+        }
+    }
+
+
+    // ----------------------------------------------------------
+    /**
+     * Get a copy of all of the ids in the index.
+     * @return The ids
+     */
+    public Set<String> ids()
+    {
+        lock.readLock().lock();
+        try
+        {
+            return new HashSet<String>( ids );
+        }
+        finally
+        {
+            lock.readLock().unlock();
+        }
+    }
+
+
+    // ----------------------------------------------------------
+    /**
+     * Determine whether this index holds exactly the same ids as another.
+     * @param other The index to compare against
+     * @return True if both hold the same ids
+     */
+    public boolean sameIds( IdIndex other )
+    {
+        return ids().equals( other.ids() );
+    }
+
+
+    // ----------------------------------------------------------
+    /**
+     * Get the ids containing a fragment, ignoring case, in ascending order.
+     * Only ids after a given cursor are included, and at most a given
+     * number of them, so that results can be taken a page at a time by
+     * passing the last id of one page as the cursor for the next.
+     *
+     * @param fragment The fragment to look for
+     * @param after Only include ids that sort after this one, or null to
+     *              start from the beginning
+     * @param limit The largest number of ids to return, or zero for no
+     *              limit
+     * @return The matching ids, in ascending order
+     */
+    public SortedSet<String> containing(
+        String fragment, String after, int limit )
+    {
+        fragment = fragment.toLowerCase();
+        SortedSet<String> result = new TreeSet<String>();
+        lock.readLock().lock();
+        try
+        {
+            for ( String id : candidates( fragment ) )
+            {
+                if ( ( after == null || id.compareTo( after ) > 0 )
+                    && ( fragment.length() <= GRAM_LENGTH
+                        || id.toLowerCase().contains( fragment ) ) )
+                {
+                    result.add( id );
+                    if ( limit > 0 && result.size() > limit )
+                    {
+                        result.remove( result.last() );
+                    }
+                }
+            }
+        }
+        finally
+        {
+            lock.readLock().unlock();
+        }
+        return result;
+    }
+
+
+    // ----------------------------------------------------------
+    /**
+     * Get the ids that do not contain a fragment, ignoring case.
+     * @param fragment The fragment to look for
+     * @return The ids that do not contain it
+     */
+    public Set<String> notContaining( String fragment )
+    {
+        fragment = fragment.toLowerCase();
+        lock.readLock().lock();
+        try
+        {
+            Set<String> result = new HashSet<String>( ids );
+            for ( String id : candidates( fragment ) )
+            {
+                if ( fragment.length() <= GRAM_LENGTH
+                    || id.toLowerCase().contains( fragment ) )
+                {
+                    result.remove( id );
+                }
+            }
+            return result;
+        }
+        finally
+        {
+            lock.readLock().unlock();
+        }
+    }
+
+
+    // ----------------------------------------------------------
+    /**
+     * Find the ids that might contain a lower-cased fragment: those sharing
+     * the least common of the fragment's indexed substrings.  When the
+     * fragment is no longer than {@link #GRAM_LENGTH}, the candidates are
+     * exactly the ids that contain it.  Must be called with the read lock
+     * held.
+     */
+    private Set<String> candidates( String fragment )
+    {
+        if ( fragment.length() == 0 )
+        {
+            return ids;
+        }
+        if ( fragment.length() <= GRAM_LENGTH )
+        {
+            Set<String> postings = grams.get( fragment );
+            return postings == null ? new HashSet<String>() : postings;
+        }
+        Set<String> best = null;
+        for ( int i = 0; i + GRAM_LENGTH <= fragment.length(); i++ )
+        {
+            Set<String> postings =
+                grams.get( fragment.substring( i, i + GRAM_LENGTH ) );
+            if ( postings == null )
+            {
+                return new HashSet<String>();
+            }
+            if ( best == null || postings.size() < best.size() )
+            {
+                best = postings;
+            }
+        }
+        return best;
+    }
+
+
+    // ----------------------------------------------------------
+    private boolean addId( String id )
+    {
+        if ( !ids.add( id ) )
+        {
+            return false;
+        }
+        for ( String gram : gramsOf( id.toLowerCase() ) )
+        {
+            Set<String> postings = grams.get( gram );
+            if ( postings == null )
+            {
+                postings = new HashSet<String>( 4 );
+                grams.put( gram, postings );
+            }
+            postings.add( id );
+        }
+        return true;
+    }
+
+
+    // ----------------------------------------------------------
+    private static Set<String> gramsOf( String lowerCaseId )
+    {
+        Set<String> result = new HashSet<String>();
+        int length = lowerCaseId.length();
+        for ( int i = 0; i < length; i++ )
+        {
+            for ( int n = 1; n <= GRAM_LENGTH && i + n <= length; n++ )
+            {
+                result.add( lowerCaseId.substring( i, i + n ) );
+            }
+        }
+        return result;
+    }
+}
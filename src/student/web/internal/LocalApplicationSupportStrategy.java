@@ -21,15 +21,18 @@ package student.web.internal;
 
 import java.io.File;
 import java.io.FileInputStream;
-import java.io.FileNotFoundException;
-import java.io.FileOutputStream;
+import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.util.HashMap;
 import java.util.Map;
 
 
+import com.thoughtworks.xstream.converters.reflection.PureJavaReflectionProvider;
 import com.thoughtworks.xstream.converters.reflection.ReflectionProvider;
+import com.thoughtworks.xstream.converters.reflection.Sun14ReflectionProvider;
 import com.thoughtworks.xstream.core.JVM;
 
 import student.web.ApplicationPersistentMap;
@@ -65,6 +68,20 @@ public class LocalApplicationSupportStrategy
 
     private String path = "index.zhtml";
 
+    /**
+     * Files at least this large are read through a memory mapping instead
+     * of through their channel.
+     */
+    private static final long MAP_THRESHOLD = 1L << 20;
+
+    /**
+     * True where a file cannot be renamed or deleted while a mapping of it
+     * is alive.  A mapping is only released when it is collected, so such
+     * files are never mapped, or the next store of the object could not
+     * replace its file.
+     */
+    private static final boolean MAPPING_LOCKS_FILE = mappingLocksFile();
+
 
     // ~ Constructor ...........................................................
 
@@ -204,52 +221,49 @@ public class LocalApplicationSupportStrategy
 
     public Map<String, StoredObject> getPersistentCache( String cacheId )
     {
-        Map<String, Map<String,StoredObject>> cacheStore = getCacheStore();
-        
-        Object cache = cacheStore.get( cacheId );
-        if(cache == null)
-            return null;
-        return (Map<String,StoredObject>)cache;
+        return getCacheStore().getCache( cacheId );
     }
 
 
-    private Map<String, Map<String, StoredObject>> getCacheStore()
+    // ----------------------------------------------------------
+    /**
+     * Get the persistent caches of the current session, which bound the
+     * number of objects they hold strongly and report how much they hold.
+     *
+     * @return The session's cache store
+     */
+    public PersistentCacheStore getCacheStore()
     {
         Object cacheStoreRaw = this.getSessionParameter("persistent_cache");
         if(cacheStoreRaw == null)
         {
-            cacheStoreRaw = new HashMap<String,Map<String,StoredObject>>();
+            cacheStoreRaw = new PersistentCacheStore();
             this.setSessionParameter( "persistent_cache", cacheStoreRaw );
         }
-        return (Map<String, Map<String,StoredObject>>)cacheStoreRaw;
+        return (PersistentCacheStore)cacheStoreRaw;
     }
 
 
     public Map<String,StoredObject> initPersistentCache(
         String cacheId )
     {
-        Map<String, Map<String,StoredObject>> cacheStore = getCacheStore();
-        Map<String,StoredObject> cache = new HashMap<String,StoredObject>();
-        cacheStore.put( cacheId, cache );
-        return cache;
+        return getCacheStore().createCache( cacheId );
     }
+
+
+    // ----------------------------------------------------------
+    /**
+     * Find the cache entry holding the given object, through the cache
+     * store's reverse index.
+     *
+     * @param value
+     *            The object to look for, compared by identity
+     * @return An alias naming the cache entry, or null if the object is
+     *         not cached in this session
+     */
     private Alias getAliasId(Object value)
     {
-//        Map<String, Alias> aliasMap = getInternalAliasSessionMap();
-        Map<String,Map<String,StoredObject>> allCaches = this.getCacheStore();
-        if(allCaches == null)
-            return null;
-        for(String cacheId : allCaches.keySet())
-        {
-            Map<String,StoredObject> cache  = allCaches.get( cacheId );
-            for(String cachedObject : cache.keySet())
-                if(cache.get( cachedObject ).value() == value)
-                {
-                    return new Alias(cachedObject,cacheId);
-                }
-            
-        }
-        return null;
+        return getCacheStore().getAlias( value );
     }
     public Object resolveAlias(Object value)
     {
@@ -287,20 +301,74 @@ public class LocalApplicationSupportStrategy
     }
     public ReflectionProvider getReflectionProvider()
     {
-        //Nothing special needed, let xstream pick the best one.
-        return (new JVM()).bestReflectionProvider();
+        // Let xstream pick the best one.  It only recognizes the JVM vendors
+        // it knew of when it was released, though, and on any other it
+        // falls back to a provider that cannot create objects whose class
+        // has no default constructor, so stored objects of such classes
+        // could not be read back.
+        ReflectionProvider provider = ( new JVM() ).bestReflectionProvider();
+        if ( provider.getClass() == PureJavaReflectionProvider.class )
+        {
+            try
+            {
+                Class.forName( "sun.misc.Unsafe" );
+                provider = new Sun14ReflectionProvider();
+            }
+            catch ( Throwable e )
+            {
+                // No way around constructors here, so keep the pure one
+            }
+        }
+        return provider;
     }
 
 
+    // ----------------------------------------------------------
+    /**
+     * Get the content of a stored object.  The file is read completely,
+     * through its channel, before this method returns, so the stream never
+     * blocks and does not hold the file open.  Large files are read through
+     * a memory mapping where the platform allows it, and copied out of it
+     * at once, so the stream does not keep the mapping alive.
+     *
+     * @param src
+     *            The file to read
+     * @return The file's content, or null if it cannot be read
+     */
     public InputStream getObjectSource( File src )
     {
         if(src.exists())
         {
             try
             {
-                return new FileInputStream(src);
+                FileInputStream in = new FileInputStream( src );
+                try
+                {
+                    FileChannel channel = in.getChannel();
+                    long size = channel.size();
+                    ByteBuffer content = ByteBuffer.allocate( (int)size );
+                    if ( size >= MAP_THRESHOLD && !MAPPING_LOCKS_FILE )
+                    {
+                        content.put( channel.map(
+                            FileChannel.MapMode.READ_ONLY, 0L, size ) );
+                    }
+                    else
+                    {
+                        while ( content.hasRemaining()
+                            && channel.read( content ) >= 0 )
+                        {
+                            // Keep reading
+                        }
+                    }
+                    content.flip();
+                    return new ByteBufferInputStream( content );
+                }
+                finally
+                {
+                    in.close();
+                }
             }
-            catch ( FileNotFoundException e )
+            catch ( IOException e )
             {
                 //Just return null so that we mark the file as to not be loaded
             }
@@ -309,13 +377,39 @@ public class LocalApplicationSupportStrategy
     }
 
 
+    // ----------------------------------------------------------
+    private static boolean mappingLocksFile()
+    {
+        try
+        {
+            return System.getProperty( "os.name", "" ).startsWith( "Windows" );
+        }
+        catch ( SecurityException e )
+        {
+            // Play it safe
+            return true;
+        }
+    }
+
+
+    // ----------------------------------------------------------
+    /**
+     * Get a buffered stream that replaces a stored object's file once it
+     * is closed.  Until then, the content goes to a temporary file, so a
+     * crash part way through leaves the old version in place.
+     *
+     * @param dest
+     *            The file to replace
+     * @return An {@link AtomicFileOutputStream} for the file, or null if
+     *         it cannot be written
+     */
     public OutputStream getObjectOutput( File dest )
     {
         try
         {
-            return new FileOutputStream(dest);
+            return new AtomicFileOutputStream( dest );
         }
-        catch ( FileNotFoundException e )
+        catch ( IOException e )
         {
             return null;
         }
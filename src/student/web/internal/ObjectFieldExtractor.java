@@ -67,6 +67,11 @@ public class ObjectFieldExtractor
      */
     public Map<String, Object> objectToFieldMap( Object object )
     {
+        ClassPlan plan = ClassPlan.forClass( object.getClass() );
+        if ( plan.hasFields() )
+        {
+            return plan.toFieldMap( plan.read( object ) );
+        }
         final TreeMap<String, Object> result = new TreeMap<String, Object>();
 
         reflectionProvider.visitSerializableFields( object,
@@ -110,9 +115,13 @@ public class ObjectFieldExtractor
         {
             // If some fields weren't initialized, then try to create an
             // object using a default constructor, if possible
+            Object newResult = ClassPlan.forClass( t ).newInstance();
             try
             {
-                Object newResult = pjReflectionProvider.newInstance( t );
+                if ( newResult == null )
+                {
+                    newResult = pjReflectionProvider.newInstance( t );
+                }
                 restoreObjectFromFieldMap( newResult, fields );
                 result = newResult;
             }
@@ -146,6 +155,25 @@ public class ObjectFieldExtractor
         Object object,
         final Map<String, Object> fields )
     {
+        ClassPlan plan = ClassPlan.forClass( object.getClass() );
+        if ( plan.hasFields() )
+        {
+            boolean allFound = true;
+            for ( int i = 0; i < plan.size(); i++ )
+            {
+                String name = plan.name( i );
+                if ( !fields.containsKey( name ) )
+                {
+                    allFound = false;
+                }
+                else if ( !plan.write( object, i, fields.get( name ) ) )
+                {
+                    reflectionProvider.writeField( object, name,
+                        fields.get( name ), plan.declaringClass( i ) );
+                }
+            }
+            return allFound;
+        }
         final Object result = object;
         final BooleanWrapper allFound = new BooleanWrapper();
         allFound.value = true;
@@ -0,0 +1,858 @@
+/*==========================================================================*\
+ |  $Id$
+ |*-------------------------------------------------------------------------*|
+ |  Copyright (C) 2009-2010 Virginia Tech
+ |
+ |  This file is part of the Student-Library.
+ |
+ |  The Student-Library is free software; you can redistribute it and/or
+ |  modify it under the terms of the GNU Lesser General Public License as
+ |  published by the Free Software Foundation; either version 3 of the
+ |  License, or (at your option) any later version.
+ |
+ |  The Student-Library is distributed in the hope that it will be useful,
+ |  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ |  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ |  GNU Lesser General Public License for more details.
+ |
+ |  You should have received a copy of the GNU Lesser General Public License
+ |  along with the Student-Library; if not, see <http://www.gnu.org/licenses/>.
+\*==========================================================================*/
+
+package student.web.internal;
+
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.SoftReference;
+import java.lang.ref.WeakReference;
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+
+import student.web.internal.PersistentStorageManager.StoredObject;
+import student.web.internal.converters.Alias;
+
+//-------------------------------------------------------------------------
+/**
+ *  The persistent caches of one session, keyed by cache id, together with
+ *  a reverse index from each cached value, by identity, to the alias of
+ *  the entry holding it.  Every change to a cache goes through the cache
+ *  itself, which keeps the index current, so finding the alias for a
+ *  value does not search every cache.  A value stored in more than one
+ *  cache is found in the cache it was most recently stored in.
+ *  <p>
+ *  The store holds at most {@link #getMaximumEntries()} cached objects
+ *  strongly, across all of its caches.  Beyond that, the least recently
+ *  used objects are only held through soft references, so the garbage
+ *  collector reclaims them when memory runs short, and a cache simply
+ *  forgets an object once it has been reclaimed.  A forgotten object is
+ *  read again from its file the next time it is needed, and a value
+ *  stored after its cached object was forgotten is merged against the
+ *  current thread's {@link Snapshot}, just as for an object that was
+ *  never cached.  The reverse index only holds values weakly.
+ *  </p>
+ *
+ *  @author  agent
+ *  @author Last changed by $Author$
+ *  @version $Revision$, $Date$
+ */
+public class PersistentCacheStore
+{
+    //~ Instance/static variables .............................................
+
+    /** The number of objects held strongly unless set otherwise. */
+    public static final int DEFAULT_MAXIMUM_ENTRIES = 2000;
+
+    private final Map<String, Cache> caches = new HashMap<String, Cache>();
+
+    // Maps each cached value to its key, which holds the aliases of the
+    // entries holding the value
+    private final Map<Object, ValueKey> aliases =
+        new HashMap<Object, ValueKey>();
+
+    // Values in the index that have been reclaimed
+    private final ReferenceQueue<Object> collectedValues =
+        new ReferenceQueue<Object>();
+
+    // Cached objects held softly that have been reclaimed
+    private final ReferenceQueue<StoredObject> collectedObjects =
+        new ReferenceQueue<StoredObject>();
+
+    // The strongly held entries of all caches, least recently used first
+    private final CachedObject strongEntries =
+        new CachedObject( null, null, null );
+
+    private int maximumEntries = DEFAULT_MAXIMUM_ENTRIES;
+
+    private int entryCount;
+
+    private int strongEntryCount;
+
+    private long hitCount;
+
+    private long missCount;
+
+    private long demotionCount;
+
+    private long collectedCount;
+
+
+    //~ Constructors ..........................................................
+
+    // ----------------------------------------------------------
+    /**
+     * Creates a new, empty store.
+     */
+    public PersistentCacheStore()
+    {
+        strongEntries.previous = strongEntries;
+        strongEntries.next = strongEntries;
+    }
+
+
+    //~ Public Methods ........................................................
+
+    // ----------------------------------------------------------
+    /**
+     * Get the cache with the given id.
+     * @param cacheId The id of the cache
+     * @return The cache, or null if it has not been created
+     */
+    public synchronized Map<String, StoredObject> getCache( String cacheId )
+    {
+        return caches.get( cacheId );
+    }
+
+
+    // ----------------------------------------------------------
+    /**
+     * Create a new, empty cache with the given id, replacing any cache
+     * that already has it.
+     * @param cacheId The id of the cache
+     * @return The new cache
+     */
+    public synchronized Map<String, StoredObject> createCache( String cacheId )
+    {
+        Cache old = caches.get( cacheId );
+        if ( old != null )
+        {
+            old.clear();
+        }
+        Cache cache = new Cache( cacheId );
+        caches.put( cacheId, cache );
+        return cache;
+    }
+
+
+    // ----------------------------------------------------------
+    /**
+     * Find the alias of the cache entry holding the given value.
+     * @param value The value to look for, compared by identity
+     * @return The alias naming the cache entry, or null if no cache
+     *         holds the value
+     */
+    public synchronized Alias getAlias( Object value )
+    {
+        expunge();
+        ValueKey found = aliases.get( new Probe( value ) );
+        if ( found == null )
+        {
+            return null;
+        }
+        Alias alias = found.aliases.get( found.aliases.size() - 1 );
+        // Hand out a copy, since the index's own aliases stay in use
+        return new Alias( alias.getKey(), alias.getContextMap() );
+    }
+
+
+    // ----------------------------------------------------------
+    /**
+     * Get the number of cached objects held strongly, across all caches.
+     * @return The maximum number of entries
+     */
+    public synchronized int getMaximumEntries()
+    {
+        return maximumEntries;
+    }
+
+
+    // ----------------------------------------------------------
+    /**
+     * Set the number of cached objects held strongly, across all caches.
+     * The least recently used objects beyond it are only held softly.
+     * @param maximumEntries The maximum number of entries, which must not
+     *                       be negative
+     */
+    public synchronized void setMaximumEntries( int maximumEntries )
+    {
+        if ( maximumEntries < 0 )
+        {
+            throw new IllegalArgumentException(
+                "maximumEntries must not be negative: " + maximumEntries );
+        }
+        this.maximumEntries = maximumEntries;
+        trim();
+    }
+
+
+    // ----------------------------------------------------------
+    /**
+     * Get the number of caches in this store.
+     * @return The number of caches
+     */
+    public synchronized int getCacheCount()
+    {
+        return caches.size();
+    }
+
+
+    // ----------------------------------------------------------
+    /**
+     * Get the number of objects cached, whether held strongly or softly.
+     * @return The number of entries in all caches
+     */
+    public synchronized int getEntryCount()
+    {
+        expunge();
+        return entryCount;
+    }
+
+
+    // ----------------------------------------------------------
+    /**
+     * Get the number of cached objects held strongly.
+     * @return The number of strongly held entries in all caches
+     */
+    public synchronized int getStrongEntryCount()
+    {
+        return strongEntryCount;
+    }
+
+
+    // ----------------------------------------------------------
+    /**
+     * Get the number of lookups that found a cached object.
+     * @return The number of hits
+     */
+    public synchronized long getHitCount()
+    {
+        return hitCount;
+    }
+
+
+    // ----------------------------------------------------------
+    /**
+     * Get the number of lookups that found no cached object, including
+     * those for objects that had been reclaimed.
+     * @return The number of misses
+     */
+    public synchronized long getMissCount()
+    {
+        return missCount;
+    }
+
+
+    // ----------------------------------------------------------
+    /**
+     * Get the number of times a cached object went from being held
+     * strongly to being held softly.
+     * @return The number of demotions
+     */
+    public synchronized long getDemotionCount()
+    {
+        return demotionCount;
+    }
+
+
+    // ----------------------------------------------------------
+    /**
+     * Get the number of softly held objects that the garbage collector
+     * reclaimed.
+     * @return The number of reclaimed entries
+     */
+    public synchronized long getCollectedCount()
+    {
+        expunge();
+        return collectedCount;
+    }
+
+
+    // ----------------------------------------------------------
+    @Override
+    public synchronized String toString()
+    {
+        expunge();
+        return "PersistentCacheStore[caches=" + caches.size()
+            + ", entries=" + entryCount
+            + ", strong=" + strongEntryCount + "/" + maximumEntries
+            + ", hits=" + hitCount + ", misses=" + missCount
+            + ", demoted=" + demotionCount
+            + ", collected=" + collectedCount + "]";
+    }
+
+
+    //~ Private Methods .......................................................
+
+    // ----------------------------------------------------------
+    /**
+     * Record that the given entry holds the given value.
+     */
+    private void index( CachedObject entry, Object value )
+    {
+        if ( value == null )
+        {
+            entry.indexed = null;
+            return;
+        }
+        ValueKey found = aliases.get( new Probe( value ) );
+        if ( found == null )
+        {
+            found = new ValueKey( value, collectedValues );
+            aliases.put( found, found );
+        }
+        found.aliases.add( new Alias( entry.key, entry.cache.cacheId ) );
+        entry.indexed = found;
+    }
+
+
+    // ----------------------------------------------------------
+    /**
+     * Record that the given entry no longer holds the value it was indexed
+     * under.
+     */
+    private void unindex( CachedObject entry )
+    {
+        ValueKey key = entry.indexed;
+        entry.indexed = null;
+        if ( key == null )
+        {
+            return;
+        }
+        List<Alias> found = key.aliases;
+        for ( int i = found.size() - 1; i >= 0; i-- )
+        {
+            Alias alias = found.get( i );
+            if ( alias.getKey().equals( entry.key )
+                && alias.getContextMap().equals( entry.cache.cacheId ) )
+            {
+                found.remove( i );
+                break;
+            }
+        }
+        if ( found.isEmpty() )
+        {
+            aliases.remove( key );
+        }
+    }
+
+
+    // ----------------------------------------------------------
+    /**
+     * Drop the entries and index keys whose objects have been reclaimed.
+     */
+    private void expunge()
+    {
+        Object reference;
+        while ( ( reference = collectedObjects.poll() ) != null )
+        {
+            CachedObject entry = ( (SoftObject)reference ).entry;
+            if ( entry.soft == reference )
+            {
+                entry.cache.entries.remove( entry.key );
+                entryCount--;
+                unindex( entry );
+                collectedCount++;
+            }
+        }
+        while ( ( reference = collectedValues.poll() ) != null )
+        {
+            // Removed by identity, since its value is gone
+            aliases.remove( reference );
+        }
+    }
+
+
+    // ----------------------------------------------------------
+    /**
+     * Hold softly the least recently used objects beyond the maximum.
+     */
+    private void trim()
+    {
+        while ( strongEntryCount > maximumEntries )
+        {
+            CachedObject eldest = strongEntries.next;
+            eldest.unlink();
+            strongEntryCount--;
+            eldest.soft =
+                new SoftObject( eldest.strong, eldest, collectedObjects );
+            eldest.strong = null;
+            demotionCount++;
+        }
+    }
+
+
+    //~ Nested Classes ........................................................
+
+    // ----------------------------------------------------------
+    /**
+     * One cache, mapping keys to the objects stored under them.  It keeps
+     * its store's alias index and recency order current as entries are
+     * added, used, replaced and removed.  A cache holds no null objects:
+     * putting null removes the key.
+     * <p>
+     * A stored object's value may be replaced after the object is put in
+     * the cache, through {@link StoredObject#setValue(Object)}, so each
+     * entry remembers the value it was indexed under and is reindexed
+     * when the object is put again or looked up.
+     * </p>
+     */
+    private class Cache
+        extends AbstractMap<String, StoredObject>
+    {
+        private final String cacheId;
+
+        private final Map<String, CachedObject> entries =
+            new HashMap<String, CachedObject>();
+
+        private Set<Map.Entry<String, StoredObject>> entrySet;
+
+
+        // ----------------------------------------------------------
+        public Cache( String cacheId )
+        {
+            this.cacheId = cacheId;
+        }
+
+
+        // ----------------------------------------------------------
+        @Override
+        public int size()
+        {
+            synchronized ( PersistentCacheStore.this )
+            {
+                expunge();
+                return entries.size();
+            }
+        }
+
+
+        // ----------------------------------------------------------
+        @Override
+        public boolean containsKey( Object key )
+        {
+            synchronized ( PersistentCacheStore.this )
+            {
+                expunge();
+                CachedObject entry = entries.get( key );
+                return entry != null && entry.object() != null;
+            }
+        }
+
+
+        // ----------------------------------------------------------
+        @Override
+        public StoredObject get( Object key )
+        {
+            synchronized ( PersistentCacheStore.this )
+            {
+                expunge();
+                CachedObject entry = entries.get( key );
+                StoredObject object = entry == null ? null : entry.object();
+                if ( object == null )
+                {
+                    missCount++;
+                    return null;
+                }
+                hitCount++;
+                entry.use( object );
+                trim();
+                return object;
+            }
+        }
+
+
+        // ----------------------------------------------------------
+        @Override
+        public StoredObject put( String key, StoredObject object )
+        {
+            if ( object == null )
+            {
+                return remove( key );
+            }
+            synchronized ( PersistentCacheStore.this )
+            {
+                expunge();
+                CachedObject entry = entries.get( key );
+                StoredObject previous = null;
+                if ( entry == null )
+                {
+                    entry = new CachedObject( this, key, object );
+                    entries.put( key, entry );
+                    entryCount++;
+                    strongEntryCount++;
+                    entry.linkLast();
+                    index( entry, object.value() );
+                }
+                else
+                {
+                    previous = entry.object();
+                    entry.use( object );
+                }
+                trim();
+                return previous;
+            }
+        }
+
+
+        // ----------------------------------------------------------
+        @Override
+        public StoredObject remove( Object key )
+        {
+            synchronized ( PersistentCacheStore.this )
+            {
+                expunge();
+                CachedObject entry = entries.remove( key );
+                if ( entry == null )
+                {
+                    return null;
+                }
+                StoredObject object = entry.object();
+                entry.discard();
+                return object;
+            }
+        }
+
+
+        // ----------------------------------------------------------
+        @Override
+        public void clear()
+        {
+            synchronized ( PersistentCacheStore.this )
+            {
+                for ( CachedObject entry : entries.values() )
+                {
+                    entry.discard();
+                }
+                entries.clear();
+                expunge();
+            }
+        }
+
+
+        // ----------------------------------------------------------
+        /**
+         * A view of the entries.  Its iterators work on a copy of the
+         * cache's entries taken when they are created, and skip any whose
+         * objects were reclaimed.
+         */
+        @Override
+        public Set<Map.Entry<String, StoredObject>> entrySet()
+        {
+            if ( entrySet == null )
+            {
+                entrySet = new AbstractSet<Map.Entry<String, StoredObject>>()
+                {
+                    public int size()
+                    {
+                        return Cache.this.size();
+                    }
+
+
+                    public Iterator<Map.Entry<String, StoredObject>> iterator()
+                    {
+                        return new EntryIterator();
+                    }
+                };
+            }
+            return entrySet;
+        }
+
+
+        // ----------------------------------------------------------
+        private class EntryIterator
+            implements Iterator<Map.Entry<String, StoredObject>>
+        {
+            private final Iterator<CachedObject> iterator;
+
+            private Map.Entry<String, StoredObject> next;
+
+            private CachedObject current;
+
+
+            // ----------------------------------------------------------
+            public EntryIterator()
+            {
+                synchronized ( PersistentCacheStore.this )
+                {
+                    iterator = new ArrayList<CachedObject>(
+                        entries.values() ).iterator();
+                }
+            }
+
+
+            // ----------------------------------------------------------
+            public boolean hasNext()
+            {
+                while ( next == null && iterator.hasNext() )
+                {
+                    CachedObject entry = iterator.next();
+                    StoredObject object = entry.object();
+                    if ( object != null )
+                    {
+                        current = entry;
+                        next = new SimpleEntry<String, StoredObject>(
+                            entry.key, object );
+                    }
+                }
+                return next != null;
+            }
+
+
+            // ----------------------------------------------------------
+            public Map.Entry<String, StoredObject> next()
+            {
+                if ( !hasNext() )
+                {
+                    throw new NoSuchElementException();
+                }
+                Map.Entry<String, StoredObject> result = next;
+                next = null;
+                return result;
+            }
+
+
+            // ----------------------------------------------------------
+            public void remove()
+            {
+                if ( current == null )
+                {
+                    throw new IllegalStateException();
+                }
+                synchronized ( PersistentCacheStore.this )
+                {
+                    if ( entries.get( current.key ) == current )
+                    {
+                        entries.remove( current.key );
+                        current.discard();
+                    }
+                }
+                current = null;
+            }
+        }
+    }
+
+
+    // ----------------------------------------------------------
+    /**
+     * A cached object, held strongly and linked into the store's recency
+     * order, or held softly and unlinked.
+     */
+    private class CachedObject
+    {
+        private final Cache cache;
+
+        private final String key;
+
+        private StoredObject strong;
+
+        private SoftObject soft;
+
+        // The key the value was indexed under, if any
+        private ValueKey indexed;
+
+        private CachedObject previous;
+
+        private CachedObject next;
+
+
+        // ----------------------------------------------------------
+        public CachedObject( Cache cache, String key, StoredObject object )
+        {
+            this.cache = cache;
+            this.key = key;
+            this.strong = object;
+        }
+
+
+        // ----------------------------------------------------------
+        public StoredObject object()
+        {
+            return strong != null ? strong
+                : soft != null ? soft.get() : null;
+        }
+
+
+        // ----------------------------------------------------------
+        /**
+         * Hold the given object strongly, as the most recently used, and
+         * reindex it if its value has changed.
+         */
+        public void use( StoredObject object )
+        {
+            if ( strong == null )
+            {
+                strongEntryCount++;
+                soft = null;
+            }
+            else
+            {
+                unlink();
+            }
+            strong = object;
+            linkLast();
+            Object value = object.value();
+            if ( indexed == null || indexed.get() != value )
+            {
+                unindex( this );
+                index( this, value );
+            }
+        }
+
+
+        // ----------------------------------------------------------
+        /**
+         * Forget this entry, which has been removed from its cache.
+         */
+        public void discard()
+        {
+            if ( strong != null )
+            {
+                unlink();
+                strongEntryCount--;
+            }
+            strong = null;
+            soft = null;
+            entryCount--;
+            unindex( this );
+        }
+
+
+        // ----------------------------------------------------------
+        public void linkLast()
+        {
+            previous = strongEntries.previous;
+            next = strongEntries;
+            previous.next = this;
+            strongEntries.previous = this;
+        }
+
+
+        // ----------------------------------------------------------
+        public void unlink()
+        {
+            previous.next = next;
+            next.previous = previous;
+            previous = null;
+            next = null;
+        }
+    }
+
+
+    // ----------------------------------------------------------
+    /**
+     * A softly held cached object, which knows its entry so that the
+     * entry can be dropped once the object is reclaimed.
+     */
+    private static class SoftObject
+        extends SoftReference<StoredObject>
+    {
+        private final CachedObject entry;
+
+
+        // ----------------------------------------------------------
+        public SoftObject(
+            StoredObject object,
+            CachedObject entry,
+            ReferenceQueue<StoredObject> queue )
+        {
+            super( object, queue );
+            this.entry = entry;
+        }
+    }
+
+
+    // ----------------------------------------------------------
+    /**
+     * A weakly held value in the alias index, with the aliases of the
+     * entries holding it, most recent last.  Almost every value has
+     * exactly one.  Keys holding the same value, compared by identity, are
+     * equal.
+     */
+    private static class ValueKey
+        extends WeakReference<Object>
+    {
+        private final int hash;
+
+        private final List<Alias> aliases = new ArrayList<Alias>( 1 );
+
+
+        // ----------------------------------------------------------
+        public ValueKey( Object value, ReferenceQueue<Object> queue )
+        {
+            super( value, queue );
+            hash = System.identityHashCode( value );
+        }
+
+
+        // ----------------------------------------------------------
+        @Override
+        public int hashCode()
+        {
+            return hash;
+        }
+
+
+        // ----------------------------------------------------------
+        @Override
+        public boolean equals( Object other )
+        {
+            if ( other == this )
+            {
+                return true;
+            }
+            Object value = get();
+            return value != null && other instanceof ValueKey
+                && ( (ValueKey)other ).get() == value;
+        }
+    }
+
+
+    // ----------------------------------------------------------
+    /**
+     * A value being looked up in the alias index, without creating a
+     * reference to it.
+     */
+    private static class Probe
+    {
+        private final Object value;
+
+
+        // ----------------------------------------------------------
+        public Probe( Object value )
+        {
+            this.value = value;
+        }
+
+
+        // ----------------------------------------------------------
+        @Override
+        public int hashCode()
+        {
+            return System.identityHashCode( value );
+        }
+
+
+        // ----------------------------------------------------------
+        @Override
+        public boolean equals( Object other )
+        {
+            return other instanceof ValueKey
+                && ( (ValueKey)other ).get() == value;
+        }
+    }
+}
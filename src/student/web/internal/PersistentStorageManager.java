@@ -19,30 +19,56 @@
 package student.web.internal;
 
 import com.thoughtworks.xstream.XStream;
+import com.thoughtworks.xstream.io.HierarchicalStreamReader;
+import com.thoughtworks.xstream.io.HierarchicalStreamWriter;
+import com.thoughtworks.xstream.io.copy.HierarchicalStreamCopier;
 import com.thoughtworks.xstream.core.util.CompositeClassLoader;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.PrintWriter;
+import java.io.OutputStream;
 import java.io.Writer;
+import java.lang.ref.SoftReference;
 import java.security.AccessControlException;
 import java.security.AccessController;
 import java.security.PrivilegedAction;
+import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.SortedSet;
 import java.util.WeakHashMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.concurrent.locks.Lock;
-import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 
-import student.web.WebUtilities;
 //import student.web.internal.converters.AliasConverter;
 import student.web.internal.converters.ArrayConverter;
 //import student.web.internal.converters.CachedClassConverter;
+import student.web.internal.converters.Alias;
 import student.web.internal.converters.AliasConverter;
 import student.web.internal.converters.CachedClassConverter;
 import student.web.internal.converters.CollectionConverter;
@@ -67,24 +93,113 @@ public class PersistentStorageManager
 
     private static PersistentStorageManager PSM = new PersistentStorageManager();
 
-    private static final String EXT = ".dataxml";
+    // One manager per resolved directory, shared by every map over it.
+    private static final ConcurrentMap<String, PersistentStorageManager> MANAGERS =
+        new ConcurrentHashMap<String, PersistentStorageManager>();
+
+    // XStream bundles are expensive to build, so all managers share them.
+    private static final XStreamBundlePool BUNDLES = new XStreamBundlePool();
+
+    private static final XmlStorageCodec XML = new XmlStorageCodec();
+
+    // Every codec files may be stored with, so that files in any of them
+    // can be read.
+    private static final List<StorageCodec> CODECS =
+        new CopyOnWriteArrayList<StorageCodec>( new StorageCodec[] {
+            XML, new BinaryStorageCodec() } );
+
+    // The codec new versions of objects are written with
+    private volatile StorageCodec codec = XML;
+
 
     private File baseDir = LocalityService.getSupportStrategy().getPersistentBase();
 
-    private MRUMap<String, String> idCache = new MRUMap<String, String>( 10000,
-        0 );
+    // Directory listings and getAllIds() sweeps pass every id through
+    // these, so they keep the ids used most often instead of the newest
+    private ConcurrentMRUMap<String, String> idCache =
+        new ConcurrentMRUMap<String, String>(
+            10000, 0, ConcurrentMRUMap.Policy.FREQUENCY );
+
+    private ConcurrentMRUMap<String, String> idReverseCache =
+        new ConcurrentMRUMap<String, String>(
+            10000, 0, ConcurrentMRUMap.Policy.FREQUENCY );
+
+    // The ids in the store.  Stores and removes keep it current, and it is
+    // rebuilt from a directory listing whenever the directory changes in a
+    // way this manager did not make itself.
+    private volatile IdIndex usedIds = null;
+
+    private volatile long usedIdsTimestamp = 0L;
+
+    // The directory modification time the id index is current for, or
+    // UNTRUSTED if the index must be rebuilt before it is used again.
+    // Guarded by indexLock.
+    private long indexedDirModified = UNTRUSTED;
+
+    private final Object indexLock = new Object();
+
+    // Bumped before every store or remove touches the id index, so a
+    // listing can tell whether one may have gone to the index it replaces.
+    private final AtomicLong indexChanges = new AtomicLong();
+
+    private static final long UNTRUSTED = -1L;
+
+    // Directory modification times may only have a resolution of a second,
+    // so a listing taken within this long of the last change might have
+    // missed a change made in the same tick.
+    private static final long MTIME_RESOLUTION = 1000L;
+
+    // Number of lock stripes.  Ids are spread over the stripes, so that
+    // operations on different ids rarely wait for each other.
+    private static final int LOCK_STRIPES = 64;
+
+    // Held shared by every operation on a single id, and exclusively by
+    // lock(), which other code uses to hold the whole store still.
+    private final ReentrantReadWriteLock storeLock =
+        new ReentrantReadWriteLock();
+
+    private final ReentrantReadWriteLock[] stripes =
+        new ReentrantReadWriteLock[LOCK_STRIPES];
 
-    private MRUMap<String, String> idReverseCache = new MRUMap<String, String>( 10000,
-        0 );
+    // Bumped under a stripe's write lock whenever an id on that stripe is
+    // stored or removed, so a store can tell whether the version it merged
+    // against is still the newest one.
+    private final long[] stripeVersions = new long[LOCK_STRIPES];
 
-    private Map<ClassLoader, XStreamBundle> xstream = new WeakHashMap<ClassLoader, XStreamBundle>( 256 );
+    // Moves on whenever an object in the directory changes, so cached
+    // objects known to be current in this generation need no checking for
+    // a while.
+    private final DirectoryChangeTracker changes = new DirectoryChangeTracker();
 
-    private Set<String> usedIds = null;
+    // The number of id locks the current thread holds in any manager.
+    // Reads nested inside another operation (while resolving aliases) do
+    // not queue behind waiting writers, since those may be waiting on the
+    // outer operation.
+    private static final ThreadLocal<int[]> HELD = new ThreadLocal<int[]>()
+    {
+        protected int[] initialValue()
+        {
+            return new int[1];
+        }
+    };
+
+    // Default delay between background flushes in write-behind mode.
+    private static final long DEFAULT_FLUSH_INTERVAL = 1000L;
 
-    private long usedIdsTimestamp = 0L;
+    // Number of pending writes that forces an immediate flush, so that a
+    // burst of stores cannot grow the pending set without bound.
+    private static final int MAX_PENDING_WRITES = 256;
 
-    //This is used to allow other code to lock the persistence store without calling into it.
-    private Lock pLock = new ReentrantLock();
+    private volatile boolean writeBehind = false;
+
+    // Serialized objects waiting to be written, keyed by sanitized id.  A
+    // later store of the same id replaces the earlier one.
+    private Map<String, PendingWrite> pendingWrites =
+        new LinkedHashMap<String, PendingWrite>();
+
+    private ScheduledExecutorService flusher = null;
+
+    private Thread shutdownFlusher = null;
     // ~ Constructor ...........................................................
 
     // ----------------------------------------------------------
@@ -93,7 +208,10 @@ public class PersistentStorageManager
      */
     private PersistentStorageManager()
     {
-        // Nothing to do
+        for ( int i = 0; i < LOCK_STRIPES; i++ )
+        {
+            stripes[i] = new ReentrantReadWriteLock();
+        }
     }
 
 
@@ -109,10 +227,35 @@ public class PersistentStorageManager
     }
 
 
+    // ----------------------------------------------------------
+    /**
+     * Get the manager for a directory within the persistent store.  All
+     * callers asking for the same directory share the same manager, along
+     * with its caches and locks.
+     *
+     * @param dirName The directory, relative to the store's base directory
+     * @return The manager for that directory
+     */
     public static PersistentStorageManager getInstance( String dirName )
     {
-        PersistentStorageManager manager = new PersistentStorageManager();
-        manager.baseDir = LocalityService.getSupportStrategy().getPersistentFile( PSM.baseDir.getPath()+"/"+ dirName );
+        File dir = LocalityService.getSupportStrategy().getPersistentFile( PSM.baseDir.getPath()+"/"+ dirName );
+        String key = resolve( dir );
+        PersistentStorageManager manager = MANAGERS.get( key );
+        if ( manager == null )
+        {
+            manager = new PersistentStorageManager();
+            manager.baseDir = dir;
+            PersistentStorageManager existing =
+                MANAGERS.putIfAbsent( key, manager );
+            if ( existing != null )
+            {
+                manager = existing;
+            }
+            else
+            {
+                manager.removeStaleFiles();
+            }
+        }
         if(!manager.baseDir.exists())
         {
             manager.baseDir.mkdirs();
@@ -121,6 +264,56 @@ public class PersistentStorageManager
     }
 
 
+    // ----------------------------------------------------------
+    /**
+     * Remove the temporary files left behind by writes that a crash cut
+     * short, the first time this manager opens its directory.
+     */
+    private void removeStaleFiles()
+    {
+        try
+        {
+            AtomicFileOutputStream.removeStaleFiles( baseDir );
+        }
+        catch ( SecurityException e )
+        {
+            // Leave them; they are never mistaken for stored objects
+        }
+    }
+
+
+    // ----------------------------------------------------------
+    private static String resolve( File dir )
+    {
+        try
+        {
+            return dir.getCanonicalPath();
+        }
+        catch ( IOException e )
+        {
+            return dir.getAbsolutePath();
+        }
+        catch ( SecurityException e )
+        {
+            return dir.getPath();
+        }
+    }
+
+
+    // ----------------------------------------------------------
+    /**
+     * Build XStream bundles for a class loader ahead of time, so that the
+     * first objects loaded through it do not pay for building them.
+     *
+     * @param loader The class loader objects will be loaded with
+     * @param count The number of bundles to have ready
+     */
+    public static void prewarm( ClassLoader loader, int count )
+    {
+        BUNDLES.prewarm( loader, count );
+    }
+
+
     // ----------------------------------------------------------
     /**
      * Get the singleton instance of this class.
@@ -139,59 +332,194 @@ public class PersistentStorageManager
     // ~ Public Methods ........................................................
 
     // ----------------------------------------------------------
-    public synchronized Set<String> getAllIds()
+    public Set<String> getAllIds()
+    {
+        return idIndex().ids();
+    }
+
+
+    // ----------------------------------------------------------
+    /**
+     * Get the number of objects in the store.  This does not list the
+     * directory unless it has changed since the last listing in a way this
+     * manager did not make itself.
+     *
+     * @return The number of objects in the store
+     */
+    public int size()
+    {
+        return idIndex().size();
+    }
+
+
+    // ----------------------------------------------------------
+    /**
+     * Get the index of ids in the store, rebuilding it from a directory
+     * listing if the directory has changed behind this manager's back.
+     *
+     * @return The current id index
+     */
+    private IdIndex idIndex()
     {
-        // if (usedIds == null)
-        // {
-        usedIds = new HashSet<String>( 256 );
+        synchronized ( indexLock )
+        {
+            IdIndex ids = usedIds;
+            if ( ids != null
+                && indexedDirModified != UNTRUSTED
+                && indexedDirModified == baseDir.lastModified() )
+            {
+                return ids;
+            }
+        }
+
+        // List the directory without holding the index lock, so stores and
+        // removes are not held up by a long listing.
         if(!baseDir.exists())
             baseDir.mkdir();
-        if (baseDir.exists())
+        long listed = System.currentTimeMillis();
+        long modified = baseDir.lastModified();
+        long changesBefore = indexChanges.get();
+        List<String> found = new ArrayList<String>( 256 );
+        File[] files = baseDir.listFiles();
+        if ( files != null )
         {
-            for ( File file : baseDir.listFiles() )
+            for ( File file : files )
             {
                 String name = file.getName();
-                if ( name.endsWith( EXT ) )
+                StorageCodec format = codecFor( name );
+                if ( format != null )
                 {
                     // Strip the extension
-                    name = name.substring( 0, name.length() - EXT.length() );
-                    usedIds.add( unsanitizeId( name ) );
+                    name = name.substring( 0,
+                        name.length() - format.getExtension().length() );
+                    found.add( unsanitizeId( name ) );
                 }
             }
         }
-        usedIdsTimestamp = System.currentTimeMillis();
-        // }
-        return new HashSet<String>( usedIds );
+        for ( String sanitizedId : pendingIds() )
+        {
+            found.add( unsanitizeId( sanitizedId ) );
+        }
+        IdIndex ids = new IdIndex( found );
+
+        synchronized ( indexLock )
+        {
+            if ( usedIds == null || !usedIds.sameIds( ids ) )
+            {
+                usedIdsTimestamp = listed;
+            }
+            usedIds = ids;
+            // Anything that changed the directory during the listing leaves
+            // it with a newer time, so the next call lists it again.  A
+            // store or remove made meanwhile may have gone to the old index
+            // after its file was listed, and then carried the directory
+            // time forward, so in that case the next call lists it again
+            // too.
+            indexedDirModified =
+                ( listed - modified >= MTIME_RESOLUTION
+                    && indexChanges.get() == changesBefore )
+                ? modified : UNTRUSTED;
+        }
+        return ids;
     }
 
 
     // ----------------------------------------------------------
-    public synchronized Set<String> getAllIdsContaining(
-        String fragment,
-        String after )
+    /**
+     * Record that this manager has just created or deleted a file in its
+     * directory, so that the change to the directory's modification time
+     * does not force the id index to be rebuilt.  The index is only carried
+     * forward if it was current for the directory as it was before.  A
+     * change made by another process within the same clock tick as this one
+     * is only picked up at the next change to the directory.
+     *
+     * @param modifiedBefore The directory's modification time before the
+     *                       file was created or deleted
+     */
+    private void directoryChanged( long modifiedBefore )
     {
-        if ( fragment == null || fragment.length() == 0 )
-        {
-            return getAllIds();
-        }
-        else
+        synchronized ( indexLock )
         {
-            fragment = fragment.toLowerCase();
-            Set<String> result = new HashSet<String>( getAllIds().size() );
-            for ( String id : getAllIds() )
+            if ( indexedDirModified != UNTRUSTED
+                && indexedDirModified == modifiedBefore )
             {
-                if ( id.toLowerCase().contains( fragment ) )
-                {
-                    result.add( id );
-                }
+                indexedDirModified = baseDir.lastModified();
             }
-            return result;
         }
     }
 
 
     // ----------------------------------------------------------
-    public synchronized Set<String> getAllIdsNotContaining( String fragment )
+    private void indexAdd( String id )
+    {
+        // Counted first, so either a listing running now sees the count
+        // change, or this sees the index it publishes.
+        indexChanges.incrementAndGet();
+        IdIndex ids = usedIds;
+        if ( ids != null && ids.add( id ) )
+        {
+            usedIdsTimestamp = System.currentTimeMillis();
+        }
+    }
+
+
+    // ----------------------------------------------------------
+    private void indexRemove( String id )
+    {
+        indexChanges.incrementAndGet();
+        IdIndex ids = usedIds;
+        if ( ids != null && ids.remove( id ) )
+        {
+            usedIdsTimestamp = System.currentTimeMillis();
+        }
+    }
+
+
+    // ----------------------------------------------------------
+    /**
+     * Get the ids containing a fragment, ignoring case, that sort after a
+     * given id.
+     *
+     * @param fragment The fragment to look for, or null for all ids
+     * @param after Only include ids that sort after this one, or null to
+     *              include all matching ids
+     * @return The matching ids, in ascending order
+     * @see #getAllIdsContaining(String, String, int)
+     */
+    public Set<String> getAllIdsContaining(
+        String fragment,
+        String after )
+    {
+        return getAllIdsContaining( fragment, after, 0 );
+    }
+
+
+    // ----------------------------------------------------------
+    /**
+     * Get a page of the ids containing a fragment, ignoring case.  Pass the
+     * last id of one page as <code>after</code> to get the next one.  The
+     * search uses the n-gram index kept alongside the id index, so it only
+     * examines ids that share part of the fragment.
+     *
+     * @param fragment The fragment to look for, or null for all ids
+     * @param after Only include ids that sort after this one, or null to
+     *              start from the first matching id
+     * @param limit The largest number of ids to return, or zero for no
+     *              limit
+     * @return The matching ids, in ascending order
+     */
+    public SortedSet<String> getAllIdsContaining(
+        String fragment,
+        String after,
+        int limit )
+    {
+        return idIndex().containing(
+            fragment == null ? "" : fragment, after, limit );
+    }
+
+
+    // ----------------------------------------------------------
+    public Set<String> getAllIdsNotContaining( String fragment )
     {
         if ( fragment == null || fragment.length() == 0 )
         {
@@ -199,51 +527,174 @@ public class PersistentStorageManager
         }
         else
         {
-            fragment = fragment.toLowerCase();
-            Set<String> result = new HashSet<String>( getAllIds().size() );
-            for ( String id : getAllIds() )
-            {
-                if ( !id.toLowerCase().contains( fragment ) )
-                {
-                    result.add( id );
-                }
-            }
-            return result;
+            return idIndex().notContaining( fragment );
         }
     }
 
 
     // ----------------------------------------------------------
-    public synchronized boolean idSetHasChangedSince( long time )
+    public boolean idSetHasChangedSince( long time )
     {
         return usedIdsTimestamp == 0L || usedIdsTimestamp > time;
     }
 
 
     // ----------------------------------------------------------
-    public synchronized StoredObject getPersistentObject(
+    public StoredObject getPersistentObject(
         String id,
         Map<String, StoredObject> cache,
         ClassLoader loader )
     {
-        StoredObject result = null;
-        pLock.lock();
+        return getPersistentObject( id, cache, loader, null );
+    }
+
+
+    // ----------------------------------------------------------
+    /**
+     * Load an object, parsing content read ahead of time by
+     * {@link #readRawObject(String)} if the object has not been stored
+     * again since that content was read.
+     *
+     * @param id The id of the object
+     * @param cache The cache of stored objects for the calling map
+     * @param loader The class loader to use for stored classes
+     * @param raw The content read ahead of time, or null to read it now
+     * @return The object, or null if there is no object with that id
+     */
+    public StoredObject getPersistentObject(
+        String id,
+        Map<String, StoredObject> cache,
+        ClassLoader loader,
+        RawObject raw )
+    {
+        String sanitizedId = sanitizeId( id );
+        lockId( sanitizedId, false );
+        try
+        {
+            return getPersistentObjectHelper( id, cache, loader, raw );
+        }
+        finally
+        {
+            Snapshot.clearLocal();
+            unlockId( sanitizedId, false );
+        }
+    }
+
+
+    // ----------------------------------------------------------
+    /**
+     * Read the stored content of an object without parsing it, so that the
+     * reading can be done ahead of time, on another thread.  Pass the result
+     * to {@link #getPersistentObject(String, Map, ClassLoader, RawObject)}
+     * to parse it.
+     *
+     * @param id The id of the object
+     * @return The stored content, or null if there is no object with that id
+     */
+    public RawObject readRawObject( String id )
+    {
+        String sanitizedId = sanitizeId( id );
+        lockId( sanitizedId, false );
         try
         {
+            File src = storedFile( sanitizedId );
+            long timestamp = lastModified( sanitizedId, src );
+            PendingWrite pending = pendingWrite( sanitizedId );
+            byte[] content;
+            StorageCodec format;
+            if ( pending != null )
+            {
+                content = pending.content;
+                format = pending.codec;
+            }
+            else
+            {
+                content = readFully(
+                    LocalityService.getSupportStrategy().getObjectSource( src ) );
+                format = codecFor( src.getName() );
+            }
+            return content == null
+                ? null
+                : new RawObject( id, content, format, timestamp );
+        }
+        finally
+        {
+            unlockId( sanitizedId, false );
+        }
+    }
+
+
+    // ----------------------------------------------------------
+    /**
+     * Parse content read by {@link #readRawObject(String)} on its own,
+     * without checking whether the object has been stored again since.  The
+     * result carries the timestamp of the content, so a later change is
+     * still noticed.  Since it needs no locks, this can run on any thread,
+     * but objects that refer to aliased objects must be parsed on the
+     * thread whose session the aliases should resolve in (see
+     * {@link RawObject#hasAliases()}).
+     *
+     * @param raw The content to parse
+     * @param cache The cache of stored objects to use while parsing
+     * @param loader The class loader to use for stored classes
+     * @return The parsed object
+     */
+    public StoredObject parseRawObject(
+        RawObject raw,
+        Map<String, StoredObject> cache,
+        ClassLoader loader )
+    {
         try
         {
-            result = getPersistentObjectHelper( id, cache, loader);
+            Object object = readObject( raw.id, cache,
+                raw.codec.createReader( new ByteArrayInputStream( raw.content ) ),
+                loader, new Snapshot() );
+            return new StoredObject( raw.id,
+                sanitizeId( raw.id ),
+                object,
+                Snapshot.getLocal(),
+                raw.timestamp );
         }
         finally
         {
             Snapshot.clearLocal();
         }
+    }
+
+
+    // ----------------------------------------------------------
+    private static byte[] readFully( InputStream in )
+    {
+        if ( in == null )
+        {
+            return null;
+        }
+        try
+        {
+            ByteArrayOutputStream out = new ByteArrayOutputStream( 4096 );
+            byte[] buffer = new byte[4096];
+            int count;
+            while ( ( count = in.read( buffer ) ) > 0 )
+            {
+                out.write( buffer, 0, count );
+            }
+            return out.toByteArray();
+        }
+        catch ( IOException e )
+        {
+            return null;
         }
         finally
         {
-            pLock.unlock();
+            try
+            {
+                in.close();
+            }
+            catch ( IOException e )
+            {
+                // Best attempt at close
+            }
         }
-        return result;
     }
 
 
@@ -251,23 +702,55 @@ public class PersistentStorageManager
         String id,
         Map<String, StoredObject> cache,
         ClassLoader loader)
+    {
+        return getPersistentObjectHelper( id, cache, loader, null );
+    }
+
+
+    private StoredObject getPersistentObjectHelper(
+        String id,
+        Map<String, StoredObject> cache,
+        ClassLoader loader,
+        RawObject raw )
     {
         StoredObject result = null;
+        // Taken before reading, so a change made meanwhile is noticed
+        long generation = changes.current( baseDir );
         if ( baseDir.exists() )
         {
             String sanitizedId = sanitizeId( id );
-            File src= LocalityService.getSupportStrategy().getPersistentFile( baseDir,sanitizedId + EXT);
-            final InputStream in = LocalityService.getSupportStrategy().getObjectSource(src);
+            File src = storedFile( sanitizedId );
+            PendingWrite pending = pendingWrite( sanitizedId );
+            final InputStream in;
+            StorageCodec format;
+            if ( raw != null
+                && raw.timestamp == lastModified( sanitizedId, src ) )
+            {
+                in = new ByteArrayInputStream( raw.content );
+                format = raw.codec;
+            }
+            else if ( pending != null )
+            {
+                in = new ByteArrayInputStream( pending.content );
+                format = pending.codec;
+            }
+            else
+            {
+                in = LocalityService.getSupportStrategy().getObjectSource(src);
+                format = codecFor( src.getName() );
+            }
             if ( in != null )
             {
                 try
                 {
-                    Object object = readObjectFromXML(id,cache, in, loader, new Snapshot() );
+                    Object object = readObject( id, cache,
+                        format.createReader( in ), loader, new Snapshot() );
                     result = new StoredObject( id,
                         sanitizedId,
                         object,
                         Snapshot.getLocal(),
-                        src.lastModified() );
+                        lastModified( sanitizedId, src ) );
+                    result.generation = generation;
                 }
                 finally
                 {
@@ -291,74 +774,75 @@ public class PersistentStorageManager
         Map<String, StoredObject> cache,
         final InputStream in,
         final ClassLoader loader, Snapshot local)
+    {
+        return readObject( key, cache, XML.createReader( in ), loader, local );
+    }
+
+
+    // ----------------------------------------------------------
+    private Object readObject(
+        String key,
+        Map<String, StoredObject> cache,
+        final HierarchicalStreamReader in,
+        final ClassLoader loader,
+        Snapshot local )
     {
         Snapshot.setLocal( local );
-        final XStreamBundle bundle = getXStreamFor( loader, key, cache );
-        Object object = AccessController.doPrivileged( new PrivilegedAction<Object>()
+        final XStreamBundle bundle = BUNDLES.borrow( loader, key, cache );
+        try
         {
-            public Object run()
+            Object object = AccessController.doPrivileged( new PrivilegedAction<Object>()
             {
-                return bundle.xstream.fromXML( in );
-            }
-        } );
-        return object;
+                public Object run()
+                {
+                    return bundle.xstream.unmarshal( in );
+                }
+            } );
+            return object;
+        }
+        finally
+        {
+            BUNDLES.release( loader, bundle );
+        }
     }
 
 
     // ----------------------------------------------------------
-    public synchronized boolean persistentObjectHasChanged(
+    public boolean persistentObjectHasChanged(
         String id,
         long timestamp,
         ClassLoader loader )
     {
         id = sanitizeId( id );
 
-        File dest = LocalityService.getSupportStrategy().getPersistentFile( baseDir, id+EXT );
-        return timestamp < dest.lastModified();
+        return timestamp < lastModified( id, storedFile( id ) );
     }
 
 
     // ----------------------------------------------------------
-    public synchronized StoredObject storePersistentObject(
+    public StoredObject storePersistentObject(
         String id,
         Map<String, StoredObject> cache,
         Object object )
     {
-        pLock.lock();
-        StoredObject stored = null;
-        try
-        {
         ClassLoader loader = object.getClass().getClassLoader();
-        stored = new StoredObject( id,
+        StoredObject stored = new StoredObject( id,
             sanitizeId( id ),
             object,
             Snapshot.getLocal(),
             0L );
         storePersistentObjectChanges( id, cache, stored, loader );
-        }
-        finally
-        {
-            pLock.unlock();
-        }
         return stored;
     }
 
 
-    public synchronized void storePersistentObjectChanges(
+    public void storePersistentObjectChanges(
         String id,
         Map<String, StoredObject> cache,
         final StoredObject object,
         ClassLoader loader )
     {
-        pLock.lock();
-        try
-        {
         storePersistentObjectChanges( id, cache, object, loader, null );
-        }
-        finally
-        {
-            pLock.unlock();
-        }
     }
 
 
@@ -389,7 +873,7 @@ public class PersistentStorageManager
     }
 
 
-    public synchronized void refreshPersistentObject(
+    public void refreshPersistentObject(
         String id,
         Map<String, StoredObject> cache,
         final StoredObject object,
@@ -400,155 +884,1202 @@ public class PersistentStorageManager
 
 
     // ----------------------------------------------------------
-    public synchronized void storePersistentObjectChanges(
+    /**
+     * Merge an object's local changes into the newest stored version of it,
+     * and write the result.  The newest version is read under a shared lock
+     * on the object's id; the exclusive lock is only taken to write, after
+     * checking that nothing else stored the id in the meantime (otherwise
+     * the merge is repeated against that version).  Nothing is written when
+     * a replacement writer is given, so a shared lock is enough for that.
+     *
+     * @param id The id of the object
+     * @param cache The cache of stored objects for the calling map
+     * @param object The object to store
+     * @param loader The class loader to use for stored classes
+     * @param replacementWriter Where to write the merged object instead of
+     *                          its file, or null to write the file
+     */
+    public void storePersistentObjectChanges(
         String id,
         Map<String, StoredObject> cache,
         final StoredObject object,
         ClassLoader loader,
         final Writer replacementWriter )
     {
-        pLock.lock();
-        StoredObject obj = null;
+        String sanitizedId = sanitizeId( id );
+        File dest = storedFile( sanitizedId );
+        int stripe = stripeIndex( sanitizedId );
+        boolean flushNow = false;
         try
         {
-            String sanitizedId = sanitizeId( id );
-            Snapshot.setLocal( new Snapshot() );
-            obj = getPersistentObjectHelper( id, cache, loader );
+            if ( replacementWriter != null )
+            {
+                lockId( sanitizedId, false );
+                try
+                {
+                    Snapshot newest =
+                        newestVersion( id, sanitizedId, dest, cache, object, loader );
+                    writeChanges( id, cache, object, loader,
+                        XML.createWriter( replacementWriter ), newest );
+                }
+                finally
+                {
+                    unlockId( sanitizedId, false );
+                }
+                return;
+            }
+            while ( true )
+            {
+                Snapshot newest;
+                long version;
+                long modified;
+                lockId( sanitizedId, false );
+                try
+                {
+                    version = stripeVersions[stripe];
+                    modified = lastModified( sanitizedId, dest );
+                    newest =
+                        newestVersion( id, sanitizedId, dest, cache, object, loader );
+                }
+                finally
+                {
+                    unlockId( sanitizedId, false );
+                }
+
+                lockId( sanitizedId, true );
+                try
+                {
+                    if ( version != stripeVersions[stripe]
+                        || modified != lastModified( sanitizedId, dest ) )
+                    {
+                        continue;
+                    }
+                    stripeVersions[stripe]++;
+                    changes.changed();
+
+                    // Leave the snapshots set in the converter
+                    StorageCodec format = codec;
+                    ByteArrayOutputStream buffer = null;
+                    OutputStream file = null;
+                    long dirModified = baseDir.lastModified();
+                    if ( writeBehind )
+                    {
+                        buffer = new ByteArrayOutputStream();
+                    }
+                    else
+                    {
+                        file = LocalityService.getSupportStrategy()
+                            .getObjectOutput( fileFor( sanitizedId, format ) );
+                    }
+                    try
+                    {
+                        writeChanges( id, cache, object, loader,
+                            format.createWriter( buffer != null ? buffer : file ),
+                            newest );
+                    }
+                    catch ( RuntimeException e )
+                    {
+                        if ( file != null )
+                        {
+                            discard( file );
+                        }
+                        throw e;
+                    }
+                    indexAdd( id );
+                    if ( file != null )
+                    {
+                        removeOtherFormats( sanitizedId, format );
+                        // Replacing a file creates and renames a temporary
+                        // file
+                        directoryChanged( dirModified );
+                    }
+                    if ( buffer != null )
+                    {
+                        synchronized ( pendingWrites )
+                        {
+                            pendingWrites.remove( sanitizedId );
+                            pendingWrites.put( sanitizedId, new PendingWrite(
+                                sanitizedId, buffer.toByteArray(), format, object ) );
+                            flushNow = pendingWrites.size() >= MAX_PENDING_WRITES;
+                        }
+                    }
+                    break;
+                }
+                finally
+                {
+                    unlockId( sanitizedId, true );
+                }
+            }
+        }
+        finally
+        {
+            Snapshot.clearNewest();
+            Snapshot.clearLocal();
+        }
+        if ( flushNow )
+        {
+            flush( false );
+        }
+    }
+
 
-            // Leave the snapshots set in the converter
-            File dest = LocalityService.getSupportStrategy()
-                .getPersistentFile( baseDir, sanitizedId + EXT );
-            final PrintWriter out;
-            if ( replacementWriter == null )
+    // ----------------------------------------------------------
+    /**
+     * Store many objects at once.  Each object is merged with its newest
+     * stored version and serialized on the calling thread, because aliases
+     * are resolved in the caller's session, holding only its own id's lock
+     * while it does, as a single store does.  The whole store is then
+     * locked once while the files are written concurrently on the given
+     * executor; an object whose id was stored again in between is merged
+     * again first.  Each file is written to a temporary file first and
+     * renamed into place, so a failed or interrupted write leaves the
+     * previous version intact.  A failure storing one object does not stop
+     * the others from being stored.
+     *
+     * @param objects The objects to store, keyed by id
+     * @param cache The cache of stored objects for the calling map
+     * @param loader The class loader to use for stored classes
+     * @param sync True to force each file to stable storage before it is
+     *             renamed into place
+     * @param executor The executor to write the files on, or null to write
+     *                 them on the calling thread
+     * @return The failures, keyed by the id of the object that could not
+     *         be stored; empty if every object was stored
+     */
+    public Map<String, Exception> storePersistentObjects(
+        Map<String, StoredObject> objects,
+        Map<String, StoredObject> cache,
+        ClassLoader loader,
+        final boolean sync,
+        ExecutorService executor )
+    {
+        Map<String, Exception> failures = new LinkedHashMap<String, Exception>();
+        StorageCodec format = codec;
+        List<BatchWrite> batch = new ArrayList<BatchWrite>( objects.size() );
+        for ( Map.Entry<String, StoredObject> entry : objects.entrySet() )
+        {
+            BatchWrite write = new BatchWrite(
+                entry.getKey(), sanitizeId( entry.getKey() ), entry.getValue() );
+            lockId( write.sanitizedId, false );
+            try
             {
-                out = new PrintWriter( LocalityService.getSupportStrategy()
-                    .getObjectOutput( dest ) );
+                write.version = stripeVersions[stripeIndex( write.sanitizedId )];
+                write.modified = lastModified( write.sanitizedId,
+                    storedFile( write.sanitizedId ) );
+                write.content = serialize( write, cache, loader, format );
+                batch.add( write );
             }
-            else
+            catch ( RuntimeException e )
+            {
+                failures.put( write.id, e );
+            }
+            finally
             {
-                out = new PrintWriter( replacementWriter );
+                unlockId( write.sanitizedId, false );
             }
+        }
 
-            Snapshot local;
-            if ( object.fieldset() == null )
+        boolean flushNow = false;
+        storeLock.writeLock().lock();
+        try
+        {
+            if ( !baseDir.exists() )
             {
-                local = new Snapshot();
+                baseDir.mkdir();
             }
-            else
+            long dirModified = baseDir.lastModified();
+            final ApplicationSupportStrategy support =
+                LocalityService.getSupportStrategy();
+            // How often this batch has moved each stripe's version on
+            int[] stored = new int[LOCK_STRIPES];
+            List<BatchWrite> started = new ArrayList<BatchWrite>( batch.size() );
+            List<Future<File>> writes = new ArrayList<Future<File>>( batch.size() );
+            for ( BatchWrite write : batch )
             {
-                local = object.fieldset();
+                int stripe = stripeIndex( write.sanitizedId );
+                if ( write.version + stored[stripe] != stripeVersions[stripe]
+                    || write.modified != lastModified( write.sanitizedId,
+                        storedFile( write.sanitizedId ) ) )
+                {
+                    // Stored again since it was merged, so merge it with
+                    // that version instead
+                    try
+                    {
+                        write.content = serialize( write, cache, loader, format );
+                    }
+                    catch ( RuntimeException e )
+                    {
+                        failures.put( write.id, e );
+                        continue;
+                    }
+                }
+                stripeVersions[stripe]++;
+                stored[stripe]++;
+                changes.changed();
+                if ( writeBehind )
+                {
+                    synchronized ( pendingWrites )
+                    {
+                        pendingWrites.remove( write.sanitizedId );
+                        pendingWrites.put( write.sanitizedId, new PendingWrite(
+                            write.sanitizedId, write.content, format,
+                            write.object ) );
+                        flushNow = pendingWrites.size() >= MAX_PENDING_WRITES;
+                    }
+                    indexAdd( write.id );
+                    continue;
+                }
+                final File dest = fileFor( write.sanitizedId, format );
+                final byte[] content = write.content;
+                Callable<File> task = new Callable<File>()
+                {
+                    public File call() throws IOException
+                    {
+                        OutputStream out = support.getObjectOutput( dest );
+                        if ( out == null )
+                        {
+                            throw new IOException( "Cannot write " + dest );
+                        }
+                        writeFile( out, content, sync );
+                        return dest;
+                    }
+                };
+                started.add( write );
+                writes.add( submit( executor, task ) );
             }
-            writeObjectToXML( id,
-                cache,
-                object.value(),
-                out,
-                loader,
-                Snapshot.getLocal(),
-                local );
-            if ( usedIds != null && !usedIds.contains( id ) )
+
+            for ( int i = 0; i < writes.size(); i++ )
             {
-                usedIdsTimestamp = System.currentTimeMillis();
-                usedIds.add( id );
+                BatchWrite write = started.get( i );
+                try
+                {
+                    File dest = writes.get( i ).get();
+                    removeOtherFormats( write.sanitizedId, format );
+                    indexAdd( write.id );
+                    // The file is newer than the stored object, but holds
+                    // exactly what was serialized from it.
+                    write.object.timestamp =
+                        Math.max( write.object.timestamp, dest.lastModified() );
+                }
+                catch ( ExecutionException e )
+                {
+                    Throwable cause = e.getCause();
+                    failures.put( write.id, cause instanceof Exception
+                        ? (Exception)cause : e );
+                }
+                catch ( InterruptedException e )
+                {
+                    Thread.currentThread().interrupt();
+                    failures.put( write.id, e );
+                }
+            }
+            if ( !writes.isEmpty() )
+            {
+                // Replacing a file creates and renames a temporary file
+                directoryChanged( dirModified );
+            }
+        }
+        finally
+        {
+            storeLock.writeLock().unlock();
+        }
+        if ( flushNow )
+        {
+            flush( false );
+        }
+        return failures;
+    }
+
+
+    // ----------------------------------------------------------
+    /**
+     * Merge an object of a batch with its newest stored version and
+     * serialize the result.
+     */
+    private byte[] serialize(
+        BatchWrite write,
+        Map<String, StoredObject> cache,
+        ClassLoader loader,
+        StorageCodec format )
+    {
+        try
+        {
+            Snapshot newest = newestVersion( write.id, write.sanitizedId,
+                storedFile( write.sanitizedId ), cache, write.object, loader );
+            ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+            writeChanges( write.id, cache, write.object, loader,
+                format.createWriter( buffer ), newest );
+            return buffer.toByteArray();
+        }
+        finally
+        {
+            Snapshot.clearNewest();
+            Snapshot.clearLocal();
+        }
+    }
+
+
+    // ----------------------------------------------------------
+    /**
+     * Run a task on an executor, or on the calling thread if there is no
+     * executor or it will not take the task.
+     */
+    private static <V> Future<V> submit( ExecutorService executor, Callable<V> task )
+    {
+        if ( executor != null )
+        {
+            try
+            {
+                return executor.submit( task );
+            }
+            catch ( RejectedExecutionException e )
+            {
+                // Run it here instead
+            }
+        }
+        FutureTask<V> result = new FutureTask<V>( task );
+        result.run();
+        return result;
+    }
+
+
+    // ----------------------------------------------------------
+    /**
+     * Write a stored object's content, and close the stream.  If the stream
+     * replaces its file atomically, a failure leaves the previous version
+     * of the file in place.
+     *
+     * @param out The stream to write to
+     * @param content The content to write
+     * @param sync True to force the content to stable storage before the
+     *             stream is closed
+     * @throws IOException if the content could not be written
+     */
+    private static void writeFile( OutputStream out, byte[] content, boolean sync )
+        throws IOException
+    {
+        boolean written = false;
+        try
+        {
+            out.write( content );
+            out.flush();
+            if ( sync && out instanceof FileOutputStream )
+            {
+                ( (FileOutputStream)out ).getFD().sync();
+            }
+            written = true;
+        }
+        finally
+        {
+            if ( !written )
+            {
+                discard( out );
+            }
+        }
+        out.close();
+    }
+
+
+    // ----------------------------------------------------------
+    /**
+     * Give up on a stream whose content could not be produced completely,
+     * leaving its file as it was if the stream allows that.
+     */
+    private static void discard( OutputStream out )
+    {
+        if ( out instanceof AtomicFileOutputStream )
+        {
+            ( (AtomicFileOutputStream)out ).abort();
+        }
+        else
+        {
+            try
+            {
+                out.close();
+            }
+            catch ( IOException e )
+            {
+                // Best attempt at close
+            }
+        }
+    }
+
+
+    // ----------------------------------------------------------
+    /**
+     * Get the snapshot of the newest stored version of an object, for
+     * merging the object's local changes against.
+     */
+    private Snapshot newestVersion(
+        String id,
+        String sanitizedId,
+        File dest,
+        Map<String, StoredObject> cache,
+        StoredObject object,
+        ClassLoader loader )
+    {
+        if ( writeBehind && isUnchangedSince( sanitizedId, dest, object ) )
+        {
+            // Nothing has been stored since this object was last read or
+            // written, so its own snapshot already describes the newest
+            // version and there is no need to parse the file again.
+            return object.fieldset();
+        }
+        Snapshot.setLocal( new Snapshot() );
+        getPersistentObjectHelper( id, cache, loader );
+        return Snapshot.getLocal();
+    }
+
+
+    // ----------------------------------------------------------
+    private void writeChanges(
+        String id,
+        Map<String, StoredObject> cache,
+        StoredObject object,
+        ClassLoader loader,
+        HierarchicalStreamWriter out,
+        Snapshot newest )
+    {
+        Snapshot local;
+        if ( object.fieldset() == null )
+        {
+            local = new Snapshot();
+        }
+        else
+        {
+            local = object.fieldset();
+        }
+        writeObject( id,
+            cache,
+            object.value(),
+            out,
+            loader,
+            newest,
+            local );
+        object.timestamp = System.currentTimeMillis();
+    }
+
+
+    // ----------------------------------------------------------
+    /**
+     * Determine whether the stored version of an object is still the one
+     * described by a cached object's snapshot, that is, whether nothing has
+     * been written for its id since the cached object was read or stored.
+     * A pending write only counts if the cached object made it.  A file
+     * only counts if it is older than the cached object by at least a tick
+     * of the file system's clock, since a store made in the same tick would
+     * not look any newer.
+     *
+     * @param sanitizedId The sanitized id of the object
+     * @param dest The file the object is stored in
+     * @param object The cached object
+     * @return True if the cached snapshot can be merged against directly
+     */
+    private boolean isUnchangedSince(
+        String sanitizedId, File dest, StoredObject object )
+    {
+        if ( object.fieldset() == null || object.timestamp() <= 0L )
+        {
+            return false;
+        }
+        PendingWrite pending = pendingWrite( sanitizedId );
+        if ( pending != null )
+        {
+            return pending.object == object
+                && pending.timestamp == object.timestamp();
+        }
+        if ( !dest.exists() )
+        {
+            return false;
+        }
+        return dest.lastModified() < object.timestamp() - MTIME_RESOLUTION;
+    }
+
+
+    // ----------------------------------------------------------
+    /**
+     * Get the time an object was last stored, taking writes that are still
+     * pending in write-behind mode into account.
+     *
+     * @param sanitizedId The sanitized id of the object
+     * @param dest The file the object is stored in
+     * @return The modification time of the newest version of the object
+     */
+    private long lastModified( String sanitizedId, File dest )
+    {
+        PendingWrite pending = pendingWrite( sanitizedId );
+        if ( pending != null )
+        {
+            return pending.timestamp;
+        }
+        return dest.lastModified();
+    }
+
+
+    // ----------------------------------------------------------
+    private PendingWrite pendingWrite( String sanitizedId )
+    {
+        synchronized ( pendingWrites )
+        {
+            return pendingWrites.get( sanitizedId );
+        }
+    }
+
+
+    // ----------------------------------------------------------
+    private List<String> pendingIds()
+    {
+        synchronized ( pendingWrites )
+        {
+            return new ArrayList<String>( pendingWrites.keySet() );
+        }
+    }
+
+
+    // ----------------------------------------------------------
+    private File fileFor( String sanitizedId, StorageCodec format )
+    {
+        return LocalityService.getSupportStrategy().getPersistentFile(
+            baseDir, sanitizedId + format.getExtension() );
+    }
+
+
+    // ----------------------------------------------------------
+    /**
+     * Get the file an object is currently stored in.  This is the file
+     * for the current codec if it exists, otherwise the file for any other
+     * codec that exists, so that objects stored in an older format can still
+     * be read.  If the object is not stored at all, this is the file it
+     * would be written to.
+     *
+     * @param sanitizedId The sanitized id of the object
+     * @return The object's file
+     */
+    private File storedFile( String sanitizedId )
+    {
+        StorageCodec current = codec;
+        File result = fileFor( sanitizedId, current );
+        if ( !result.exists() )
+        {
+            for ( StorageCodec format : CODECS )
+            {
+                if ( format != current )
+                {
+                    File other = fileFor( sanitizedId, format );
+                    if ( other.exists() )
+                    {
+                        return other;
+                    }
+                }
+            }
+        }
+        return result;
+    }
+
+
+    // ----------------------------------------------------------
+    /**
+     * Get the codec a file was written with, based on its extension.
+     *
+     * @param fileName The name of the file
+     * @return The codec, or null if the file is not a stored object
+     */
+    private static StorageCodec codecFor( String fileName )
+    {
+        for ( StorageCodec format : CODECS )
+        {
+            if ( fileName.endsWith( format.getExtension() ) )
+            {
+                return format;
+            }
+        }
+        return null;
+    }
+
+
+    // ----------------------------------------------------------
+    /**
+     * Delete the files an object was stored in under any codec other than
+     * the one it has just been written with, so that an old version is
+     * never read in place of the new one.
+     */
+    private void removeOtherFormats( String sanitizedId, StorageCodec keep )
+    {
+        for ( StorageCodec format : CODECS )
+        {
+            if ( format != keep )
+            {
+                File old = fileFor( sanitizedId, format );
+                if ( old.exists() )
+                {
+                    old.delete();
+                }
+            }
+        }
+    }
+
+
+    // ----------------------------------------------------------
+    private int stripeIndex( String sanitizedId )
+    {
+        int hash = sanitizedId.hashCode();
+        hash ^= ( hash >>> 16 );
+        return hash & ( LOCK_STRIPES - 1 );
+    }
+
+
+    // ----------------------------------------------------------
+    /**
+     * Lock a single id, sharing the store with operations on other ids.
+     *
+     * @param sanitizedId The sanitized id to lock
+     * @param exclusive True to lock the id for writing, false for reading
+     */
+    private void lockId( String sanitizedId, boolean exclusive )
+    {
+        int[] held = HELD.get();
+        boolean nested = held[0] > 0;
+        ReentrantReadWriteLock stripe = stripes[stripeIndex( sanitizedId )];
+        acquire( storeLock.readLock(), nested );
+        acquire( exclusive ? stripe.writeLock() : stripe.readLock(),
+            nested && !exclusive );
+        held[0]++;
+    }
+
+
+    // ----------------------------------------------------------
+    private void unlockId( String sanitizedId, boolean exclusive )
+    {
+        ReentrantReadWriteLock stripe = stripes[stripeIndex( sanitizedId )];
+        if ( exclusive )
+        {
+            stripe.writeLock().unlock();
+        }
+        else
+        {
+            stripe.readLock().unlock();
+        }
+        storeLock.readLock().unlock();
+        HELD.get()[0]--;
+    }
+
+
+    // ----------------------------------------------------------
+    /**
+     * Acquire a lock, optionally barging ahead of threads queued for it.
+     * Barging only waits while another thread actually holds the lock in
+     * a conflicting mode, never behind threads that are merely waiting.
+     */
+    private static void acquire( Lock lock, boolean barge )
+    {
+        if ( !barge )
+        {
+            lock.lock();
+            return;
+        }
+        while ( !lock.tryLock() )
+        {
+            Thread.yield();
+        }
+    }
+
+
+    public void writeObjectToXML(
+        String key,
+        Map<String, StoredObject> cache,
+        final Object object,
+        final Writer out,
+        final ClassLoader loader,
+        Snapshot newest,
+        Snapshot local)
+    {
+        writeObject( key, cache, object, XML.createWriter( out ), loader,
+            newest, local );
+    }
+
+
+    // ----------------------------------------------------------
+    /**
+     * Write an object, and close the writer once it has been written
+     * completely.
+     */
+    private void writeObject(
+        String key,
+        Map<String, StoredObject> cache,
+        final Object object,
+        final HierarchicalStreamWriter out,
+        final ClassLoader loader,
+        Snapshot newest,
+        Snapshot local )
+    {
+        Snapshot.setNewest( newest );
+        Snapshot.setLocal( local );
+        final XStreamBundle bundle = BUNDLES.borrow( loader, key, cache );
+        try
+        {
+            AccessController.doPrivileged( new PrivilegedAction<Object>()
+            {
+                public Object run()
+                {
+                    bundle.xstream.marshal( object, out );
+                    return null;
+                }
+            } );
+        }
+        finally
+        {
+            BUNDLES.release( loader, bundle );
+        }
+        out.close();
+    }
+
+
+    // ----------------------------------------------------------
+    public boolean hasFieldSetFor( String id, ClassLoader loader )
+    {
+        id = sanitizeId( id );
+
+        return pendingWrite( id ) != null || storedFile( id ).exists();
+    }
+
+
+    // ----------------------------------------------------------
+    public void removeFieldSet( String id )
+    {
+        String sanitizedId = sanitizeId( id );
+        lockId( sanitizedId, true );
+        try
+        {
+        stripeVersions[stripeIndex( sanitizedId )]++;
+        changes.changed();
+        idCache.remove( id );
+        indexRemove( id );
+        synchronized ( pendingWrites )
+        {
+            pendingWrites.remove( sanitizedId );
+        }
+
+        for ( StorageCodec format : CODECS )
+        {
+            File dest = fileFor( sanitizedId, format );
+            if ( dest.exists() )
+            {
+                long dirModified = baseDir.lastModified();
+                if ( dest.delete() )
+                {
+                    directoryChanged( dirModified );
+                }
+            }
+        }
+        }
+        finally
+        {
+            unlockId( sanitizedId, true );
+        }
+    }
+
+
+    // ----------------------------------------------------------
+    /**
+     * Lock the whole store, waiting for operations in progress to finish
+     * and holding off new ones until {@link #unlock()} is called.
+     */
+    public void lock()
+    {
+        storeLock.writeLock().lock();
+    }
+
+
+    // ----------------------------------------------------------
+    /**
+     * Release the lock taken by {@link #lock()}.
+     */
+    public void unlock()
+    {
+        storeLock.writeLock().unlock();
+    }
+
+    // ----------------------------------------------------------
+    /**
+     * Turn write-behind mode on or off, using the default flush interval.
+     *
+     * @param enabled True if stores should be written behind
+     * @see #setWriteBehind(boolean, long)
+     */
+    public void setWriteBehind( boolean enabled )
+    {
+        setWriteBehind( enabled, DEFAULT_FLUSH_INTERVAL );
+    }
+
+
+    // ----------------------------------------------------------
+    /**
+     * Turn write-behind mode on or off.  In write-behind mode, storing an
+     * object serializes it right away but defers writing the file: repeated
+     * stores of the same id are coalesced, and a background thread writes
+     * all pending objects in one batch every <code>flushInterval</code>
+     * milliseconds.  Stores also merge against the cached snapshot of an
+     * object instead of re-reading its file, as long as nothing else has
+     * stored that id since.  Turning write-behind mode off flushes any
+     * pending writes.
+     *
+     * @param enabled True if stores should be written behind
+     * @param flushInterval The number of milliseconds between background
+     *                      flushes
+     */
+    public void setWriteBehind( boolean enabled, long flushInterval )
+    {
+        storeLock.writeLock().lock();
+        try
+        {
+            if ( flusher != null )
+            {
+                flusher.shutdown();
+                flusher = null;
+            }
+            if ( !enabled )
+            {
+                flush( false );
+            }
+            writeBehind = enabled;
+            if ( enabled )
+            {
+                startFlusher( flushInterval );
+            }
+        }
+        finally
+        {
+            storeLock.writeLock().unlock();
+        }
+    }
+
+
+    // ----------------------------------------------------------
+    public boolean isWriteBehind()
+    {
+        return writeBehind;
+    }
+
+
+    // ----------------------------------------------------------
+    /**
+     * Write all objects that are still pending in write-behind mode to
+     * their files.  Does nothing when there are no pending writes.
+     */
+    public void flush()
+    {
+        flush( false );
+    }
+
+
+    // ----------------------------------------------------------
+    /**
+     * Write all objects that are still pending in write-behind mode to
+     * their files, and force those files to stable storage before
+     * returning.
+     */
+    public void sync()
+    {
+        flush( true );
+    }
+
+
+    // ----------------------------------------------------------
+    /**
+     * Set the codec that objects are written with from now on.  Objects
+     * already stored in another format are still read, and are rewritten
+     * in the new format the next time they are stored.  The choice is not
+     * recorded in the directory, so it must be made each time the store is
+     * opened.  Use {@link #migrate(StorageCodec)} to convert all existing
+     * objects at once.
+     *
+     * @param format The codec to write with
+     */
+    public void setCodec( StorageCodec format )
+    {
+        storeLock.writeLock().lock();
+        try
+        {
+            flush( false );
+            codec = register( format );
+        }
+        finally
+        {
+            storeLock.writeLock().unlock();
+        }
+    }
+
+
+    // ----------------------------------------------------------
+    public StorageCodec getCodec()
+    {
+        return codec;
+    }
+
+
+    // ----------------------------------------------------------
+    /**
+     * Convert every object in this store that is in another format to the
+     * given codec, and write with that codec from now on.  Objects are
+     * transcoded node by node, so their contents are unchanged, and each
+     * keeps its modification time.
+     *
+     * @param target The codec to convert to
+     * @return The number of objects converted
+     */
+    public int migrate( StorageCodec target )
+    {
+        storeLock.writeLock().lock();
+        try
+        {
+            flush( false );
+            target = register( target );
+            ApplicationSupportStrategy support =
+                LocalityService.getSupportStrategy();
+            int converted = 0;
+            File[] files = baseDir.listFiles();
+            if ( files != null )
+            {
+                for ( File old : files )
+                {
+                    StorageCodec format = codecFor( old.getName() );
+                    if ( format == null || format == target )
+                    {
+                        continue;
+                    }
+                    String name = old.getName();
+                    File dest = fileFor( name.substring( 0,
+                        name.length() - format.getExtension().length() ),
+                        target );
+                    InputStream in = support.getObjectSource( old );
+                    OutputStream out = support.getObjectOutput( dest );
+                    if ( in == null || out == null )
+                    {
+                        if ( out != null )
+                        {
+                            discard( out );
+                        }
+                        throw new RuntimeException(
+                            "Unable to convert " + old );
+                    }
+                    long dirModified = baseDir.lastModified();
+                    long modified = old.lastModified();
+                    HierarchicalStreamWriter writer =
+                        target.createWriter( out );
+                    try
+                    {
+                        new HierarchicalStreamCopier().copy(
+                            format.createReader( in ), writer );
+                    }
+                    catch ( RuntimeException e )
+                    {
+                        discard( out );
+                        throw e;
+                    }
+                    finally
+                    {
+                        try
+                        {
+                            in.close();
+                        }
+                        catch ( IOException e )
+                        {
+                            // Best attempt at close
+                        }
+                    }
+                    writer.close();
+                    dest.setLastModified( modified );
+                    old.delete();
+                    directoryChanged( dirModified );
+                    converted++;
+                }
             }
-            object.timestamp = System.currentTimeMillis();
-            Snapshot.clearNewest();
-            Snapshot.clearLocal();
+            codec = target;
+            return converted;
         }
         finally
         {
-            pLock.unlock();
+            storeLock.writeLock().unlock();
         }
     }
 
 
-    public void writeObjectToXML(
-        String key,
-        Map<String, StoredObject> cache,
-        final Object object,
-        final Writer out,
-        final ClassLoader loader,
-        Snapshot newest,
-        Snapshot local)
+    // ----------------------------------------------------------
+    /**
+     * Make a codec known to all managers, so that files it writes can be
+     * read.  Codecs are told apart by their extensions.
+     *
+     * @param format The codec
+     * @return The registered codec with the same extension, which is the
+     *         one to use from then on
+     * @throws IllegalArgumentException if a codec of a different class
+     *         already uses the same extension
+     */
+    private static StorageCodec register( StorageCodec format )
     {
-        Snapshot.setNewest( newest );
-        Snapshot.setLocal( local );
-        final XStreamBundle bundle = getXStreamFor( loader, key, cache );
-        AccessController.doPrivileged( new PrivilegedAction<Object>()
+        synchronized ( CODECS )
         {
-            public Object run()
+            for ( StorageCodec known : CODECS )
             {
-                bundle.xstream.toXML( object, out );
-                return null;
+                if ( known.getExtension().equals( format.getExtension() ) )
+                {
+                    if ( known.getClass() != format.getClass() )
+                    {
+                        throw new IllegalArgumentException( "The extension "
+                            + format.getExtension() + " is already used by "
+                            + known.getClass().getName() );
+                    }
+                    return known;
+                }
             }
-        } );
+            CODECS.add( format );
+            return format;
+        }
+    }
+
 
+    // ----------------------------------------------------------
+    private void flush( boolean force )
+    {
+        List<PendingWrite> batch;
+        synchronized ( pendingWrites )
+        {
+            if ( pendingWrites.isEmpty() )
+            {
+                return;
+            }
+            batch = new ArrayList<PendingWrite>( pendingWrites.values() );
+        }
+        for ( PendingWrite pending : batch )
+        {
+            // Each write holds its id's lock, so a pending write only leaves
+            // the pending set once its file holds the same content.
+            lockId( pending.sanitizedId, true );
             try
             {
-                out.close();
+                if ( pendingWrite( pending.sanitizedId ) != pending )
+                {
+                    // Replaced or removed since the batch was taken
+                    continue;
+                }
+                File dest = fileFor( pending.sanitizedId, pending.codec );
+                long dirModified = baseDir.lastModified();
+                OutputStream out = LocalityService.getSupportStrategy()
+                    .getObjectOutput( dest );
+                if ( out == null )
+                {
+                    removePending( pending );
+                    continue;
+                }
+                boolean written = false;
+                try
+                {
+                    writeFile( out, pending.content, force );
+                    written = true;
+                }
+                catch ( IOException e )
+                {
+                    // Keep it so the next flush tries again
+                }
+                // Replacing a file creates and renames a temporary file
+                directoryChanged( dirModified );
+                if ( written )
+                {
+                    removeOtherFormats( pending.sanitizedId, pending.codec );
+                    removePending( pending );
+                    // The file is now newer than the cached object, but
+                    // holds exactly what was serialized from it.
+                    if ( pending.object.timestamp == pending.timestamp )
+                    {
+                        pending.object.timestamp =
+                            Math.max( pending.timestamp, dest.lastModified() );
+                    }
+                }
             }
-            catch ( IOException e )
+            finally
             {
-                //Best attempt at close
+                unlockId( pending.sanitizedId, true );
             }
+        }
     }
 
 
     // ----------------------------------------------------------
-    public synchronized boolean hasFieldSetFor( String id, ClassLoader loader )
+    private void removePending( PendingWrite pending )
     {
-        id = sanitizeId( id );
-
-        File dest = LocalityService.getSupportStrategy().getPersistentFile( baseDir,id + EXT );
-        return dest.exists();
+        synchronized ( pendingWrites )
+        {
+            if ( pendingWrites.get( pending.sanitizedId ) == pending )
+            {
+                pendingWrites.remove( pending.sanitizedId );
+            }
+        }
     }
 
 
     // ----------------------------------------------------------
-    public synchronized void removeFieldSet( String id )
+    private void startFlusher( final long flushInterval )
     {
-        pLock.lock();
         try
         {
-        idCache.remove( id );
-        if ( usedIds != null )
-        {
-            usedIds.remove( id );
-        }
-        id = sanitizeId( id );
-
-        File dest = LocalityService.getSupportStrategy().getPersistentFile( baseDir,id + EXT );
-        if ( dest.exists() )
-        {
-            dest.delete();
-        }
+            flusher = Executors.newSingleThreadScheduledExecutor(
+                new ThreadFactory()
+                {
+                    public Thread newThread( Runnable task )
+                    {
+                        Thread thread =
+                            new Thread( task, "persistent-store-flusher" );
+                        thread.setDaemon( true );
+                        return thread;
+                    }
+                } );
+            flusher.scheduleWithFixedDelay( new Runnable()
+                {
+                    public void run()
+                    {
+                        flush();
+                    }
+                },
+                flushInterval,
+                flushInterval,
+                TimeUnit.MILLISECONDS );
+            if ( shutdownFlusher == null )
+            {
+                shutdownFlusher = new Thread()
+                {
+                    public void run()
+                    {
+                        flush();
+                    }
+                };
+                Runtime.getRuntime().addShutdownHook( shutdownFlusher );
+            }
         }
-        finally
+        catch ( SecurityException e )
         {
-            pLock.unlock();
+            // No background thread allowed here, so pending writes are
+            // only written when the batch fills up or on an explicit flush.
         }
     }
-    public void lock()
-    {
-        pLock.lock();
-    }
-    public void unlock()
-    {
-        pLock.unlock();
-    }
+
 
     // ----------------------------------------------------------
-    public synchronized void flushCache()
+    public void flushCache()
     {
+        flush( false );
         idCache.clear();
-        xstream.clear();
-        usedIds.clear();
+        BUNDLES.clear();
+        synchronized ( indexLock )
+        {
+            indexedDirModified = UNTRUSTED;
+        }
     }
 
 
     // ----------------------------------------------------------
-    public synchronized void flushClassCacheFor( ClassLoader loader )
+    public void flushClassCacheFor( ClassLoader loader )
     {
-        xstream.remove( loader );
+        BUNDLES.remove( loader );
     }
 
 
@@ -616,6 +2147,134 @@ public class PersistentStorageManager
         private Snapshot fieldset;
 
         private long timestamp;
+
+        // The directory generation this object was last known to be
+        // current in, or -1 if it has not been checked, and when its file
+        // was checked
+        private volatile long generation = -1L;
+
+        private volatile long checked;
+    }
+
+
+    // ----------------------------------------------------------
+    /**
+     * The stored content of an object, read but not yet parsed.
+     */
+    public static class RawObject
+    {
+        private RawObject(
+            String id, byte[] content, StorageCodec codec, long timestamp )
+        {
+            this.id = id;
+            this.content = content;
+            this.codec = codec;
+            this.timestamp = timestamp;
+        }
+
+
+        public String id()
+        {
+            return id;
+        }
+
+
+        /**
+         * Determine whether this object refers to aliased objects, which
+         * are looked up in the current session when it is parsed.
+         *
+         * @return True if the content contains any aliases
+         */
+        public boolean hasAliases()
+        {
+            byte[] marker = ALIAS_MARKER;
+            int last = content.length - marker.length;
+            for ( int i = 0; i <= last; i++ )
+            {
+                int j = 0;
+                while ( j < marker.length && content[i + j] == marker[j] )
+                {
+                    j++;
+                }
+                if ( j == marker.length )
+                {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        private static final byte[] ALIAS_MARKER =
+            Alias.class.getName().getBytes();
+
+        private String id;
+
+        private byte[] content;
+
+        private StorageCodec codec;
+
+        private long timestamp;
+    }
+
+
+    // ----------------------------------------------------------
+    /**
+     * An object of a batch, serialized but not yet stored, with what its id
+     * looked like when it was merged.
+     */
+    private static class BatchWrite
+    {
+        public BatchWrite( String id, String sanitizedId, StoredObject object )
+        {
+            this.id = id;
+            this.sanitizedId = sanitizedId;
+            this.object = object;
+        }
+
+        private String id;
+
+        private String sanitizedId;
+
+        private StoredObject object;
+
+        // The version of the id's stripe and the modification time of the
+        // id's newest version when it was merged
+        private long version;
+
+        private long modified;
+
+        private byte[] content;
+    }
+
+
+    // ----------------------------------------------------------
+    /**
+     * An object that has been serialized in write-behind mode but not yet
+     * written to its file.
+     */
+    private static class PendingWrite
+    {
+        public PendingWrite( String sanitizedId,
+            byte[] content,
+            StorageCodec codec,
+            StoredObject object )
+        {
+            this.sanitizedId = sanitizedId;
+            this.content = content;
+            this.codec = codec;
+            this.object = object;
+            this.timestamp = object.timestamp();
+        }
+
+        private String sanitizedId;
+
+        private byte[] content;
+
+        private StorageCodec codec;
+
+        private StoredObject object;
+
+        private long timestamp;
     }
 
 
@@ -629,7 +2288,8 @@ public class PersistentStorageManager
      * differ only by case still map to unique file names, even on platforms
      * that do not support case-sensitive file names (like Windows). Once
      * converted, the results are cached so that the conversion can be faster on
-     * subsequent calls for the same id.
+     * subsequent calls for the same id.  See {@link IdCodec} for the
+     * conversion itself.
      *
      * @param id
      *            The id to transform
@@ -640,25 +2300,7 @@ public class PersistentStorageManager
         String result = idCache.get( id );
         if ( result == null )
         {
-            result = WebUtilities.urlEncode( id ) + "-";
-            int length = id.length();
-            int marker = 0;
-            for ( int i = 0; i < length; i++ )
-            {
-                if ( Character.isUpperCase( id.charAt( i ) ) )
-                {
-                    marker += 1 << ( i % 4 );
-                }
-                if ( i % 4 == 3 )
-                {
-                    result += Integer.toHexString( marker );
-                    marker = 0;
-                }
-            }
-            if ( length % 4 > 0 )
-            {
-                result += Integer.toHexString( marker );
-            }
+            result = IdCodec.encode( id );
             idCache.put( id, result );
             idReverseCache.put( result, id );
         }
@@ -672,62 +2314,136 @@ public class PersistentStorageManager
         String result = idReverseCache.get( id );
         if ( result == null )
         {
-            String encodedBase = id;
-            String caps = "";
-            int pos = id.lastIndexOf( '-' );
-            if ( pos > 0 )
+            result = IdCodec.decode( id );
+            idReverseCache.put( id, result );
+            idCache.put( result, id );
+        }
+        return result;
+    }
+
+
+    // ----------------------------------------------------------
+    /**
+     * A thread-safe pool of idle XStream bundles for each class loader.
+     * A bundle's converters carry per-operation state, so each read or
+     * write borrows a bundle of its own and returns it when done.  Nested
+     * operations on the same thread simply borrow another one.
+     */
+    private static class XStreamBundlePool
+    {
+        // The most idle bundles kept for any one class loader.
+        private static final int MAX_IDLE = 8;
+
+        // Every bundle's XStream holds on to its class loader, so the idle
+        // lists are only softly held.  Otherwise each value would keep its
+        // own key reachable, and no class loader could ever be collected.
+        private Map<ClassLoader, SoftReference<LinkedList<XStreamBundle>>> idle =
+            new WeakHashMap<ClassLoader, SoftReference<LinkedList<XStreamBundle>>>( 256 );
+
+
+        // ----------------------------------------------------------
+        public XStreamBundle borrow(
+            ClassLoader loader, String key, Map<String, StoredObject> cache )
+        {
+            XStreamBundle result = null;
+            synchronized ( this )
+            {
+                LinkedList<XStreamBundle> bundles = idleBundles( loader );
+                if ( bundles != null && !bundles.isEmpty() )
+                {
+                    result = bundles.removeFirst();
+                }
+            }
+            if ( result == null )
             {
-                encodedBase = id.substring( 0, pos );
-                caps = id.substring( pos + 1 );
+                result = create( loader );
             }
-            String unencoded = WebUtilities.urlDecode( encodedBase );
+            result.init( key, cache );
+            return result;
+        }
 
-            result = "";
-            pos = 0;
-            int length = caps.length();
-            for ( int i = 0; i < length && pos < unencoded.length(); i++ )
+
+        // ----------------------------------------------------------
+        public void release( ClassLoader loader, XStreamBundle bundle )
+        {
+            bundle.init( null, null );
+            synchronized ( this )
             {
-                int digit = Integer.parseInt( caps.substring( i, i + 1 ), 16 );
-                for ( int j = 0; j < 4 && pos < unencoded.length(); j++ )
+                LinkedList<XStreamBundle> bundles = idleBundles( loader );
+                if ( bundles == null )
                 {
-                    if ( ( digit & ( 1 << j ) ) != 0 )
-                    {
-                        result += Character.toUpperCase( unencoded.charAt( pos++ ) );
-                    }
-                    else
-                    {
-                        result += Character.toLowerCase( unencoded.charAt( pos++ ) );
-                    }
+                    bundles = new LinkedList<XStreamBundle>();
+                    idle.put( loader,
+                        new SoftReference<LinkedList<XStreamBundle>>( bundles ) );
+                }
+                if ( bundles.size() < MAX_IDLE )
+                {
+                    bundles.addFirst( bundle );
                 }
             }
-            if ( pos < unencoded.length() )
+        }
+
+
+        // ----------------------------------------------------------
+        public void prewarm( ClassLoader loader, int count )
+        {
+            int missing;
+            synchronized ( this )
             {
-                result += unencoded.substring( pos );
+                LinkedList<XStreamBundle> bundles = idleBundles( loader );
+                missing = Math.min( count, MAX_IDLE )
+                    - ( bundles == null ? 0 : bundles.size() );
+            }
+            for ( int i = 0; i < missing; i++ )
+            {
+                release( loader, create( loader ) );
             }
-            idReverseCache.put( id, result );
-            idCache.put( result, id );
         }
-        return result;
-    }
 
 
-    // ----------------------------------------------------------
-    private XStreamBundle getXStreamFor( final ClassLoader loader, String key, Map<String,StoredObject> cache )
-    {
-        XStreamBundle result = xstream.get( loader );
-        if ( result == null )
+        // ----------------------------------------------------------
+        public synchronized void remove( ClassLoader loader )
+        {
+            idle.remove( loader );
+        }
+
+
+        // ----------------------------------------------------------
+        public synchronized void clear()
+        {
+            idle.clear();
+        }
+
+
+        // ----------------------------------------------------------
+        private LinkedList<XStreamBundle> idleBundles( ClassLoader loader )
         {
-            result = AccessController.doPrivileged( new PrivilegedAction<XStreamBundle>()
+            SoftReference<LinkedList<XStreamBundle>> ref = idle.get( loader );
+            if ( ref == null )
+            {
+                return null;
+            }
+            LinkedList<XStreamBundle> bundles = ref.get();
+            if ( bundles == null )
+            {
+                // Collected under memory pressure
+                idle.remove( loader );
+            }
+            return bundles;
+        }
+
+
+        // ----------------------------------------------------------
+        private XStreamBundle create( final ClassLoader loader )
+        {
+            return AccessController.doPrivileged( new PrivilegedAction<XStreamBundle>()
             {
                 public XStreamBundle run()
                 {
                     return new XStreamBundle( loader );
                 }
             } );
-            xstream.put( loader, result );
         }
-        result.init(key, cache);
-        return result;
     }
 
 
@@ -796,10 +2512,62 @@ public class PersistentStorageManager
     }
 
 
+    /**
+     * Tell whether a cached object is out of date.  An object already found
+     * to be current in the directory's current generation is not checked
+     * again for up to the change tracker's check interval, so reading an
+     * object that has not changed touches its file at most once per
+     * interval.  A file rewritten in place by something other than this
+     * manager leaves the directory, and so the generation, as it was, so
+     * the object's file is checked again after that.
+     *
+     * @param key The id of the object
+     * @param object The cached object
+     * @return True if the object has been stored again since it was read
+     */
+    public boolean hasFieldSetChanged( String key, StoredObject object )
+    {
+        long now = System.currentTimeMillis();
+        long generation = changes.current( baseDir );
+        if ( object.generation == generation
+            && now - object.checked < changes.getCheckInterval() )
+        {
+            return false;
+        }
+        if ( hasFieldSetChanged( key, object.timestamp() ) )
+        {
+            return true;
+        }
+        object.generation = generation;
+        object.checked = now;
+        return false;
+    }
+
+
+    // ----------------------------------------------------------
+    /**
+     * Get the service tracking changes to this manager's directory, which
+     * decides how often the directory is checked for changes made by other
+     * processes.
+     *
+     * @return The change tracker
+     */
+    public DirectoryChangeTracker getChangeTracker()
+    {
+        return changes;
+    }
+
+
+    // ----------------------------------------------------------
     public boolean hasFieldSetChanged( String key, long timestamp )
     {
         String sanitized = sanitizeId( key );
-        File persisted = LocalityService.getSupportStrategy().getPersistentFile( baseDir,sanitized + EXT );
+        File persisted = storedFile( sanitized );
+        PendingWrite pending = pendingWrite( sanitized );
+        if ( pending != null )
+        {
+            return pending.timestamp > timestamp;
+        }
         return persisted.exists() && persisted.lastModified() > timestamp;
     }
 }
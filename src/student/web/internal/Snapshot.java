@@ -19,6 +19,11 @@ import org.apache.commons.collections.BidiMap;
  * maps, and arrays. The context for these are different then normal field sets.
  * For these objects, we must remember the old ordering of objects so we can
  * merge changes from the persistence store.
+ * <p>
+ * The local and newest snapshots of the operation in progress are kept per
+ * thread, so objects can be marshaled and unmarshaled on several threads at
+ * once.
+ * </p>
  *
  * @author mjw87
  *
@@ -26,13 +31,22 @@ import org.apache.commons.collections.BidiMap;
 public class Snapshot
 {
     
-    // This snapshot records all of the information about he object currently in
-    // use by the application
-    private static Snapshot local = null;
+    // The snapshots of the operation in progress on each thread.  The first
+    // records all of the information about he object currently in use by the
+    // application, and the second all of the information about the newest
+    // version of the object that has been retrieved from the store.
+    private static final ThreadLocal<Snapshot[]> current =
+        new ThreadLocal<Snapshot[]>()
+        {
+            protected Snapshot[] initialValue()
+            {
+                return new Snapshot[2];
+            }
+        };
+
+    private static final int LOCAL = 0;
 
-    // This snapshot records all of the information about the newest version of
-    // the object that has been retrieved from the store.
-    private static Snapshot newest = null;
+    private static final int NEWEST = 1;
 
 
     /**
@@ -40,7 +54,7 @@ public class Snapshot
      */
     public static void clearLocal()
     {
-        local = null;
+        current.get()[LOCAL] = null;
     }
 
 
@@ -49,7 +63,7 @@ public class Snapshot
      */
     public static void clearNewest()
     {
-        newest = null;
+        current.get()[NEWEST] = null;
     }
 
 
@@ -60,7 +74,7 @@ public class Snapshot
      */
     public static Snapshot getLocal()
     {
-        return local;
+        return current.get()[LOCAL];
     }
 
 
@@ -72,7 +86,22 @@ public class Snapshot
      */
     public static Snapshot getNewest()
     {
-        return newest;
+        return current.get()[NEWEST];
+    }
+
+
+    /**
+     * Determine whether the newest snapshot is the local snapshot itself.
+     * This is the case when the store is known not to have changed since
+     * the local snapshot was taken, so the local snapshot's field sets and
+     * base collections already describe the newest stored version.
+     *
+     * @return True if there is no separate newest version to merge against.
+     */
+    public static boolean newestIsLocal()
+    {
+        Snapshot[] snapshots = current.get();
+        return snapshots[NEWEST] == snapshots[LOCAL];
     }
 
 
@@ -87,16 +116,17 @@ public class Snapshot
      */
     public static UUID lookupId( Object source, boolean generate )
     {
-        UUID id = local.findId( source );
+        Snapshot[] snapshots = current.get();
+        UUID id = snapshots[LOCAL].findId( source );
         if ( id != null )
         {
             return id;
         }
-        if ( newest != null )
-            id = newest.findId( source );
+        if ( snapshots[NEWEST] != null )
+            id = snapshots[NEWEST].findId( source );
         if ( generate )
         {
-            id = UUID.randomUUID();
+            id = ObjectIdGenerator.nextId();
         }
         return id;
     }
@@ -110,7 +140,7 @@ public class Snapshot
      */
     public static void setLocal( Snapshot snapshot )
     {
-        local = snapshot;
+        current.get()[LOCAL] = snapshot;
     }
 
 
@@ -122,7 +152,7 @@ public class Snapshot
      */
     public static void setNewest( Snapshot snapshot )
     {
-        newest = snapshot;
+        current.get()[NEWEST] = snapshot;
     }
 
     Map<Object, Map<String, Object>> objToFieldSet =
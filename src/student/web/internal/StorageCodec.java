@@ -0,0 +1,72 @@
+/*==========================================================================*\
+ |  $Id$
+ |*-------------------------------------------------------------------------*|
+ |  Copyright (C) 2009-2010 Virginia Tech
+ |
+ |  This file is part of the Student-Library.
+ |
+ |  The Student-Library is free software; you can redistribute it and/or
+ |  modify it under the terms of the GNU Lesser General Public License as
+ |  published by the Free Software Foundation; either version 3 of the
+ |  License, or (at your option) any later version.
+ |
+ |  The Student-Library is distributed in the hope that it will be useful,
+ |  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ |  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ |  GNU Lesser General Public License for more details.
+ |
+ |  You should have received a copy of the GNU Lesser General Public License
+ |  along with the Student-Library; if not, see <http://www.gnu.org/licenses/>.
+\*==========================================================================*/
+
+package student.web.internal;
+
+import java.io.InputStream;
+import java.io.OutputStream;
+
+import com.thoughtworks.xstream.io.HierarchicalStreamReader;
+import com.thoughtworks.xstream.io.HierarchicalStreamWriter;
+
+//-------------------------------------------------------------------------
+/**
+ *  The on-disk format of the objects in a persistent store.  A codec only
+ *  decides how the tree of nodes and attributes produced by the store's
+ *  converters is encoded, so every codec keeps the same ids, field sets and
+ *  aliases.  Each codec stores its files under its own extension, which is
+ *  how the store knows which codec to read a file with.
+ *
+ *  @author  agent
+ *  @author Last changed by $Author$
+ *  @version $Revision$, $Date$
+ *  @see PersistentStorageManager#setCodec(StorageCodec)
+ */
+public interface StorageCodec
+{
+    // ----------------------------------------------------------
+    /**
+     * Get the extension of the files written by this codec, including the
+     * leading period.  It must differ from those of all other codecs.
+     * @return The extension
+     */
+    String getExtension();
+
+
+    // ----------------------------------------------------------
+    /**
+     * Create a writer that encodes an object's node tree to a stream.
+     * Closing the writer closes the stream.
+     * @param out The stream to write to
+     * @return The writer
+     */
+    HierarchicalStreamWriter createWriter( OutputStream out );
+
+
+    // ----------------------------------------------------------
+    /**
+     * Create a reader positioned at the root node of an object's node
+     * tree, as encoded by {@link #createWriter(OutputStream)}.
+     * @param in The stream to read from
+     * @return The reader
+     */
+    HierarchicalStreamReader createReader( InputStream in );
+}
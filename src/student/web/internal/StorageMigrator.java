@@ -0,0 +1,104 @@
+/*==========================================================================*\
+ |  $Id$
+ |*-------------------------------------------------------------------------*|
+ |  Copyright (C) 2009-2010 Virginia Tech
+ |
+ |  This file is part of the Student-Library.
+ |
+ |  The Student-Library is free software; you can redistribute it and/or
+ |  modify it under the terms of the GNU Lesser General Public License as
+ |  published by the Free Software Foundation; either version 3 of the
+ |  License, or (at your option) any later version.
+ |
+ |  The Student-Library is distributed in the hope that it will be useful,
+ |  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ |  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ |  GNU Lesser General Public License for more details.
+ |
+ |  You should have received a copy of the GNU Lesser General Public License
+ |  along with the Student-Library; if not, see <http://www.gnu.org/licenses/>.
+\*==========================================================================*/
+
+package student.web.internal;
+
+// -------------------------------------------------------------------------
+/**
+ *  A main program that converts the objects in one or more directories of
+ *  the persistent store to another {@link StorageCodec}.  The first
+ *  argument names the format to convert to, either <code>xml</code> or
+ *  <code>binary</code>, and each remaining argument names a directory
+ *  relative to the store's base directory.  For example:
+ *  <pre>
+ *    java -cp student.jar student.web.internal.StorageMigrator binary shared
+ *  </pre>
+ *  <p>
+ *  Objects are transcoded without being loaded, so their classes do not
+ *  need to be on the class path.  Nothing else should be using the
+ *  directories while they are converted.
+ *  </p>
+ *
+ *  @author  agent
+ *  @author Last changed by $Author$
+ *  @version $Revision$, $Date$
+ */
+public class StorageMigrator
+{
+    //~ Constructors ..........................................................
+
+    // ----------------------------------------------------------
+    private StorageMigrator()
+    {
+        // Only main() is used
+    }
+
+
+    //~ Methods ...............................................................
+
+    // ----------------------------------------------------------
+    /**
+     * Get the codec for a format name given on the command line.
+     *
+     * @param format The name of the format, <code>xml</code> or
+     *               <code>binary</code>
+     * @return The codec, or null if the name is not recognized
+     */
+    public static StorageCodec codecNamed( String format )
+    {
+        if ( "xml".equalsIgnoreCase( format ) )
+        {
+            return new XmlStorageCodec();
+        }
+        else if ( "binary".equalsIgnoreCase( format ) )
+        {
+            return new BinaryStorageCodec();
+        }
+        return null;
+    }
+
+
+    // ----------------------------------------------------------
+    /**
+     * Convert the named directories to the named format.
+     *
+     * @param args the argument list from the command line
+     */
+    public static void main( String[] args )
+    {
+        StorageCodec target = args == null || args.length < 2
+            ? null
+            : codecNamed( args[0] );
+        if ( target == null )
+        {
+            System.out.println( "Usage: StorageMigrator (xml|binary) "
+                + "directory [directory ...]" );
+            return;
+        }
+        for ( int i = 1; i < args.length; i++ )
+        {
+            int converted =
+                PersistentStorageManager.getInstance( args[i] ).migrate( target );
+            System.out.println( args[i] + ": converted " + converted
+                + " object" + ( converted == 1 ? "" : "s" ) );
+        }
+    }
+}
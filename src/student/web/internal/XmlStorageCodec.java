@@ -0,0 +1,87 @@
+/*==========================================================================*\
+ |  $Id$
+ |*-------------------------------------------------------------------------*|
+ |  Copyright (C) 2009-2010 Virginia Tech
+ |
+ |  This file is part of the Student-Library.
+ |
+ |  The Student-Library is free software; you can redistribute it and/or
+ |  modify it under the terms of the GNU Lesser General Public License as
+ |  published by the Free Software Foundation; either version 3 of the
+ |  License, or (at your option) any later version.
+ |
+ |  The Student-Library is distributed in the hope that it will be useful,
+ |  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ |  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ |  GNU Lesser General Public License for more details.
+ |
+ |  You should have received a copy of the GNU Lesser General Public License
+ |  along with the Student-Library; if not, see <http://www.gnu.org/licenses/>.
+\*==========================================================================*/
+
+package student.web.internal;
+
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.Writer;
+
+import com.thoughtworks.xstream.io.HierarchicalStreamReader;
+import com.thoughtworks.xstream.io.HierarchicalStreamWriter;
+import com.thoughtworks.xstream.io.xml.XppDriver;
+
+//-------------------------------------------------------------------------
+/**
+ *  The original storage format: pretty-printed XML in
+ *  <code>.dataxml</code> files, in the platform's default encoding.  This
+ *  is the default codec, and stores written by earlier versions of this
+ *  library are in this format.
+ *
+ *  @author  agent
+ *  @author Last changed by $Author$
+ *  @version $Revision$, $Date$
+ */
+public class XmlStorageCodec
+    implements StorageCodec
+{
+    //~ Instance/static variables .............................................
+
+    /** The extension of XML files. */
+    public static final String EXTENSION = ".dataxml";
+
+    private final XppDriver driver = new XppDriver();
+
+
+    //~ Methods ...............................................................
+
+    // ----------------------------------------------------------
+    public String getExtension()
+    {
+        return EXTENSION;
+    }
+
+
+    // ----------------------------------------------------------
+    public HierarchicalStreamWriter createWriter( OutputStream out )
+    {
+        return driver.createWriter( out );
+    }
+
+
+    // ----------------------------------------------------------
+    /**
+     * Create a writer that encodes an object's node tree as XML text.
+     * @param out The writer to write the text to
+     * @return The writer
+     */
+    public HierarchicalStreamWriter createWriter( Writer out )
+    {
+        return driver.createWriter( out );
+    }
+
+
+    // ----------------------------------------------------------
+    public HierarchicalStreamReader createReader( InputStream in )
+    {
+        return driver.createReader( in );
+    }
+}
@@ -12,9 +12,10 @@ import java.util.List;
 import java.util.Map;
 import java.util.UUID;
 import java.util.Vector;
-import org.webcat.diff.DiffList;
+import org.webcat.diff.CompactDiff;
 import org.webcat.diff.DiffPatcher;
 import org.webcat.diff.Differ;
+import org.webcat.diff.Equivalence;
 import org.webcat.diff.PatchApplication;
 import student.web.internal.PersistentStorageManager.FakePrintWriter;
 import student.web.internal.Snapshot;
@@ -92,6 +93,33 @@ public class CollectionConverter extends AbstractCollectionConverter
     }
 
 
+    /**
+     * Matches items the same way as {@link ObjectIdComparator}, so the diff
+     * looks up each item's id once instead of on every comparison.
+     */
+    private class ObjectIdEquivalence implements Equivalence<Object>
+    {
+        private final ObjectIdComparator comparator = new ObjectIdComparator();
+
+
+        public int hash( Object item )
+        {
+            if ( item == null )
+                return 0;
+            UUID id = Snapshot.lookupId( item, false );
+            if ( id == null )
+                return System.identityHashCode( item );
+            return id.hashCode();
+        }
+
+
+        public boolean equivalent( Object item1, Object item2 )
+        {
+            return comparator.compare( item1, item2 ) == 0;
+        }
+    }
+
+
     public void marshal(
         Object source,
         HierarchicalStreamWriter writer,
@@ -138,23 +166,28 @@ public class CollectionConverter extends AbstractCollectionConverter
             if ( baseList == null )
                 baseList = Collections.<Object> emptyList();
             // Get the newest version of this collection we have ever seen.
-            Object newestCollection = Snapshot.getNewest()
-                .findObject( collectionId );
-            // Convert the newest version of this collection to a list.
-            List<Object> newestList = convertToList( newestCollection );
+            // When the store is unchanged, the local snapshot maps the id to
+            // the live collection, so the base list is the newest version.
+            List<Object> newestList = null;
+            if ( !Snapshot.newestIsLocal() )
+            {
+                Object newestCollection = Snapshot.getNewest()
+                    .findObject( collectionId );
+                // Convert the newest version of this collection to a list.
+                newestList = convertToList( newestCollection );
+            }
             // If there is no newest list set it to the base list.
             if ( newestList == null )
                 newestList = baseList;
             // See what has changed in the list locally.
-            Differ<Object> localDiff = new Differ<Object>( baseList,
+            Differ<Object> localDiff = Differ.withEquivalence( baseList,
                 localCollection,
-                new ObjectIdComparator() );
+                new ObjectIdEquivalence() );
             // Compute Differences
-            DiffList<Object> diffList = localDiff.getDifferences();
+            CompactDiff<Object> diffList = localDiff.getCompactDifferences();
             // Prepare a patcher to patch the new local items onto the most
             // current list from the store.
-            DiffPatcher<Object> patcher = new DiffPatcher<Object>( baseList,
-                diffList,
+            DiffPatcher<Object> patcher = new DiffPatcher<Object>( diffList,
                 new ObjectIdComparator() );
             // Patching app result
             PatchApplication<Object> patchResult = patcher.apply( newestList );
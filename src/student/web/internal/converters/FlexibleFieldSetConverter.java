@@ -27,14 +27,13 @@ import com.thoughtworks.xstream.converters.reflection.ReflectionProvider;
 import com.thoughtworks.xstream.io.HierarchicalStreamReader;
 import com.thoughtworks.xstream.io.HierarchicalStreamWriter;
 import com.thoughtworks.xstream.mapper.Mapper;
-import java.lang.reflect.Constructor;
-import java.lang.reflect.Method;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.Map;
 import java.util.TreeMap;
 import java.util.UUID;
 import student.web.AbstractPersistentMap;
+import student.web.internal.ClassPlan;
 import student.web.internal.LocalityService;
 import student.web.internal.PersistentStorageManager.StoredObject;
 import student.web.internal.Snapshot;
@@ -130,6 +129,84 @@ public class FlexibleFieldSetConverter extends ReflectionConverter
     }
 
 
+    // ----------------------------------------------------------
+    /**
+     * Merge an object's fields with the field sets it was read with and
+     * that the newest stored version has, the same way
+     * {@link #generateUpdatedFieldSet(Snapshot, Snapshot, Object, Map)}
+     * does, but building only the merged map.  A field changed locally
+     * since the object was read wins over one changed in the newest
+     * version, which wins over the value it was read with.
+     *
+     * @param local The snapshot the object was read with
+     * @param newest The snapshot of the newest stored version, if any
+     * @param source The object
+     * @param plan The plan for the object's class
+     * @param values The object's field values, by slot
+     * @return The merged field set
+     */
+    private Map<String, Object> mergeFieldSet(
+        Snapshot local,
+        Snapshot newest,
+        Object source,
+        ClassPlan plan,
+        Object[] values )
+    {
+        if ( newest == null )
+        {
+            return plan.toFieldMap( values );
+        }
+        Map<String, Object> localFieldSet = local.getFieldSetFromObject( source );
+        Map<String, Object> newestFieldSet = newest.getFieldSetFromId( Snapshot.lookupId( source,
+            false ) );
+        if ( localFieldSet == null && newestFieldSet == null )
+        {
+            return plan.toFieldMap( values );
+        }
+        if ( localFieldSet == null )
+        {
+            return new TreeMap<String, Object>( newestFieldSet );
+        }
+        Map<String, Object> finalFieldSet =
+            new TreeMap<String, Object>( localFieldSet );
+        if ( newestFieldSet == null )
+        {
+            return finalFieldSet;
+        }
+        for ( Map.Entry<String, Object> field : newestFieldSet.entrySet() )
+        {
+            if ( isChanged( localFieldSet, field.getKey(), field.getValue() ) )
+            {
+                finalFieldSet.put( field.getKey(), field.getValue() );
+            }
+        }
+        for ( int i = 0; i < values.length; i++ )
+        {
+            if ( isChanged( localFieldSet, plan.name( i ), values[i] ) )
+            {
+                finalFieldSet.put( plan.name( i ), values[i] );
+            }
+        }
+        return finalFieldSet;
+    }
+
+
+    // ----------------------------------------------------------
+    /**
+     * Tell whether a field's value differs from the one in a field set, as
+     * {@link #difference(Map, Map)} decides it.
+     */
+    private static boolean isChanged(
+        Map<String, Object> original, String key, Object value )
+    {
+        if ( value == null )
+        {
+            return original.get( key ) != null;
+        }
+        return !( isPrimitiveValue( value ) && value.equals( original.get( key ) ) );
+    }
+
+
     /**
      * Compute the difference between two field sets. This is not the same as
      * "set difference". Instead, it is really the "changes" map minus any
@@ -181,10 +258,67 @@ public class FlexibleFieldSetConverter extends ReflectionConverter
                 + source.getClass().getSimpleName() );
         }
         writer.addAttribute( XMLConstants.FIELDSET_ATTRIBUTE, "true" );
-        Map<String, Object> fields = objectToFieldMap( source );
+        ClassPlan plan = ClassPlan.forClass( source.getClass() );
+        if ( !plan.hasFields() )
+        {
+            marshalFieldMap( source, writer, context );
+            return;
+        }
+        Object[] values = plan.read( source );
         // BUG: The persistence store will attempt to persist an inner class.
         // This is the same as storing an object that references the Application
         // class
+        int outer = plan.slotOf( "this$0" );
+        if ( outer >= 0 )
+        {
+            throw new IllegalArgumentException( "The class "
+                + source.getClass().getName()
+                + " cannot be persisted because the definition of this class is contained within the "
+                + plan.type( outer ).getName() + " class.  Move "
+                + source.getClass().getName()
+                + " to its own JAVA file." );
+        }
+        if ( TemplateManager.getInstance().isEnabled() )
+        {
+            checkFields( source.getClass().getName(), plan.toFieldMap( values ) );
+        }
+        UUID id = Snapshot.lookupId( source, true );
+
+        writer.addAttribute( XMLConstants.ID_ATTRIBUTE, id.toString() );
+
+        Map<String, Object> updatedFieldSets = mergeFieldSet( Snapshot.getLocal(),
+            Snapshot.getNewest(),
+            source,
+            plan,
+            values );
+        writeNullableFields( updatedFieldSets, writer, context );
+        // Only fields whose merged value is not already in place change
+        for ( int i = 0; i < values.length; i++ )
+        {
+            Object merged = updatedFieldSets.get( plan.name( i ) );
+            if ( merged != null && merged != values[i]
+                && !plan.write( source, i, merged ) )
+            {
+                reflectionProvider.writeField( source, plan.name( i ), merged,
+                    plan.declaringClass( i ) );
+            }
+        }
+        Snapshot.getLocal().resolveObject( id, source, updatedFieldSets );
+        mapConverter.marshal( updatedFieldSets, writer, context );
+    }
+
+
+    // ----------------------------------------------------------
+    /**
+     * Marshal an object whose fields cannot be accessed directly, through
+     * the reflection provider and field maps.
+     */
+    private void marshalFieldMap(
+        Object source,
+        HierarchicalStreamWriter writer,
+        MarshallingContext context )
+    {
+        Map<String, Object> fields = objectToFieldMap( source );
         if ( fields.containsKey( "this$0" ) )
         {
             throw new IllegalArgumentException( "The class "
@@ -203,6 +337,23 @@ public class FlexibleFieldSetConverter extends ReflectionConverter
             Snapshot.getNewest(),
             source,
             fields );
+        writeNullableFields( updatedFieldSets, writer, context );
+        restoreObjectFromFieldMap( source, updatedFieldSets );
+        Snapshot.getLocal().resolveObject( id, source, updatedFieldSets );
+        mapConverter.marshal( updatedFieldSets, writer, context );
+    }
+
+
+    // ----------------------------------------------------------
+    /**
+     * Write the hidden nullable fields of a merged field set, dropping them
+     * from the set.
+     */
+    private void writeNullableFields(
+        Map<String, Object> updatedFieldSets,
+        HierarchicalStreamWriter writer,
+        MarshallingContext context )
+    {
         List<String> nulledKeys = new ArrayList<String>();
         for ( String key : updatedFieldSets.keySet() )
         {
@@ -216,9 +367,6 @@ public class FlexibleFieldSetConverter extends ReflectionConverter
         }
         for ( String key : nulledKeys )
             updatedFieldSets.remove( key );
-        restoreObjectFromFieldMap( source, updatedFieldSets );
-        Snapshot.getLocal().resolveObject( id, source, updatedFieldSets );
-        mapConverter.marshal( updatedFieldSets, writer, context );
     }
 
 
@@ -283,21 +431,11 @@ public class FlexibleFieldSetConverter extends ReflectionConverter
     }
     private Object getInstance(UnmarshallingContext context)
     {
-        Object result = null;
         Class<?> clazz = context.getRequiredType();
-        
-        try
-        {
-            Constructor<?> defaultConst = clazz
-                .getConstructor();
-            Object newResult = defaultConst.newInstance();
-//            restoreObjectFromFieldMap( newResult, fields );
-            result = newResult;
-
-        }
-        catch( Exception e)
+        Object result = ClassPlan.forClass( clazz ).newInstance();
+        if ( result == null )
         {
-            result = reflectionProvider.newInstance( context.getRequiredType() );
+            result = reflectionProvider.newInstance( clazz );
         }
         return result;
 //        catch ( SecurityException e1 )
@@ -371,16 +509,7 @@ public class FlexibleFieldSetConverter extends ReflectionConverter
 
         if ( fields != null )
         {
-            try
-            {
-                Method initFieldsMethod = result.getClass()
-                    .getMethod( "initializeFields", (Class<?>)null );
-                initFieldsMethod.invoke( result, (Object[])null );
-            }
-            catch(Exception e)
-            {
-                //its ok if this doesnt exist
-            }
+            ClassPlan.forClass( result.getClass() ).initialize( result );
 //            result = reflectionProvider.newInstance( context.getRequiredType() );
             restoreObjectFromFieldMap( result, fields ); /*
                                                                * && pjProvider
@@ -495,6 +624,25 @@ public class FlexibleFieldSetConverter extends ReflectionConverter
         Object object,
         final Map<String, Object> fields )
     {
+        ClassPlan plan = ClassPlan.forClass( object.getClass() );
+        if ( plan.hasFields() )
+        {
+            boolean allFound = true;
+            for ( int i = 0; i < plan.size(); i++ )
+            {
+                Object toLoad = fields.get( plan.name( i ) );
+                if ( toLoad == null )
+                {
+                    allFound = false;
+                }
+                else if ( !plan.write( object, i, toLoad ) )
+                {
+                    reflectionProvider.writeField( object, plan.name( i ),
+                        toLoad, plan.declaringClass( i ) );
+                }
+            }
+            return allFound;
+        }
         final Object result = object;
         final BooleanWrapper allFound = new BooleanWrapper();
         allFound.value = true;
@@ -109,6 +109,11 @@ public class MapConverter
 
     public static void updateMap(Map<Object, Object> source)
     {
+        // Nothing newer than what we already have locally
+        if (Snapshot.newestIsLocal())
+        {
+            return;
+        }
         // Lookup the id for this map
         UUID mapId = Snapshot.lookupId(source, false);
         // Get the newest copy of this map
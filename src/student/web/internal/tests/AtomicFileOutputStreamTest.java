@@ -0,0 +1,175 @@
+package student.web.internal.tests;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Arrays;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import student.web.internal.AtomicFileOutputStream;
+import student.web.internal.LocalApplicationSupportStrategy;
+
+
+public class AtomicFileOutputStreamTest
+{
+    private static final String TEMP = AtomicFileOutputStream.TEMP_SUFFIX;
+
+    File dir;
+
+    File dest;
+
+
+    @Before
+    public void setupFile()
+        throws IOException
+    {
+        dir = new File( "data/atomic" );
+        dir.mkdirs();
+        dest = new File( dir, "object.dataxml" );
+        FileOutputStream out = new FileOutputStream( dest );
+        out.write( "old".getBytes() );
+        out.close();
+    }
+
+
+    @After
+    public void removeFiles()
+    {
+        for ( File file : dir.listFiles() )
+        {
+            file.delete();
+        }
+        dir.delete();
+    }
+
+
+    private String read( File file )
+        throws IOException
+    {
+        InputStream in =
+            new LocalApplicationSupportStrategy().getObjectSource( file );
+        StringBuilder result = new StringBuilder();
+        int c;
+        while ( ( c = in.read() ) >= 0 )
+        {
+            result.append( (char)c );
+        }
+        in.close();
+        return result.toString();
+    }
+
+
+    private File create( String name )
+        throws IOException
+    {
+        File file = new File( dir, name );
+        FileOutputStream out = new FileOutputStream( file );
+        out.write( name.endsWith( "-old" + TEMP ) ? "aside".getBytes()
+            : "temp".getBytes() );
+        out.close();
+        return file;
+    }
+
+
+    @Test
+    public void replacesOnlyOnClose()
+        throws IOException
+    {
+        AtomicFileOutputStream out = new AtomicFileOutputStream( dest );
+        byte[] content = new byte[20000];
+        for ( int i = 0; i < content.length; i++ )
+        {
+            content[i] = (byte)( 'a' + i % 26 );
+        }
+        out.write( 'x' );
+        out.write( content );
+        out.flush();
+        assertEquals( "old", read( dest ) );
+        out.close();
+        String written = read( dest );
+        assertEquals( 20001, written.length() );
+        assertEquals( "xabc", written.substring( 0, 4 ) );
+        assertEquals( 1, dir.list().length );
+    }
+
+
+    @Test
+    public void rewritesLargeFileWhileReadingIt()
+        throws IOException
+    {
+        LocalApplicationSupportStrategy support =
+            new LocalApplicationSupportStrategy();
+        byte[] content = new byte[3 << 20];
+        Arrays.fill( content, (byte)'a' );
+        OutputStream out = support.getObjectOutput( dest );
+        out.write( content );
+        out.close();
+
+        // Still open, so anything it holds on to is still alive
+        InputStream in = support.getObjectSource( dest );
+        assertEquals( 'a', in.read() );
+        Arrays.fill( content, (byte)'b' );
+        out = support.getObjectOutput( dest );
+        out.write( content );
+        out.close();
+
+        assertEquals( 'a', in.read() );
+        in.close();
+        String written = read( dest );
+        assertEquals( content.length, written.length() );
+        assertEquals( 'b', written.charAt( content.length - 1 ) );
+        assertEquals( 1, dir.list().length );
+    }
+
+
+    @Test
+    public void removesStaleFiles()
+        throws IOException
+    {
+        long stale = System.currentTimeMillis()
+            - AtomicFileOutputStream.STALE_AGE - 10000;
+        File abandoned = create( "object.dataxml-123" + TEMP );
+        abandoned.setLastModified( stale );
+        File writing = create( "object.dataxml-456" + TEMP );
+        File replaced = create( "object.dataxml-789-old" + TEMP );
+        File renamedAside = create( "other.dataxml-42-old" + TEMP );
+        renamedAside.setLastModified( stale );
+        File data = create( "third.dataxml" );
+        data.setLastModified( stale );
+
+        assertEquals( 3, AtomicFileOutputStream.removeStaleFiles( dir ) );
+        assertFalse( abandoned.exists() );
+        assertTrue( writing.exists() );
+        assertFalse( replaced.exists() );
+        assertEquals( "old", read( dest ) );
+        assertFalse( renamedAside.exists() );
+        assertEquals( "aside", read( new File( dir, "other.dataxml" ) ) );
+        assertTrue( data.exists() );
+    }
+
+
+    @Test
+    public void abortKeepsOldContent()
+        throws IOException
+    {
+        AtomicFileOutputStream out = new AtomicFileOutputStream( dest );
+        out.write( "partial".getBytes() );
+        out.abort();
+        out.close();
+        assertEquals( "old", read( dest ) );
+        for ( String name : dir.list() )
+        {
+            assertFalse( name,
+                name.endsWith( AtomicFileOutputStream.TEMP_SUFFIX ) );
+        }
+    }
+}
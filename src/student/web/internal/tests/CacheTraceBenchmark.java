@@ -0,0 +1,131 @@
+package student.web.internal.tests;
+
+import java.io.BufferedReader;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import student.web.internal.ConcurrentMRUMap;
+
+
+/**
+ * Replays a key access log through {@link ConcurrentMRUMap} with each of
+ * its eviction policies, filling in every miss with a put as the id caches
+ * do, and reports the hit ratio and time of each.  The log is a text file
+ * with one key per line.  Arguments:
+ * <pre>
+ *   CacheTraceBenchmark [trace-file [capacity]]
+ *   CacheTraceBenchmark -generate trace-file
+ * </pre>
+ * Without a trace file, or with <code>-generate</code>, it uses a
+ * synthetic trace of the kind that hurts the id cache: skewed lookups of a
+ * working set of ids, interrupted by sweeps over every id in a large
+ * store, as <code>getAllIds()</code> does.
+ */
+public class CacheTraceBenchmark
+{
+    private static final int DEFAULT_CAPACITY = 10000;
+
+
+    // ----------------------------------------------------------
+    public static void main( String[] args )
+        throws IOException
+    {
+        if ( args.length == 2 && "-generate".equals( args[0] ) )
+        {
+            PrintWriter out = new PrintWriter( new FileWriter( args[1] ) );
+            for ( String key : syntheticTrace() )
+            {
+                out.println( key );
+            }
+            out.close();
+            return;
+        }
+        List<String> trace =
+            args.length > 0 ? readTrace( args[0] ) : syntheticTrace();
+        int capacity = args.length > 1
+            ? Integer.parseInt( args[1] )
+            : DEFAULT_CAPACITY;
+        System.out.println( trace.size() + " accesses, capacity " + capacity );
+        for ( int round = 0; round < 3; round++ )
+        {
+            for ( ConcurrentMRUMap.Policy policy
+                : ConcurrentMRUMap.Policy.values() )
+            {
+                ConcurrentMRUMap<String, String> cache =
+                    new ConcurrentMRUMap<String, String>( capacity, 0, policy );
+                long start = System.nanoTime();
+                for ( String key : trace )
+                {
+                    if ( cache.get( key ) == null )
+                    {
+                        cache.put( key, key );
+                    }
+                }
+                long elapsed = System.nanoTime() - start;
+                System.out.println( "round " + round + ", " + policy
+                    + ": hit ratio "
+                    + String.format( "%.2f%%", 100.0 * cache.getHitCount()
+                        / trace.size() )
+                    + ", " + elapsed / 1000000L + " ms" );
+            }
+        }
+    }
+
+
+    // ----------------------------------------------------------
+    private static List<String> readTrace( String fileName )
+        throws IOException
+    {
+        List<String> result = new ArrayList<String>();
+        BufferedReader in = new BufferedReader( new FileReader( fileName ) );
+        try
+        {
+            String line;
+            while ( ( line = in.readLine() ) != null )
+            {
+                if ( line.length() > 0 )
+                {
+                    result.add( line );
+                }
+            }
+        }
+        finally
+        {
+            in.close();
+        }
+        return result;
+    }
+
+
+    // ----------------------------------------------------------
+    private static List<String> syntheticTrace()
+    {
+        Random random = new Random( 42 );
+        int storeSize = 40000;
+        int workingSet = 20000;
+        List<String> result = new ArrayList<String>();
+        for ( int phase = 0; phase < 10; phase++ )
+        {
+            for ( int i = 0; i < 100000; i++ )
+            {
+                // Roughly Zipf-distributed over the working set
+                double u = random.nextDouble();
+                int index = (int)( workingSet * u * u * u );
+                result.add( "object-" + index );
+            }
+            if ( phase % 3 == 2 )
+            {
+                for ( int index = 0; index < storeSize; index++ )
+                {
+                    result.add( "object-" + ( storeSize - index ) );
+                }
+            }
+        }
+        return result;
+    }
+}
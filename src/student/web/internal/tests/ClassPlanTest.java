@@ -0,0 +1,120 @@
+package student.web.internal.tests;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Map;
+
+import org.junit.Test;
+
+import student.web.internal.ClassPlan;
+
+
+public class ClassPlanTest
+{
+    public static class Base
+    {
+        private String name = "base";
+
+        private int count = 1;
+
+        private transient String ignored = "ignored";
+
+        private static String shared = "shared";
+    }
+
+
+    public static class Derived
+        extends Base
+    {
+        private String name = "derived";
+
+        private final Object fixed = "fixed";
+    }
+
+
+    public static class Initialized
+    {
+        private String name;
+
+        private int initialized;
+
+
+        public Initialized()
+        {
+            name = "constructed";
+        }
+
+
+        public void initializeFields()
+        {
+            initialized++;
+        }
+    }
+
+
+    private static class Hidden
+    {
+        private Hidden( String name )
+        {
+            // Not a default constructor
+        }
+    }
+
+
+    @Test
+    public void ordersFieldsByName()
+    {
+        ClassPlan plan = ClassPlan.forClass( Derived.class );
+        assertSame( plan, ClassPlan.forClass( Derived.class ) );
+        assertEquals( 4, plan.size() );
+        assertEquals( "count", plan.name( 0 ) );
+        assertEquals( "fixed", plan.name( 1 ) );
+        assertEquals( "name", plan.name( 2 ) );
+        assertEquals( Base.class, plan.declaringClass( 2 ) );
+        assertEquals( "name", plan.name( 3 ) );
+        assertEquals( Derived.class, plan.declaringClass( 3 ) );
+        assertEquals( 3, plan.slotOf( "name" ) );
+        assertEquals( -1, plan.slotOf( "ignored" ) );
+        assertEquals( -1, plan.slotOf( "shared" ) );
+        assertTrue( plan.hasFields() );
+    }
+
+
+    @Test
+    public void createsAndInitializesInstances()
+    {
+        ClassPlan plan = ClassPlan.forClass( Initialized.class );
+        Initialized object = (Initialized)plan.newInstance();
+        assertEquals( "constructed", object.name );
+        plan.initialize( object );
+        assertEquals( 1, object.initialized );
+
+        plan = ClassPlan.forClass( Hidden.class );
+        assertNull( plan.newInstance() );
+        // Nothing to call
+        plan.initialize( new Hidden( "hidden" ) );
+    }
+
+
+    @Test
+    public void readsAndWritesFields()
+    {
+        ClassPlan plan = ClassPlan.forClass( Derived.class );
+        Derived object = new Derived();
+        Map<String, Object> fields = plan.toFieldMap( plan.read( object ) );
+        assertEquals( 3, fields.size() );
+        assertEquals( "derived", fields.get( "name" ) );
+        assertEquals( 1, fields.get( "count" ) );
+
+        assertTrue( plan.write( object, plan.slotOf( "count" ), 5 ) );
+        assertTrue( plan.write( object, plan.slotOf( "fixed" ), "changed" ) );
+        assertFalse( plan.write( object, plan.slotOf( "count" ), "five" ) );
+        Object[] values = plan.read( object );
+        assertEquals( 5, values[0] );
+        assertEquals( "changed", values[1] );
+    }
+}
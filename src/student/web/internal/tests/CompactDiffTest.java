@@ -0,0 +1,96 @@
+package student.web.internal.tests;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Test;
+import org.webcat.diff.CompactDiff;
+import org.webcat.diff.DiffList;
+import org.webcat.diff.DiffPatcher;
+import org.webcat.diff.Differ;
+
+
+public class CompactDiffTest
+{
+    @Test
+    public void convertsToAndFromDiffLists()
+    {
+        Random random = new Random( 11 );
+        for ( int trial = 0; trial < 300; trial++ )
+        {
+            List<Integer> text1 = randomList( random, 50 );
+            List<Integer> text2 = mutate( random, text1 );
+            DiffList<Integer> diffs =
+                new Differ<Integer>( text1, text2, null, 0 ).getDifferences();
+            CompactDiff<Integer> compact = CompactDiff.fromDiffList( diffs );
+            assertEquals( text1, compact.getList1() );
+            assertEquals( text2, compact.getList2() );
+            assertEquals( diffs.getLevenshteinDistance(),
+                compact.getLevenshteinDistance() );
+            DiffList<Integer> converted = compact.toDiffList();
+            assertEquals( text1, converted.computeFirstList() );
+            assertEquals( text2, converted.computeSecondList() );
+            for ( int loc = 0; loc <= text1.size() + 1; loc++ )
+            {
+                assertEquals( diffs.translateIndex( loc ),
+                    compact.translateIndex( loc ) );
+            }
+        }
+    }
+
+
+    @Test
+    public void patchesFromCompactDiffsMatchPatchesFromDiffLists()
+    {
+        Random random = new Random( 12 );
+        for ( int trial = 0; trial < 300; trial++ )
+        {
+            List<Integer> text1 = randomList( random, 100 );
+            List<Integer> text2 = mutate( random, text1 );
+            Differ<Integer> differ =
+                new Differ<Integer>( text1, text2, null, 0 );
+            DiffPatcher<Integer> fromList = new DiffPatcher<Integer>( text1,
+                differ.getDifferences(),
+                null );
+            DiffPatcher<Integer> fromCompact = new DiffPatcher<Integer>(
+                differ.getCompactDifferences(), null );
+            assertEquals( fromList.getPatches().toString(),
+                fromCompact.getPatches().toString() );
+            assertEquals( text2,
+                new ArrayList<Integer>( fromCompact.apply( text1 ).getResult() ) );
+        }
+    }
+
+
+    private static List<Integer> randomList( Random random, int maxSize )
+    {
+        List<Integer> result = new ArrayList<Integer>();
+        int range = 2 + random.nextInt( 20 );
+        for ( int i = random.nextInt( maxSize ); i > 0; i-- )
+        {
+            result.add( random.nextInt( range ) );
+        }
+        return result;
+    }
+
+
+    private static List<Integer> mutate( Random random, List<Integer> list )
+    {
+        List<Integer> result = new ArrayList<Integer>( list );
+        for ( int i = random.nextInt( 10 ); i > 0; i-- )
+        {
+            if ( result.size() > 0 && random.nextBoolean() )
+            {
+                result.remove( random.nextInt( result.size() ) );
+            }
+            else
+            {
+                result.add( random.nextInt( result.size() + 1 ), -i );
+            }
+        }
+        return result;
+    }
+}
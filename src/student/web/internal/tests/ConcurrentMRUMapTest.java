@@ -0,0 +1,183 @@
+package student.web.internal.tests;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+
+import student.web.internal.ConcurrentMRUMap;
+
+
+public class ConcurrentMRUMapTest
+{
+    @Test
+    public void evictsLeastRecentlyUsed()
+    {
+        ConcurrentMRUMap<String, String> map =
+            new ConcurrentMRUMap<String, String>( 2, 0 );
+        map.put( "a", "1" );
+        map.put( "b", "2" );
+        assertEquals( "1", map.get( "a" ) );
+        map.cleanUp();
+        map.put( "c", "3" );
+        assertEquals( 2, map.size() );
+        assertTrue( map.containsKey( "a" ) );
+        assertFalse( map.containsKey( "b" ) );
+        assertTrue( map.containsKey( "c" ) );
+        assertEquals( 1, map.getEvictionCount() );
+    }
+
+
+    @Test
+    public void countsHitsAndMisses()
+    {
+        ConcurrentMRUMap<String, String> map =
+            new ConcurrentMRUMap<String, String>( 10, 0 );
+        map.put( "a", "1" );
+        assertEquals( "1", map.get( "a" ) );
+        assertNull( map.get( "b" ) );
+        assertEquals( "1", map.put( "a", "2" ) );
+        assertEquals( "2", map.getTimestampedValue( "a" ).value );
+        assertEquals( 2, map.getHitCount() );
+        assertEquals( 1, map.getMissCount() );
+        assertEquals( "2", map.remove( "a" ) );
+        assertTrue( map.isEmpty() );
+        assertEquals( 0, map.getEvictionCount() );
+    }
+
+
+    @Test
+    public void expiresOldEntries()
+        throws InterruptedException
+    {
+        ConcurrentMRUMap<String, String> map =
+            new ConcurrentMRUMap<String, String>( 0, 1 );
+        long stamp = map.putReturningTimestamp( "a", "1" );
+        assertEquals( stamp, map.getTimestampFor( "a" ) );
+        Thread.sleep( 1100 );
+        assertNull( map.get( "a" ) );
+        assertEquals( 0, map.size() );
+        assertEquals( 1, map.getEvictionCount() );
+    }
+
+
+    @Test
+    public void staysWithinCapacityUnderContention()
+        throws InterruptedException
+    {
+        final ConcurrentMRUMap<Integer, Integer> map =
+            new ConcurrentMRUMap<Integer, Integer>( 100, 0 );
+        final AtomicInteger errors = new AtomicInteger();
+        Thread[] threads = new Thread[4];
+        for ( int i = 0; i < threads.length; i++ )
+        {
+            final int seed = i;
+            threads[i] = new Thread()
+            {
+                public void run()
+                {
+                    for ( int j = 0; j < 20000; j++ )
+                    {
+                        Integer key = ( j * 31 + seed * 7 ) % 500;
+                        Integer value = map.get( key );
+                        if ( value == null )
+                        {
+                            map.put( key, key );
+                        }
+                        else if ( !value.equals( key ) )
+                        {
+                            errors.incrementAndGet();
+                        }
+                    }
+                }
+            };
+            threads[i].start();
+        }
+        for ( Thread thread : threads )
+        {
+            thread.join();
+        }
+        assertEquals( 0, errors.get() );
+        assertEquals( 100, map.size() );
+        assertEquals( 100, map.keySet().size() );
+        assertEquals( 80000, map.getHitCount() + map.getMissCount() );
+    }
+
+
+    private static int hotKeysKeptAfterScan( ConcurrentMRUMap.Policy policy )
+    {
+        ConcurrentMRUMap<Integer, Integer> map =
+            new ConcurrentMRUMap<Integer, Integer>( 100, 0, policy );
+        for ( int round = 0; round < 20; round++ )
+        {
+            for ( int key = 0; key < 50; key++ )
+            {
+                if ( map.get( key ) == null )
+                {
+                    map.put( key, key );
+                }
+            }
+            map.cleanUp();
+        }
+        // One pass over many keys that are never used again
+        for ( int key = 1000; key < 2000; key++ )
+        {
+            if ( map.get( key ) == null )
+            {
+                map.put( key, key );
+            }
+        }
+        assertEquals( 100, map.size() );
+        int kept = 0;
+        for ( int key = 0; key < 50; key++ )
+        {
+            if ( map.containsKey( key ) )
+            {
+                kept++;
+            }
+        }
+        return kept;
+    }
+
+
+    @Test
+    public void frequencyPolicyResistsScans()
+    {
+        assertEquals( 0, hotKeysKeptAfterScan( ConcurrentMRUMap.Policy.LRU ) );
+        assertEquals( 50,
+            hotKeysKeptAfterScan( ConcurrentMRUMap.Policy.FREQUENCY ) );
+    }
+
+
+    @Test
+    public void frequencyPolicyAdmitsNewHotKeys()
+    {
+        ConcurrentMRUMap<Integer, Integer> map =
+            new ConcurrentMRUMap<Integer, Integer>(
+                100, 0, ConcurrentMRUMap.Policy.FREQUENCY );
+        for ( int key = 0; key < 200; key++ )
+        {
+            map.put( key, key );
+        }
+        for ( int round = 0; round < 10; round++ )
+        {
+            for ( int key = 500; key < 520; key++ )
+            {
+                if ( map.get( key ) == null )
+                {
+                    map.put( key, key );
+                }
+            }
+            map.cleanUp();
+        }
+        for ( int key = 500; key < 520; key++ )
+        {
+            assertTrue( map.containsKey( key ) );
+        }
+        assertEquals( 100, map.size() );
+    }
+}
@@ -0,0 +1,227 @@
+package student.web.internal.tests;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import org.webcat.diff.CompactDiff;
+import org.webcat.diff.Diff;
+import org.webcat.diff.DiffUtils;
+import org.webcat.diff.Differ;
+
+
+/**
+ * Compares the diff engines in <code>org.webcat.diff</code>: the original
+ * list based <code>Differ</code>, and Myers and patience diff over interned
+ * ids.  Each is timed on generated sequences (random edits, reordered
+ * blocks, blank line heavy output) and on the lines of neighbouring source
+ * files, and the number of inserted plus deleted items in its edit script
+ * is reported.  Run it with a source directory as an optional argument.
+ */
+public class DiffAlgorithmBenchmark
+{
+    private static final int ROUNDS = 5;
+
+    private static final int LENGTH = 5000;
+
+
+    // ----------------------------------------------------------
+    public static void main( String[] args )
+        throws IOException
+    {
+        Random random = new Random( 0 );
+        List<List<String>[]> cases = new ArrayList<List<String>[]>();
+        List<String> names = new ArrayList<String>();
+
+        List<String> base = randomLines( random, LENGTH, LENGTH );
+        names.add( "random edits" );
+        cases.add( pair( base, edit( random, base, LENGTH / 20 ) ) );
+
+        names.add( "reordered blocks" );
+        cases.add( pair( base, reorder( random, base, 40 ) ) );
+
+        base = randomLines( random, LENGTH, 50 );
+        for ( int i = 0; i < LENGTH; i += 1 + random.nextInt( 3 ) )
+        {
+            base.set( i, "" );
+        }
+        names.add( "blank line heavy" );
+        cases.add( pair( base, edit( random, base, LENGTH / 20 ) ) );
+
+        List<List<String>> files = new ArrayList<List<String>>();
+        readSources( new File( args.length > 0 ? args[0] : "src" ), files );
+        List<String> text1 = new ArrayList<String>();
+        List<String> text2 = new ArrayList<String>();
+        for ( int i = 0; i + 1 < files.size() && text1.size() < 2 * LENGTH;
+            i += 2 )
+        {
+            text1.addAll( files.get( i ) );
+            text2.addAll( files.get( i + 1 ) );
+        }
+        names.add( "source files" );
+        cases.add( pair( text1, text2 ) );
+
+        for ( int round = 0; round < ROUNDS; round++ )
+        {
+            System.out.println( "round " + round + ":" );
+            for ( int i = 0; i < cases.size(); i++ )
+            {
+                List<String>[] texts = cases.get( i );
+                StringBuilder line = new StringBuilder( "  " + names.get( i )
+                    + ", " + texts[0].size() + " -> " + texts[1].size()
+                    + " items:" );
+
+                long start = System.nanoTime();
+                CompactDiff<String> diffs =
+                    new Differ<String>( texts[0], texts[1], null, 0 )
+                        .getCompactDifferences();
+                report( line, "list", start, diffs );
+
+                start = System.nanoTime();
+                diffs = Differ.withEquivalence( texts[0],
+                    texts[1],
+                    DiffUtils.<String> naturalEquivalence(),
+                    Differ.Algorithm.MYERS,
+                    0 ).getCompactDifferences();
+                report( line, "myers", start, diffs );
+
+                start = System.nanoTime();
+                diffs = Differ.withEquivalence( texts[0],
+                    texts[1],
+                    DiffUtils.<String> naturalEquivalence(),
+                    Differ.Algorithm.PATIENCE,
+                    0 ).getCompactDifferences();
+                report( line, "patience", start, diffs );
+                System.out.println( line );
+            }
+        }
+    }
+
+
+    // ----------------------------------------------------------
+    private static void report(
+        StringBuilder line, String name, long start, CompactDiff<String> diffs )
+    {
+        long time = System.nanoTime() - start;
+        int edits = 0;
+        for ( int i = 0; i < diffs.size(); i++ )
+        {
+            if ( diffs.getOperation( i ) != Diff.Operation.EQUAL )
+            {
+                edits += diffs.getLength( i );
+            }
+        }
+        line.append( " " + name + " " + time / 1000000 + " ms/" + edits
+            + " edits" );
+    }
+
+
+    // ----------------------------------------------------------
+    @SuppressWarnings("unchecked")
+    private static List<String>[] pair( List<String> text1, List<String> text2 )
+    {
+        return (List<String>[])new List<?>[] { text1, text2 };
+    }
+
+
+    // ----------------------------------------------------------
+    private static List<String> randomLines(
+        Random random, int count, int range )
+    {
+        List<String> result = new ArrayList<String>();
+        for ( int i = 0; i < count; i++ )
+        {
+            result.add( "line " + random.nextInt( range ) );
+        }
+        return result;
+    }
+
+
+    // ----------------------------------------------------------
+    private static List<String> edit(
+        Random random, List<String> text, int edits )
+    {
+        List<String> result = new ArrayList<String>( text );
+        for ( int i = 0; i < edits; i++ )
+        {
+            int pos = random.nextInt( result.size() );
+            switch ( random.nextInt( 3 ) )
+            {
+                case 0:
+                    result.remove( pos );
+                    break;
+                case 1:
+                    result.add( pos, "new " + i );
+                    break;
+                default:
+                    result.set( pos, "changed " + i );
+                    break;
+            }
+        }
+        return result;
+    }
+
+
+    // ----------------------------------------------------------
+    private static List<String> reorder(
+        Random random, List<String> text, int blocks )
+    {
+        List<List<String>> pieces = new ArrayList<List<String>>();
+        int size = text.size() / blocks;
+        for ( int i = 0; i < text.size(); i += size )
+        {
+            pieces.add( text.subList( i, Math.min( i + size, text.size() ) ) );
+        }
+        // Swap a few neighbouring blocks
+        for ( int i = 0; i + 1 < pieces.size(); i += 4 )
+        {
+            Collections.swap( pieces, i, i + 1 );
+        }
+        List<String> result = new ArrayList<String>();
+        for ( List<String> piece : pieces )
+        {
+            result.addAll( piece );
+        }
+        return result;
+    }
+
+
+    // ----------------------------------------------------------
+    private static void readSources( File file, List<List<String>> files )
+        throws IOException
+    {
+        if ( file.isDirectory() )
+        {
+            File[] children = file.listFiles();
+            Arrays.sort( children );
+            for ( File child : children )
+            {
+                readSources( child, files );
+            }
+        }
+        else if ( file.getName().endsWith( ".java" ) )
+        {
+            List<String> lines = new ArrayList<String>();
+            BufferedReader in = new BufferedReader( new FileReader( file ) );
+            try
+            {
+                String line;
+                while ( ( line = in.readLine() ) != null )
+                {
+                    lines.add( line.trim() );
+                }
+            }
+            finally
+            {
+                in.close();
+            }
+            files.add( lines );
+        }
+    }
+}
@@ -0,0 +1,92 @@
+package student.web.internal.tests;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Test;
+import org.webcat.diff.DiffMatcher;
+import org.webcat.diff.DiffPatcher;
+import org.webcat.diff.Differ;
+import org.webcat.diff.PatchApplication;
+
+
+public class DiffMatcherTest
+{
+    @Test
+    public void matchesPatternsLongerThanAWord()
+    {
+        Random random = new Random( 21 );
+        List<Integer> text = randomList( random, 2000 );
+        DiffMatcher.Alphabet<Integer> alphabet =
+            new DiffMatcher.Alphabet<Integer>();
+        for ( int length : new int[] { 20, 64, 65, 150, 400 } )
+        {
+            int at = random.nextInt( text.size() - length );
+            List<Integer> pattern =
+                new ArrayList<Integer>( text.subList( at, at + length ) );
+            // A few errors inside, so that the exact match shortcut is not
+            // taken but the ends still line up
+            for ( int i = 0; i < length / 10 + 1; i++ )
+            {
+                pattern.set( 1 + random.nextInt( length - 2 ), -1 );
+            }
+            assertEquals( at, new DiffMatcher<Integer>( text,
+                pattern,
+                at + 10,
+                null,
+                alphabet ).getBestMatchIndex() );
+        }
+    }
+
+
+    @Test
+    public void appliesLongPatchesToShiftedLists()
+    {
+        Random random = new Random( 22 );
+        List<Integer> base = randomList( random, 1000 );
+        List<Integer> changed = new ArrayList<Integer>( base );
+        for ( int i = 300; i < 500; i += 3 )
+        {
+            changed.set( i, -i );
+        }
+        List<Integer> shifted = new ArrayList<Integer>( base );
+        for ( int i = 0; i < 20; i++ )
+        {
+            shifted.add( 0, -10000 - i );
+        }
+        // Also differs inside the patched region
+        shifted.remove( 420 );
+
+        DiffPatcher<Integer> patcher = new DiffPatcher<Integer>(
+            new Differ<Integer>( base, changed ).getCompactDifferences(),
+            null );
+        assertEquals( 1, patcher.getPatches().size() );
+        PatchApplication<Integer> result = patcher.apply( shifted );
+        assertTrue( result.getAppliedPatches()[0] );
+        List<Integer> patched = result.getResult();
+        assertEquals( shifted.size(), patched.size() );
+        for ( int i = 300; i < 500; i += 3 )
+        {
+            if ( i != 399 )
+            {
+                int pos = i + 20 - ( i > 400 ? 1 : 0 );
+                assertEquals( Integer.valueOf( -i ), patched.get( pos ) );
+            }
+        }
+    }
+
+
+    private static List<Integer> randomList( Random random, int size )
+    {
+        List<Integer> result = new ArrayList<Integer>();
+        for ( int i = 0; i < size; i++ )
+        {
+            result.add( random.nextInt( 1000 ) );
+        }
+        return result;
+    }
+}
@@ -0,0 +1,181 @@
+package student.web.internal.tests;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Test;
+import org.webcat.diff.DiffList;
+import org.webcat.diff.DiffUtils;
+import org.webcat.diff.Differ;
+import org.webcat.diff.Equivalence;
+
+
+public class DifferTest
+{
+    @Test
+    public void findsMinimalDiffWithoutTimeout()
+    {
+        List<Integer> text1 = numbers( 1, 2, 3, 4, 5, 6 );
+        List<Integer> text2 = numbers( 1, 3, 4, 7, 6 );
+        Differ<Integer> differ =
+            new Differ<Integer>( text1, text2, null, 0 );
+        DiffList<Integer> diffs = differ.getDifferences();
+        assertFalse( differ.isTimedOut() );
+        assertEquals( text1, diffs.computeFirstList() );
+        assertEquals( text2, diffs.computeSecondList() );
+        assertEquals( 2, diffs.getLevenshteinDistance() );
+    }
+
+
+    @Test
+    public void fallsBackToCoarseDiffWhenOutOfTime()
+    {
+        Random random = new Random( 42 );
+        List<Integer> text1 = new ArrayList<Integer>();
+        List<Integer> text2 = new ArrayList<Integer>();
+        for ( int i = 0; i < 20000; i++ )
+        {
+            text1.add( random.nextInt( 50 ) );
+            text2.add( random.nextInt( 50 ) );
+        }
+        long before = Differ.getTimeoutCount();
+        Differ<Integer> differ =
+            new Differ<Integer>( text1, text2, null, 0.001f );
+        DiffList<Integer> diffs = differ.getDifferences();
+        assertTrue( differ.isTimedOut() );
+        assertEquals( before + 1, Differ.getTimeoutCount() );
+        assertEquals( text1, diffs.computeFirstList() );
+        assertEquals( text2, diffs.computeSecondList() );
+    }
+
+
+    @Test
+    public void internedDiffMatchesGenericDiff()
+    {
+        Random random = new Random( 7 );
+        for ( int trial = 0; trial < 500; trial++ )
+        {
+            int range = 1 + random.nextInt( 6 );
+            List<Integer> text1 = new ArrayList<Integer>();
+            List<Integer> text2 = new ArrayList<Integer>();
+            for ( int i = random.nextInt( 40 ); i > 0; i-- )
+            {
+                text1.add( random.nextInt( range ) );
+            }
+            text2.addAll( text1 );
+            for ( int i = random.nextInt( 10 ); i > 0; i-- )
+            {
+                if ( text2.size() > 0 )
+                {
+                    text2.remove( random.nextInt( text2.size() ) );
+                }
+                text2.add( random.nextInt( text2.size() + 1 ),
+                    random.nextInt( range ) );
+            }
+            DiffList<Integer> generic =
+                new Differ<Integer>( text1, text2, null, 0 ).getDifferences();
+            DiffList<Integer> interned = Differ.withEquivalence( text1,
+                text2,
+                DiffUtils.<Integer> naturalEquivalence(),
+                0 ).getDifferences();
+            assertEquals( text1, interned.computeFirstList() );
+            assertEquals( text2, interned.computeSecondList() );
+            assertEquals( generic.getLevenshteinDistance(),
+                interned.getLevenshteinDistance() );
+        }
+    }
+
+
+    @Test
+    public void internsWithTheGivenEquivalence()
+    {
+        Equivalence<String> ignoreCase = new Equivalence<String>()
+        {
+            public int hash( String item )
+            {
+                return item.toLowerCase().hashCode();
+            }
+
+
+            public boolean equivalent( String item1, String item2 )
+            {
+                return item1.equalsIgnoreCase( item2 );
+            }
+        };
+        List<String> text1 = new ArrayList<String>();
+        List<String> text2 = new ArrayList<String>();
+        for ( String line : "one two three four".split( " " ) )
+        {
+            text1.add( line );
+            text2.add( line.toUpperCase() );
+        }
+        text2.add( 2, "extra" );
+        DiffList<String> diffs =
+            Differ.withEquivalence( text1, text2, ignoreCase ).getDifferences();
+        assertEquals( 3, diffs.size() );
+        assertEquals( 1, diffs.getLevenshteinDistance() );
+    }
+
+
+    @Test
+    public void patienceDiffAnchorsOnUniqueItems()
+    {
+        List<String> text1 = new ArrayList<String>();
+        List<String> text2 = new ArrayList<String>();
+        for ( String line : "a { } b { } c { }".split( " " ) )
+        {
+            text1.add( line );
+        }
+        for ( String line : "c { } a { } b { }".split( " " ) )
+        {
+            text2.add( line );
+        }
+        DiffList<String> diffs = Differ.withEquivalence( text1,
+            text2,
+            DiffUtils.<String> naturalEquivalence(),
+            Differ.Algorithm.PATIENCE ).getDifferences();
+        assertEquals( text1, diffs.computeFirstList() );
+        assertEquals( text2, diffs.computeSecondList() );
+        // "a" and "b" stay put and "c" moves as a whole block
+        assertEquals( "Diff(INSERT, \"[c, {, }]\")",
+            diffs.getFirst().toString() );
+        assertEquals( 6, diffs.getLevenshteinDistance() );
+
+        Random random = new Random( 9 );
+        for ( int trial = 0; trial < 300; trial++ )
+        {
+            List<Integer> numbers1 = new ArrayList<Integer>();
+            for ( int i = random.nextInt( 60 ); i > 0; i-- )
+            {
+                numbers1.add( random.nextInt( 30 ) );
+            }
+            List<Integer> numbers2 = new ArrayList<Integer>( numbers1 );
+            Collections.shuffle( numbers2.subList( 0, numbers2.size() / 2 ),
+                random );
+            numbers2.add( random.nextInt( numbers2.size() + 1 ), -1 );
+            DiffList<Integer> patience = Differ.withEquivalence( numbers1,
+                numbers2,
+                DiffUtils.<Integer> naturalEquivalence(),
+                Differ.Algorithm.PATIENCE ).getDifferences();
+            assertEquals( numbers1, patience.computeFirstList() );
+            assertEquals( numbers2, patience.computeSecondList() );
+        }
+    }
+
+
+    private static List<Integer> numbers( int... values )
+    {
+        List<Integer> result = new ArrayList<Integer>();
+        for ( int value : values )
+        {
+            result.add( value );
+        }
+        return result;
+    }
+}
@@ -0,0 +1,42 @@
+package student.web.internal.tests;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+
+import org.junit.Test;
+
+import student.web.internal.DirectoryChangeTracker;
+
+
+public class DirectoryChangeTrackerTest
+{
+    @Test
+    public void changesStartNewGenerations()
+    {
+        DirectoryChangeTracker tracker = new DirectoryChangeTracker();
+        tracker.setCheckInterval( 60000L );
+        File dir = new File( "data" );
+        long first = tracker.current( dir );
+        assertEquals( first, tracker.current( dir ) );
+        long changed = tracker.changed();
+        assertTrue( changed > first );
+        assertEquals( changed, tracker.current( dir ) );
+    }
+
+
+    @Test
+    public void checksTheDirectoryForOtherChanges()
+    {
+        DirectoryChangeTracker tracker = new DirectoryChangeTracker();
+        tracker.setCheckInterval( 60000L );
+        File dir = new File( "data" );
+        long first = tracker.current( dir );
+        // Not checked again until the interval is up
+        long other = tracker.current( new File( "data/other" ) );
+        assertEquals( first, other );
+        tracker.setCheckInterval( 0L );
+        assertTrue( tracker.current( new File( "data/other" ) ) > first );
+    }
+}
@@ -0,0 +1,144 @@
+package student.web.internal.tests;
+
+import java.net.URLDecoder;
+import java.net.URLEncoder;
+import java.util.Random;
+
+import student.web.internal.IdCodec;
+
+
+/**
+ * Compares the cost of turning ids into file names and back with
+ * {@link IdCodec} and with the <code>String</code> concatenation that
+ * <code>PersistentStorageManager</code> used before, on long ids that mix
+ * upper and lower case.  Run it with the number of ids as an optional
+ * argument.
+ */
+public class IdCodecBenchmark
+{
+    private static final int LENGTH = 120;
+
+    private static final int ROUNDS = 5;
+
+    private static final String CHARACTERS =
+        "abcdefghijklmnopqrstuvwxyzABCDEFGHIJKLMNOPQRSTUVWXYZ0123456789 -_./";
+
+
+    // ----------------------------------------------------------
+    public static void main( String[] args )
+        throws Exception
+    {
+        int count = args.length > 0 ? Integer.parseInt( args[0] ) : 100000;
+        Random random = new Random( 0 );
+        String[] ids = new String[count];
+        for ( int i = 0; i < count; i++ )
+        {
+            char[] id = new char[LENGTH];
+            for ( int j = 0; j < LENGTH; j++ )
+            {
+                id[j] = CHARACTERS.charAt(
+                    random.nextInt( CHARACTERS.length() ) );
+            }
+            ids[i] = new String( id );
+        }
+        String[] names = new String[count];
+        for ( int round = 0; round < ROUNDS; round++ )
+        {
+            int check = 0;
+            long start = System.nanoTime();
+            for ( int i = 0; i < count; i++ )
+            {
+                names[i] = originalEncode( ids[i] );
+            }
+            long originalEncode = System.nanoTime() - start;
+            start = System.nanoTime();
+            for ( int i = 0; i < count; i++ )
+            {
+                check += originalDecode( names[i] ).length();
+            }
+            long originalDecode = System.nanoTime() - start;
+            start = System.nanoTime();
+            for ( int i = 0; i < count; i++ )
+            {
+                names[i] = IdCodec.encode( ids[i] );
+            }
+            long encode = System.nanoTime() - start;
+            start = System.nanoTime();
+            for ( int i = 0; i < count; i++ )
+            {
+                check += IdCodec.decode( names[i] ).length();
+            }
+            long decode = System.nanoTime() - start;
+            System.out.println( "round " + round + ": " + count
+                + " ids, encode " + originalEncode / 1000000 + " ms -> "
+                + encode / 1000000 + " ms, decode " + originalDecode / 1000000
+                + " ms -> " + decode / 1000000 + " ms (" + check + ")" );
+        }
+    }
+
+
+    // ----------------------------------------------------------
+    private static String originalEncode( String id )
+        throws Exception
+    {
+        String result = URLEncoder.encode( id, "UTF-8" ) + "-";
+        int length = id.length();
+        int marker = 0;
+        for ( int i = 0; i < length; i++ )
+        {
+            if ( Character.isUpperCase( id.charAt( i ) ) )
+            {
+                marker += 1 << ( i % 4 );
+            }
+            if ( i % 4 == 3 )
+            {
+                result += Integer.toHexString( marker );
+                marker = 0;
+            }
+        }
+        if ( length % 4 > 0 )
+        {
+            result += Integer.toHexString( marker );
+        }
+        return result;
+    }
+
+
+    // ----------------------------------------------------------
+    private static String originalDecode( String id )
+        throws Exception
+    {
+        String encodedBase = id;
+        String caps = "";
+        int pos = id.lastIndexOf( '-' );
+        if ( pos > 0 )
+        {
+            encodedBase = id.substring( 0, pos );
+            caps = id.substring( pos + 1 );
+        }
+        String unencoded = URLDecoder.decode( encodedBase, "UTF-8" );
+        String result = "";
+        pos = 0;
+        int length = caps.length();
+        for ( int i = 0; i < length && pos < unencoded.length(); i++ )
+        {
+            int digit = Integer.parseInt( caps.substring( i, i + 1 ), 16 );
+            for ( int j = 0; j < 4 && pos < unencoded.length(); j++ )
+            {
+                if ( ( digit & ( 1 << j ) ) != 0 )
+                {
+                    result += Character.toUpperCase( unencoded.charAt( pos++ ) );
+                }
+                else
+                {
+                    result += Character.toLowerCase( unencoded.charAt( pos++ ) );
+                }
+            }
+        }
+        if ( pos < unencoded.length() )
+        {
+            result += unencoded.substring( pos );
+        }
+        return result;
+    }
+}
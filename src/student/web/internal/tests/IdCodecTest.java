@@ -0,0 +1,197 @@
+package student.web.internal.tests;
+
+import static org.junit.Assert.assertEquals;
+
+import java.net.URLDecoder;
+import java.net.URLEncoder;
+import java.util.Random;
+
+import org.junit.Test;
+
+import student.web.internal.IdCodec;
+
+
+public class IdCodecTest
+{
+    // Includes a surrogate pair and an unpaired surrogate
+    private static final String[] ALPHABET = { "a", "b", "c", "X", "Y", "Z",
+        "0", "1", "9", " ", ".", "-", "*", "_", "+", "%", "/", "\\", ":",
+        "?", "&", "=", "~", "\u00e9", "\u00c9", "\u00df", "\u0394",
+        "\u03b4", "\u4e2d", "\ud83d\ude00", "\ud800" };
+
+
+    @Test
+    public void matchesOriginalEncoding()
+        throws Exception
+    {
+        assertEquals( "-", IdCodec.encode( "" ) );
+        assertEquals( "hello+world-000", IdCodec.encode( "hello world" ) );
+        assertEquals( "MyObject-50", IdCodec.encode( "MyObject" ) );
+        assertEquals( "a%2Fb%C3%A9-0", IdCodec.encode( "a/bé" ) );
+        assertEquals( "hello world", IdCodec.decode( "hello+world-000" ) );
+        assertEquals( "MyObject", IdCodec.decode( "MyObject-50" ) );
+    }
+
+
+    @Test
+    public void randomIdsRoundTrip()
+        throws Exception
+    {
+        Random random = new Random( 42 );
+        for ( int i = 0; i < 20000; i++ )
+        {
+            String id = randomId( random );
+            String encoded = IdCodec.encode( id );
+            assertEquals( id, originalEncode( id ), encoded );
+            String decoded = IdCodec.decode( encoded );
+            assertEquals( id, originalDecode( encoded ), decoded );
+            // The empty id encodes as "-", which decodes as itself, and
+            // unpaired surrogates are encoded as '?', so neither comes back
+            if ( id.length() > 0 && !hasUnpairedSurrogate( id ) )
+            {
+                assertEquals( id, decoded );
+            }
+        }
+    }
+
+
+    @Test
+    public void decodesNamesNotProducedByEncode()
+        throws Exception
+    {
+        String[] names = { "abc", "-abc", "abc-", "a-b-c", "%41bc-1",
+            "%e4%b8%ad%41-f", "x%zz-0", "x%4-0", "x%-0", "AbC-7ff" };
+        for ( String name : names )
+        {
+            String expected;
+            try
+            {
+                expected = originalDecode( name );
+            }
+            catch ( IllegalArgumentException e )
+            {
+                expected = e.getClass().getName();
+            }
+            String actual;
+            try
+            {
+                actual = IdCodec.decode( name );
+            }
+            catch ( IllegalArgumentException e )
+            {
+                actual = e.getClass().getName();
+            }
+            assertEquals( name, expected, actual );
+        }
+    }
+
+
+    // ----------------------------------------------------------
+    private static String randomId( Random random )
+    {
+        int length = random.nextInt( 3 ) == 0
+            ? random.nextInt( 200 )
+            : random.nextInt( 20 );
+        StringBuilder id = new StringBuilder();
+        for ( int i = 0; i < length; i++ )
+        {
+            id.append( ALPHABET[random.nextInt( ALPHABET.length )] );
+        }
+        return id.toString();
+    }
+
+
+    // ----------------------------------------------------------
+    private static boolean hasUnpairedSurrogate( String id )
+    {
+        for ( int i = 0; i < id.length(); i++ )
+        {
+            char c = id.charAt( i );
+            if ( Character.isHighSurrogate( c ) && i + 1 < id.length()
+                && Character.isLowSurrogate( id.charAt( i + 1 ) ) )
+            {
+                i++;
+            }
+            else if ( Character.isHighSurrogate( c )
+                || Character.isLowSurrogate( c ) )
+            {
+                return true;
+            }
+        }
+        return false;
+    }
+
+
+    // ----------------------------------------------------------
+    /**
+     * The encoding PersistentStorageManager.sanitizeId() used before
+     * IdCodec, which determines the names of existing files.
+     */
+    private static String originalEncode( String id )
+        throws Exception
+    {
+        String result = URLEncoder.encode( id, "UTF-8" ) + "-";
+        int length = id.length();
+        int marker = 0;
+        for ( int i = 0; i < length; i++ )
+        {
+            if ( Character.isUpperCase( id.charAt( i ) ) )
+            {
+                marker += 1 << ( i % 4 );
+            }
+            if ( i % 4 == 3 )
+            {
+                result += Integer.toHexString( marker );
+                marker = 0;
+            }
+        }
+        if ( length % 4 > 0 )
+        {
+            result += Integer.toHexString( marker );
+        }
+        return result;
+    }
+
+
+    // ----------------------------------------------------------
+    /**
+     * The decoding PersistentStorageManager.unsanitizeId() used before
+     * IdCodec.
+     */
+    private static String originalDecode( String id )
+        throws Exception
+    {
+        String encodedBase = id;
+        String caps = "";
+        int pos = id.lastIndexOf( '-' );
+        if ( pos > 0 )
+        {
+            encodedBase = id.substring( 0, pos );
+            caps = id.substring( pos + 1 );
+        }
+        String unencoded = URLDecoder.decode( encodedBase, "UTF-8" );
+        String result = "";
+        pos = 0;
+        int length = caps.length();
+        for ( int i = 0; i < length && pos < unencoded.length(); i++ )
+        {
+            int digit = Integer.parseInt( caps.substring( i, i + 1 ), 16 );
+            for ( int j = 0; j < 4 && pos < unencoded.length(); j++ )
+            {
+                if ( ( digit & ( 1 << j ) ) != 0 )
+                {
+                    result += Character.toUpperCase( unencoded.charAt( pos++ ) );
+                }
+                else
+                {
+                    result += Character.toLowerCase( unencoded.charAt( pos++ ) );
+                }
+            }
+        }
+        if ( pos < unencoded.length() )
+        {
+            result += unencoded.substring( pos );
+        }
+        return result;
+    }
+}
@@ -0,0 +1,96 @@
+package student.web.internal.tests;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.Arrays;
+import java.util.Set;
+import java.util.TreeSet;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import student.web.internal.IdIndex;
+
+
+public class IdIndexTest
+{
+    IdIndex index;
+
+
+    @Before
+    public void setupIndex()
+    {
+        index = new IdIndex( Arrays.asList(
+            "Alice", "alfred", "Bob", "Roberta", "Carol", "Caroline" ) );
+    }
+
+
+    private static Set<String> set( String... ids )
+    {
+        return new TreeSet<String>( Arrays.asList( ids ) );
+    }
+
+
+    @Test
+    public void shortFragments()
+    {
+        assertEquals( set( "Alice", "alfred" ),
+            index.containing( "AL", null, 0 ) );
+        assertEquals( set( "Bob", "Roberta" ),
+            index.containing( "b", null, 0 ) );
+        assertEquals( set(), index.containing( "z", null, 0 ) );
+    }
+
+
+    @Test
+    public void longFragments()
+    {
+        assertEquals( set( "Carol", "Caroline" ),
+            index.containing( "carol", null, 0 ) );
+        assertEquals( set( "Caroline" ),
+            index.containing( "ROLINE", null, 0 ) );
+        assertEquals( set(), index.containing( "carolx", null, 0 ) );
+    }
+
+
+    @Test
+    public void emptyFragmentMatchesAll()
+    {
+        assertEquals( 6, index.containing( "", null, 0 ).size() );
+        assertEquals( set(), index.notContaining( "" ) );
+    }
+
+
+    @Test
+    public void notContaining()
+    {
+        assertEquals( set( "Alice", "alfred", "Bob", "Roberta" ),
+            index.notContaining( "CAR" ) );
+    }
+
+
+    @Test
+    public void pagesWithCursor()
+    {
+        assertEquals( set( "Alice", "Bob" ), index.containing( "", null, 2 ) );
+        assertEquals( set( "Carol", "Caroline" ),
+            index.containing( "", "Bob", 2 ) );
+        assertEquals( set( "Roberta", "alfred" ),
+            index.containing( "", "Caroline", 2 ) );
+        assertEquals( set(), index.containing( "", "alfred", 2 ) );
+    }
+
+
+    @Test
+    public void addAndRemove()
+    {
+        index.add( "Carolyn" );
+        assertEquals( set( "Carol", "Caroline", "Carolyn" ),
+            index.containing( "carol", null, 0 ) );
+        index.remove( "Caroline" );
+        index.remove( "Carol" );
+        assertEquals( set( "Carolyn" ), index.containing( "carol", null, 0 ) );
+        assertEquals( set(), index.containing( "roline", null, 0 ) );
+        assertEquals( 5, index.size() );
+    }
+}
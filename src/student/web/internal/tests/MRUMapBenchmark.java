@@ -0,0 +1,123 @@
+package student.web.internal.tests;
+
+import java.util.Map;
+import java.util.Random;
+
+import student.web.internal.ConcurrentMRUMap;
+import student.web.internal.MRUMap;
+
+
+/**
+ * Compares the throughput of {@link MRUMap}, guarded by a lock as its
+ * callers have to, with {@link ConcurrentMRUMap}, on a read-mostly
+ * workload where misses are filled in with a put.  Run it with the number
+ * of operations per thread as an optional argument.
+ */
+public class MRUMapBenchmark
+{
+    private static final int CAPACITY = 10000;
+
+    private static final int KEYS = 12500;
+
+    private static final int ROUNDS = 3;
+
+
+    // ----------------------------------------------------------
+    public static void main( String[] args )
+        throws InterruptedException
+    {
+        int operations = args.length > 0 ? Integer.parseInt( args[0] ) : 2000000;
+        String[] keys = new String[KEYS];
+        for ( int i = 0; i < KEYS; i++ )
+        {
+            keys[i] = "object-" + i;
+        }
+        for ( int round = 0; round < ROUNDS; round++ )
+        {
+            for ( int threads = 1; threads <= 8; threads *= 2 )
+            {
+                Map<String, String> locked =
+                    new MRUMap<String, String>( CAPACITY, 0 );
+                ConcurrentMRUMap<String, String> concurrent =
+                    new ConcurrentMRUMap<String, String>( CAPACITY, 0 );
+                long lockedTime = run( locked, true, keys, threads, operations );
+                long concurrentTime =
+                    run( concurrent, false, keys, threads, operations );
+                System.out.println( "round " + round + ", " + threads
+                    + " threads: MRUMap "
+                    + throughput( threads, operations, lockedTime )
+                    + " ops/ms, ConcurrentMRUMap "
+                    + throughput( threads, operations, concurrentTime )
+                    + " ops/ms, hit ratio "
+                    + ( 100 * concurrent.getHitCount()
+                        / ( concurrent.getHitCount()
+                            + concurrent.getMissCount() ) )
+                    + "%, evictions " + concurrent.getEvictionCount() );
+            }
+        }
+    }
+
+
+    // ----------------------------------------------------------
+    private static long run(
+        final Map<String, String> map,
+        final boolean lock,
+        final String[] keys,
+        int threads,
+        final int operations )
+        throws InterruptedException
+    {
+        Thread[] workers = new Thread[threads];
+        for ( int i = 0; i < threads; i++ )
+        {
+            final Random random = new Random( i );
+            workers[i] = new Thread()
+            {
+                public void run()
+                {
+                    for ( int j = 0; j < operations; j++ )
+                    {
+                        // Skew toward low keys, so some are hot
+                        int index = random.nextInt( keys.length );
+                        if ( random.nextBoolean() )
+                        {
+                            index = index * index / keys.length;
+                        }
+                        String key = keys[index];
+                        if ( lock )
+                        {
+                            synchronized ( map )
+                            {
+                                if ( map.get( key ) == null )
+                                {
+                                    map.put( key, key );
+                                }
+                            }
+                        }
+                        else if ( map.get( key ) == null )
+                        {
+                            map.put( key, key );
+                        }
+                    }
+                }
+            };
+        }
+        long start = System.nanoTime();
+        for ( Thread worker : workers )
+        {
+            worker.start();
+        }
+        for ( Thread worker : workers )
+        {
+            worker.join();
+        }
+        return System.nanoTime() - start;
+    }
+
+
+    // ----------------------------------------------------------
+    private static long throughput( int threads, int operations, long nanos )
+    {
+        return (long)threads * operations * 1000000L / Math.max( 1L, nanos );
+    }
+}
@@ -0,0 +1,124 @@
+package student.web.internal.tests;
+
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.UUID;
+
+import student.web.internal.ObjectIdGenerator;
+import student.web.internal.PersistentStorageManager;
+import student.web.internal.Snapshot;
+import student.web.internal.tests.support.PlainClass;
+
+
+/**
+ * Compares the cost of generating object ids with random UUIDs and with
+ * {@link ObjectIdGenerator}, and times marshaling a large collection, which
+ * generates one id per element.  Run it with the number of elements as an
+ * optional argument.
+ */
+public class ObjectIdBenchmark
+{
+    private static final int ROUNDS = 5;
+
+
+    // ----------------------------------------------------------
+    public static void main( String[] args )
+    {
+        int count = args.length > 0 ? Integer.parseInt( args[0] ) : 200000;
+        List<PlainClass> items = new ArrayList<PlainClass>( count );
+        for ( int i = 0; i < count; i++ )
+        {
+            items.add( new PlainClass() );
+        }
+        for ( int round = 0; round < ROUNDS; round++ )
+        {
+            long random = timeRandomIds( count );
+            long generated = timeGeneratedIds( count );
+            long marshal = timeMarshal( items );
+            System.out.println( "round " + round + ": " + count
+                + " ids: UUID.randomUUID " + millis( random )
+                + " ms, ObjectIdGenerator " + millis( generated )
+                + " ms; marshaling " + count + " elements " + millis( marshal )
+                + " ms (" + millis( random - generated )
+                + " ms less than with random ids)" );
+        }
+    }
+
+
+    // ----------------------------------------------------------
+    private static long timeRandomIds( int count )
+    {
+        long start = System.nanoTime();
+        long sink = 0;
+        for ( int i = 0; i < count; i++ )
+        {
+            sink += UUID.randomUUID().getLeastSignificantBits();
+        }
+        consume( sink );
+        return System.nanoTime() - start;
+    }
+
+
+    // ----------------------------------------------------------
+    private static long timeGeneratedIds( int count )
+    {
+        long start = System.nanoTime();
+        long sink = 0;
+        for ( int i = 0; i < count; i++ )
+        {
+            sink += ObjectIdGenerator.nextId().getLeastSignificantBits();
+        }
+        consume( sink );
+        return System.nanoTime() - start;
+    }
+
+
+    // ----------------------------------------------------------
+    private static long timeMarshal( List<PlainClass> items )
+    {
+        Writer discard = new Writer()
+        {
+            public void write( char[] cbuf, int off, int len )
+            {
+                // Only the marshaling is timed
+            }
+
+            public void flush()
+            {
+                // Nothing to flush
+            }
+
+            public void close()
+            {
+                // Nothing to close
+            }
+        };
+        long start = System.nanoTime();
+        PersistentStorageManager.getInstance().writeObjectToXML( "benchmark",
+            new HashMap<String, PersistentStorageManager.StoredObject>(),
+            items, discard, ObjectIdBenchmark.class.getClassLoader(), null,
+            new Snapshot() );
+        Snapshot.clearLocal();
+        Snapshot.clearNewest();
+        return System.nanoTime() - start;
+    }
+
+
+    // ----------------------------------------------------------
+    private static long millis( long nanos )
+    {
+        return nanos / 1000000L;
+    }
+
+
+    // ----------------------------------------------------------
+    private static void consume( long value )
+    {
+        if ( value == 42 )
+        {
+            System.out.print( "" );
+        }
+    }
+}
@@ -0,0 +1,68 @@
+package student.web.internal.tests;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.HashSet;
+import java.util.Set;
+import java.util.UUID;
+
+import org.junit.Test;
+
+import student.web.internal.ObjectIdGenerator;
+
+
+public class ObjectIdGeneratorTest
+{
+    @Test
+    public void idsAreCustomUuidsThatRoundTrip()
+    {
+        UUID id = ObjectIdGenerator.nextId();
+        assertEquals( 8, id.version() );
+        assertEquals( 2, id.variant() );
+        assertEquals( id, UUID.fromString( id.toString() ) );
+        assertEquals( id.toString().toLowerCase(), id.toString() );
+        assertFalse( id.equals( ObjectIdGenerator.nextId() ) );
+    }
+
+
+    @Test
+    public void idsAreUniqueAcrossThreads()
+        throws InterruptedException
+    {
+        final int perThread = 20000;
+        final Set<UUID> ids = new HashSet<UUID>();
+        Thread[] threads = new Thread[4];
+        for ( int i = 0; i < threads.length; i++ )
+        {
+            threads[i] = new Thread()
+            {
+                public void run()
+                {
+                    UUID[] mine = new UUID[perThread];
+                    for ( int j = 0; j < perThread; j++ )
+                    {
+                        mine[j] = ObjectIdGenerator.nextId();
+                    }
+                    synchronized ( ids )
+                    {
+                        for ( UUID id : mine )
+                        {
+                            ids.add( id );
+                        }
+                    }
+                }
+            };
+            threads[i].start();
+        }
+        for ( Thread thread : threads )
+        {
+            thread.join();
+        }
+        assertEquals( threads.length * perThread, ids.size() );
+        assertFalse( ids.contains( UUID.randomUUID() ) );
+        assertTrue( ids.contains(
+            UUID.fromString( ids.iterator().next().toString() ) ) );
+    }
+}
@@ -0,0 +1,133 @@
+package student.web.internal.tests;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Iterator;
+import java.util.Map;
+
+import org.junit.Test;
+
+import student.web.internal.PersistentCacheStore;
+import student.web.internal.PersistentStorageManager.StoredObject;
+import student.web.internal.converters.Alias;
+
+
+public class PersistentCacheStoreTest
+{
+    @Test
+    public void findsAliasesOfCachedValues()
+    {
+        PersistentCacheStore store = new PersistentCacheStore();
+        Map<String, StoredObject> first = store.createCache( "first" );
+        Map<String, StoredObject> second = store.createCache( "second" );
+        Object a = new Object();
+        Object b = new Object();
+        first.put( "a", stored( "a", a ) );
+        second.put( "b", stored( "b", b ) );
+        assertAlias( "first", "a", store.getAlias( a ) );
+        assertAlias( "second", "b", store.getAlias( b ) );
+        assertNull( store.getAlias( new Object() ) );
+
+        second.remove( "b" );
+        assertNull( store.getAlias( b ) );
+        first.put( "a", stored( "a", b ) );
+        assertNull( store.getAlias( a ) );
+        assertAlias( "first", "a", store.getAlias( b ) );
+    }
+
+
+    @Test
+    public void followsReplacedValues()
+    {
+        PersistentCacheStore store = new PersistentCacheStore();
+        Map<String, StoredObject> cache = store.createCache( "cache" );
+        Object a = new Object();
+        Object b = new Object();
+        StoredObject object = stored( "a", a );
+        cache.put( "a", object );
+        object.setValue( b );
+        cache.put( "a", object );
+        assertNull( store.getAlias( a ) );
+        assertAlias( "cache", "a", store.getAlias( b ) );
+    }
+
+
+    @Test
+    public void keepsValuesHeldByOtherCaches()
+    {
+        PersistentCacheStore store = new PersistentCacheStore();
+        Map<String, StoredObject> first = store.createCache( "first" );
+        Map<String, StoredObject> second = store.createCache( "second" );
+        Object a = new Object();
+        first.put( "a", stored( "a", a ) );
+        second.put( "x", stored( "x", a ) );
+        assertAlias( "second", "x", store.getAlias( a ) );
+        second.clear();
+        assertAlias( "first", "a", store.getAlias( a ) );
+
+        Iterator<Map.Entry<String, StoredObject>> entries =
+            first.entrySet().iterator();
+        entries.next();
+        entries.remove();
+        assertNull( store.getAlias( a ) );
+        assertEquals( 0, first.size() );
+
+        first.put( "a", stored( "a", a ) );
+        store.createCache( "first" );
+        assertNull( store.getAlias( a ) );
+    }
+
+
+    @Test
+    public void holdsLeastRecentlyUsedObjectsSoftly()
+    {
+        PersistentCacheStore store = new PersistentCacheStore();
+        store.setMaximumEntries( 2 );
+        Map<String, StoredObject> first = store.createCache( "first" );
+        Map<String, StoredObject> second = store.createCache( "second" );
+        StoredObject a = stored( "a", new Object() );
+        StoredObject b = stored( "b", new Object() );
+        StoredObject c = stored( "c", new Object() );
+        first.put( "a", a );
+        second.put( "b", b );
+        assertSame( a, first.get( "a" ) );
+        first.put( "c", c );
+        assertEquals( 3, store.getEntryCount() );
+        assertEquals( 2, store.getStrongEntryCount() );
+        assertEquals( 1, store.getDemotionCount() );
+
+        // b was held softly, and is held strongly again once used
+        assertSame( b, second.get( "b" ) );
+        assertAlias( "second", "b", store.getAlias( b.value() ) );
+        assertEquals( 2, store.getStrongEntryCount() );
+        assertEquals( 2, store.getDemotionCount() );
+        assertEquals( 2, store.getHitCount() );
+        assertNull( second.get( "z" ) );
+        assertEquals( 1, store.getMissCount() );
+
+        store.setMaximumEntries( 0 );
+        assertEquals( 0, store.getStrongEntryCount() );
+        assertTrue( first.containsKey( "c" ) );
+        first.remove( "c" );
+        assertEquals( 2, store.getEntryCount() );
+        assertEquals( 0, store.getStrongEntryCount() );
+    }
+
+
+    // ----------------------------------------------------------
+    private static StoredObject stored( String id, Object value )
+    {
+        return new StoredObject( id, id, value, null, 0L );
+    }
+
+
+    // ----------------------------------------------------------
+    private static void assertAlias( String cacheId, String key, Alias alias )
+    {
+        assertEquals( cacheId, alias.getContextMap() );
+        assertEquals( key, alias.getKey() );
+    }
+}
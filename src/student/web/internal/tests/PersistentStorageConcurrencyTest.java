@@ -0,0 +1,262 @@
+package student.web.internal.tests;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import student.web.SharedPersistentMap;
+import student.web.internal.tests.support.FriendList;
+
+
+// -------------------------------------------------------------------------
+/**
+ * Stress test for concurrent access to a {@link SharedPersistentMap}.  Each
+ * worker thread has its own session, stores its own keys, and repeatedly
+ * reads a set of keys shared by all workers.  The test checks that no store
+ * is lost, and prints the throughput for each thread count so that scaling
+ * can be compared between runs.  It also checks that objects marshaled on
+ * several threads at once are merged correctly.
+ */
+public class PersistentStorageConcurrencyTest
+{
+    private static final int SHARED_KEYS = 10;
+
+    private static final int KEYS_PER_THREAD = 20;
+
+    private static final int READS_PER_KEY = 50;
+
+    private static final int[] THREAD_COUNTS = { 1, 2, 4, 8 };
+
+    SharedPersistentMap<Counter> store;
+
+
+    /**
+     * A simple value to store.
+     */
+    public static class Counter
+    {
+        public String owner;
+
+        public int count;
+
+
+        public Counter()
+        {
+            // For the persistence layer
+        }
+
+
+        public Counter( String owner, int count )
+        {
+            this.owner = owner;
+            this.count = count;
+        }
+    }
+
+
+    @Before
+    public void setupStore()
+    {
+        store = new SharedPersistentMap<Counter>( Counter.class );
+        store.clear();
+        for ( int i = 0; i < SHARED_KEYS; i++ )
+        {
+            store.put( "shared" + i, new Counter( "main", i ) );
+        }
+    }
+
+
+    @After
+    public void clearStore()
+    {
+        store.clear();
+        assertTrue( store.isEmpty() );
+    }
+
+
+    @Test
+    public void concurrentStoresAndReads()
+        throws InterruptedException
+    {
+        for ( int threads : THREAD_COUNTS )
+        {
+            long start = System.nanoTime();
+            List<Throwable> failures = runWorkers( threads );
+            long elapsed = System.nanoTime() - start;
+            if ( !failures.isEmpty() )
+            {
+                throw new AssertionError( failures.get( 0 ) );
+            }
+
+            int ops = threads
+                * ( KEYS_PER_THREAD + SHARED_KEYS * READS_PER_KEY );
+            System.out.println( "PersistentStorageConcurrencyTest: "
+                + threads + " thread(s), "
+                + ( ops * 1000000000L / Math.max( elapsed, 1L ) )
+                + " ops/sec" );
+
+            SharedPersistentMap<Counter> check =
+                new SharedPersistentMap<Counter>( Counter.class );
+            for ( int t = 0; t < threads; t++ )
+            {
+                for ( int k = 0; k < KEYS_PER_THREAD; k++ )
+                {
+                    Counter counter = check.get( key( threads, t, k ) );
+                    assertNotNull( key( threads, t, k ), counter );
+                    assertEquals( "worker" + t, counter.owner );
+                    assertEquals( k, counter.count );
+                }
+            }
+            assertEquals( SHARED_KEYS + threads * KEYS_PER_THREAD,
+                check.size() );
+            for ( int t = 0; t < threads; t++ )
+            {
+                for ( int k = 0; k < KEYS_PER_THREAD; k++ )
+                {
+                    check.remove( key( threads, t, k ) );
+                }
+            }
+        }
+    }
+
+
+    @Test
+    public void concurrentCollectionMerges()
+        throws InterruptedException
+    {
+        final int threads = 8;
+        final SharedPersistentMap<FriendList> lists =
+            new SharedPersistentMap<FriendList>( FriendList.class );
+        lists.put( "friends", new FriendList() );
+
+        final List<Throwable> failures =
+            Collections.synchronizedList( new ArrayList<Throwable>() );
+        final CountDownLatch ready = new CountDownLatch( 1 );
+        Thread[] workers = new Thread[threads];
+        for ( int t = 0; t < threads; t++ )
+        {
+            final int worker = t;
+            workers[t] = new Thread()
+            {
+                public void run()
+                {
+                    try
+                    {
+                        SharedPersistentMap<FriendList> map =
+                            new SharedPersistentMap<FriendList>(
+                                FriendList.class );
+                        FriendList own = new FriendList();
+                        FriendList shared = map.get( "friends" );
+                        ready.await();
+                        for ( int k = 0; k < 5; k++ )
+                        {
+                            own.friends.add( "friend" + k );
+                            map.put( "own" + worker, own );
+                        }
+                        shared.friends.add( "worker" + worker );
+                        map.put( "friends", shared );
+                    }
+                    catch ( Throwable e )
+                    {
+                        failures.add( e );
+                    }
+                }
+            };
+            workers[t].start();
+        }
+        ready.countDown();
+        for ( Thread worker : workers )
+        {
+            worker.join();
+        }
+        if ( !failures.isEmpty() )
+        {
+            throw new AssertionError( failures.get( 0 ) );
+        }
+
+        SharedPersistentMap<FriendList> check =
+            new SharedPersistentMap<FriendList>( FriendList.class );
+        FriendList merged = check.get( "friends" );
+        assertEquals( threads, merged.friends.size() );
+        for ( int t = 0; t < threads; t++ )
+        {
+            assertTrue( merged.friends.contains( "worker" + t ) );
+            FriendList own = check.get( "own" + t );
+            assertEquals( 5, own.friends.size() );
+            for ( int k = 0; k < 5; k++ )
+            {
+                assertEquals( "friend" + k, own.friends.get( k ) );
+            }
+        }
+    }
+
+
+    private List<Throwable> runWorkers( int threads )
+        throws InterruptedException
+    {
+        final List<Throwable> failures =
+            Collections.synchronizedList( new ArrayList<Throwable>() );
+        final CountDownLatch ready = new CountDownLatch( 1 );
+        Thread[] workers = new Thread[threads];
+        for ( int t = 0; t < threads; t++ )
+        {
+            final int threadCount = threads;
+            final int worker = t;
+            workers[t] = new Thread()
+            {
+                public void run()
+                {
+                    try
+                    {
+                        ready.await();
+                        SharedPersistentMap<Counter> map =
+                            new SharedPersistentMap<Counter>( Counter.class );
+                        for ( int k = 0; k < KEYS_PER_THREAD; k++ )
+                        {
+                            map.put( key( threadCount, worker, k ),
+                                new Counter( "worker" + worker, k ) );
+                        }
+                        for ( int r = 0; r < READS_PER_KEY; r++ )
+                        {
+                            for ( int i = 0; i < SHARED_KEYS; i++ )
+                            {
+                                Counter counter = map.get( "shared" + i );
+                                if ( counter == null || counter.count != i )
+                                {
+                                    throw new AssertionError(
+                                        "bad value for shared" + i );
+                                }
+                            }
+                        }
+                    }
+                    catch ( Throwable e )
+                    {
+                        failures.add( e );
+                    }
+                }
+            };
+            workers[t].start();
+        }
+        ready.countDown();
+        for ( Thread worker : workers )
+        {
+            worker.join();
+        }
+        return failures;
+    }
+
+
+    private static String key( int threads, int worker, int k )
+    {
+        return "run" + threads + "-worker" + worker + "-key" + k;
+    }
+}
@@ -3,6 +3,7 @@ package student.web.internal.tests;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
 import static org.junit.Assert.assertTrue;
 
 import java.io.File;
@@ -12,17 +13,27 @@ import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.lang.ref.WeakReference;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.Map.Entry;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 import org.junit.After;
 import org.junit.Before;
 import org.junit.Test;
 
+import student.web.AbstractPersistentMap;
 import student.web.ApplicationPersistentMap;
 import student.web.SharedPersistentMap;
+import student.web.internal.DirectoryChangeTracker;
 import student.web.internal.PersistentStorageManager;
 import student.web.internal.PersistentStorageManager.StoredObject;
 import student.web.internal.tests.support.*;
@@ -86,6 +97,10 @@ public class SharedPersistenceMapTest
             }
             in.close();
             out.close();
+            // Rewriting a file in place within the same tick of the file
+            // system's clock as it was stored would go unnoticed, so date
+            // it as if it were written in the next tick.
+            f2.setLastModified( System.currentTimeMillis() + 1000 );
         }
         catch ( FileNotFoundException ex )
         {
@@ -182,6 +197,28 @@ public class SharedPersistenceMapTest
     }
 
 
+    @Test
+    public void sizeTracksStoresAndRemoves()
+    {
+        assertEquals( 0, localAppStore.size() );
+        localAppStore.put( "first", stub );
+        localAppStore.put( "second", stub );
+        localAppStore.put( "first", stub );
+        assertEquals( 2, localAppStore.size() );
+        localAppStore.remove( "first" );
+        assertEquals( 1, localAppStore.size() );
+        assertFalse( localAppStore.keySet().contains( "first" ) );
+        assertTrue( localAppStore.keySet().contains( "second" ) );
+
+        localAppStore.setWriteBehind( true );
+        localAppStore.put( "third", stub );
+        assertEquals( 2, localAppStore.size() );
+        localAppStore.setWriteBehind( false );
+        assertEquals( 2, localAppStore.size() );
+        assertTrue( localAppStore.keySet().contains( "third" ) );
+    }
+
+
     @Test
     public void testIsEmpty()
     {
@@ -250,6 +287,34 @@ public class SharedPersistenceMapTest
     }
 
 
+    @Test
+    public void batchPutAllReplacesAndReports()
+    {
+        Stub old = new Stub();
+        old.toPersist = "Old";
+        localAppStore.put( "test0", old );
+        Map<String, Stub> toInsert = new HashMap<String, Stub>();
+        for ( int i = 0; i < 40; i++ )
+        {
+            toInsert.put( "test" + i, stub );
+        }
+        Map<String, Exception> failures = localAppStore.putAll( toInsert, true );
+        assertTrue( failures.isEmpty() );
+        assertEquals( 40, localAppStore.size() );
+
+        SharedPersistentMap<Stub> check =
+            new SharedPersistentMap<Stub>( Stub.class );
+        for ( int i = 0; i < 40; i++ )
+        {
+            assertEquals( stub, check.get( "test" + i ) );
+        }
+        for ( String name : new File( "data/shared" ).list() )
+        {
+            assertFalse( name, name.endsWith( ".tmp" ) );
+        }
+    }
+
+
     @Test
     public void testKeySet()
     {
@@ -277,6 +342,91 @@ public class SharedPersistenceMapTest
     }
 
 
+    @Test
+    public void prefetchedIterationAndForEach()
+    {
+        for ( int i = 0; i < 5; i++ )
+        {
+            localAppStore.put( "test" + i, stub );
+        }
+        ExecutorService executor = Executors.newFixedThreadPool( 2 );
+        try
+        {
+            localAppStore.setPrefetch( executor, 3 );
+            Set<String> seen = new HashSet<String>();
+            for ( Entry<String, Stub> entry : localAppStore.entrySet() )
+            {
+                assertEquals( stub, entry.getValue() );
+                seen.add( entry.getKey() );
+            }
+            assertEquals( 5, seen.size() );
+
+            final Set<String> visited = new HashSet<String>();
+            localAppStore.forEachEntry(
+                new AbstractPersistentMap.EntryVisitor<Stub>()
+                {
+                    public void visit( String key, Stub value )
+                    {
+                        assertEquals( stub, value );
+                        visited.add( key );
+                    }
+                } );
+            assertEquals( seen, visited );
+        }
+        finally
+        {
+            localAppStore.setPrefetch( null, 0 );
+            executor.shutdown();
+        }
+    }
+
+
+    @Test
+    public void getAllAndPreloadInNewSession()
+        throws InterruptedException
+    {
+        final List<String> keys = new ArrayList<String>();
+        for ( int i = 0; i < 6; i++ )
+        {
+            localAppStore.put( "test" + i, stub );
+            keys.add( "test" + i );
+        }
+        keys.add( "missing" );
+        final List<Throwable> failures = new ArrayList<Throwable>();
+        Thread reader = new Thread()
+        {
+            public void run()
+            {
+                try
+                {
+                    SharedPersistentMap<Stub> map =
+                        new SharedPersistentMap<Stub>( Stub.class );
+                    Map<String, Stub> values = map.getAll( keys );
+                    assertEquals( 6, values.size() );
+                    assertEquals( keys.subList( 0, 6 ),
+                        new ArrayList<String>( values.keySet() ) );
+                    for ( Stub value : values.values() )
+                    {
+                        assertEquals( stub, value );
+                    }
+                    map.preload( keys );
+                    assertTrue( values.get( "test0" ) == map.get( "test0" ) );
+                }
+                catch ( Throwable e )
+                {
+                    failures.add( e );
+                }
+            }
+        };
+        reader.start();
+        reader.join();
+        if ( !failures.isEmpty() )
+        {
+            throw new AssertionError( failures.get( 0 ) );
+        }
+    }
+
+
     @Test
     public void testEntrySet()
     {
@@ -806,8 +956,13 @@ public class SharedPersistenceMapTest
             assertTrue( false );
         }
         // List squirreledList = squirrel.internalDataStruct;
+        // The file was replaced behind the map's back, so the cached object
+        // must give way to the stored one.
         DataStructClass old = persistMap.get( "testClass" );
-        assertEquals( squirrel, old );
+        assertFalse( squirrel == old );
+        assertEquals( 3, old.internalDataStruct.size() );
+        assertEquals( "0", old.get( 0 ).getData0() );
+        assertEquals( "3", old.get( 2 ).getData0() );
         // assertEquals("This isnt complex :-(",squirrel.internalDataStruct.size());
         // assertEquals("This isnt complex :-(",old.complexStuff);
     }
@@ -1019,4 +1174,119 @@ public class SharedPersistenceMapTest
         assertEquals(class2.ref,class1);
 
     }
+
+
+    @Test
+    public void getSeesFileRewrittenInPlace()
+        throws IOException, InterruptedException
+    {
+        DirectoryChangeTracker tracker =
+            PersistentStorageManager.getInstance( "shared" ).getChangeTracker();
+        tracker.setCheckInterval( 50L );
+        try
+        {
+            SharedPersistentMap<FriendList> map = new SharedPersistentMap<FriendList>( FriendList.class );
+            FriendList list = new FriendList();
+            list.friends.add( "alice" );
+            map.put( "rewrittenInPlace", list );
+            File stored = null;
+            for ( File file : new File( "data/shared" ).listFiles() )
+            {
+                if ( file.getName().startsWith( "rewrittenInPlace" ) )
+                {
+                    stored = file;
+                }
+            }
+            assertNotNull( stored );
+            // Date the directory back, and let the tracker see it, so that
+            // its generation stays put from here on
+            File dir = stored.getParentFile();
+            dir.setLastModified( System.currentTimeMillis() - 10000 );
+            Thread.sleep( 100 );
+            assertEquals( "alice", map.get( "rewrittenInPlace" ).friends.get( 0 ) );
+
+            // Another process rewrites the file in place, which leaves the
+            // directory as it was
+            InputStream in = new FileInputStream( stored );
+            byte[] content = new byte[(int)stored.length()];
+            int read = 0;
+            while ( read < content.length )
+            {
+                read += in.read( content, read, content.length - read );
+            }
+            in.close();
+            OutputStream out = new FileOutputStream( stored );
+            out.write( new String( content, "UTF-8" ).replace( "alice", "bob" )
+                .getBytes( "UTF-8" ) );
+            out.close();
+            stored.setLastModified( System.currentTimeMillis() + 1000 );
+            Thread.sleep( 100 );
+
+            assertEquals( "bob", map.get( "rewrittenInPlace" ).friends.get( 0 ) );
+            map.remove( "rewrittenInPlace" );
+        }
+        finally
+        {
+            tracker.setCheckInterval( DirectoryChangeTracker.DEFAULT_CHECK_INTERVAL );
+        }
+    }
+
+
+    @Test
+    public void pooledBundlesLetClassLoaderBeCollected()
+        throws InterruptedException
+    {
+        ClassLoader loader =
+            new URLClassLoader( new URL[0], getClass().getClassLoader() );
+        PersistentStorageManager.prewarm( loader, 2 );
+        WeakReference<ClassLoader> ref = new WeakReference<ClassLoader>( loader );
+        loader = null;
+
+        // Idle bundles are softly held, and soft references are only sure
+        // to be cleared once memory runs out
+        List<long[]> filler = new ArrayList<long[]>();
+        try
+        {
+            while ( ref.get() != null )
+            {
+                filler.add( new long[1 << 20] );
+            }
+        }
+        catch ( OutOfMemoryError e )
+        {
+            // Every soft reference has been cleared
+        }
+        filler = null;
+        for ( int i = 0; i < 10 && ref.get() != null; i++ )
+        {
+            System.gc();
+            Thread.sleep( 50 );
+        }
+        assertNull( ref.get() );
+    }
+
+
+    @Test
+    public void writeBehindPutAndFlush()
+    {
+        SharedPersistentMap<FriendList> pMap = new SharedPersistentMap<FriendList>( FriendList.class );
+        pMap.setWriteBehind( true );
+        FriendList list = new FriendList();
+        list.friends.add( "first" );
+        list.friends.add( "second" );
+        pMap.put( "writeBehindList", list );
+        list.friends.remove( 0 );
+        list.friends.add( "third" );
+        pMap.put( "writeBehindList", list );
+        assertTrue( pMap.containsKey( "writeBehindList" ) );
+        pMap.flush();
+        pMap.setWriteBehind( false );
+
+        SharedPersistentMap<FriendList> other = new SharedPersistentMap<FriendList>( FriendList.class );
+        FriendList stored = other.get( "writeBehindList" );
+        assertNotNull( stored );
+        assertEquals( 2, stored.friends.size() );
+        assertEquals( "second", stored.friends.get( 0 ) );
+        assertEquals( "third", stored.friends.get( 1 ) );
+    }
 }
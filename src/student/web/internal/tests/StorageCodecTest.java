@@ -0,0 +1,156 @@
+package student.web.internal.tests;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.thoughtworks.xstream.io.HierarchicalStreamReader;
+import com.thoughtworks.xstream.io.HierarchicalStreamWriter;
+
+import student.web.SharedPersistentMap;
+import student.web.internal.BinaryStorageCodec;
+import student.web.internal.PersistentStorageManager;
+import student.web.internal.XmlStorageCodec;
+import student.web.internal.tests.support.FriendList;
+
+
+public class StorageCodecTest
+{
+    SharedPersistentMap<FriendList> map;
+
+    PersistentStorageManager psm;
+
+
+    @Before
+    public void setupMap()
+    {
+        map = new SharedPersistentMap<FriendList>( FriendList.class );
+        map.clear();
+        psm = PersistentStorageManager.getInstance( "shared" );
+    }
+
+
+    @After
+    public void restoreCodec()
+    {
+        map.setStorageCodec( new XmlStorageCodec() );
+        map.clear();
+    }
+
+
+    private File file( String id, String extension )
+    {
+        return new File( "data/shared/" + psm.sanitizeId( id ) + extension );
+    }
+
+
+    private FriendList list( String... friends )
+    {
+        FriendList list = new FriendList();
+        for ( String friend : friends )
+        {
+            list.friends.add( friend );
+        }
+        return list;
+    }
+
+
+    private FriendList reload( String id )
+    {
+        return new SharedPersistentMap<FriendList>( FriendList.class ).get( id );
+    }
+
+
+    @Test
+    public void binaryTreeRoundTrip()
+    {
+        StringBuilder longText = new StringBuilder();
+        for ( int i = 0; i < 100; i++ )
+        {
+            longText.append( "text \u00e9\u4e2d " );
+        }
+        BinaryStorageCodec codec = new BinaryStorageCodec();
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        HierarchicalStreamWriter writer = codec.createWriter( out );
+        writer.startNode( "root" );
+        writer.addAttribute( "id", "38400000-8cf0-11bd-b23e-10b96e4ef00d" );
+        writer.startNode( "item" );
+        writer.setValue( longText.toString() );
+        writer.endNode();
+        writer.startNode( "item" );
+        writer.addAttribute( "empty", "" );
+        writer.endNode();
+        writer.endNode();
+        writer.close();
+
+        HierarchicalStreamReader reader = codec.createReader(
+            new ByteArrayInputStream( out.toByteArray() ) );
+        assertEquals( "root", reader.getNodeName() );
+        assertEquals( "38400000-8cf0-11bd-b23e-10b96e4ef00d",
+            reader.getAttribute( "id" ) );
+        assertTrue( reader.hasMoreChildren() );
+        reader.moveDown();
+        assertEquals( "item", reader.getNodeName() );
+        assertEquals( longText.toString(), reader.getValue() );
+        reader.moveUp();
+        reader.moveDown();
+        assertEquals( "", reader.getAttribute( "empty" ) );
+        assertEquals( "", reader.getValue() );
+        reader.moveUp();
+        assertFalse( reader.hasMoreChildren() );
+        reader.close();
+    }
+
+
+    @Test
+    public void binaryStoreReadsAndReplacesXml()
+    {
+        map.put( "legacyList", list( "first", "second" ) );
+        assertTrue( file( "legacyList", XmlStorageCodec.EXTENSION ).exists() );
+
+        map.setStorageCodec( new BinaryStorageCodec() );
+        FriendList stored = reload( "legacyList" );
+        assertNotNull( stored );
+        assertEquals( 2, stored.friends.size() );
+        assertEquals( "second", stored.friends.get( 1 ) );
+
+        stored.friends.add( "third" );
+        map.put( "legacyList", stored );
+        assertTrue(
+            file( "legacyList", BinaryStorageCodec.EXTENSION ).exists() );
+        assertFalse( file( "legacyList", XmlStorageCodec.EXTENSION ).exists() );
+        assertEquals( 3, reload( "legacyList" ).friends.size() );
+        assertTrue( map.containsKey( "legacyList" ) );
+        assertEquals( 1, map.keySet().size() );
+    }
+
+
+    @Test
+    public void migrateConvertsEveryObject()
+    {
+        map.put( "listOne", list( "a" ) );
+        map.put( "listTwo", list( "b", "c" ) );
+        long modified =
+            file( "listOne", XmlStorageCodec.EXTENSION ).lastModified();
+
+        assertEquals( 2, psm.migrate( new BinaryStorageCodec() ) );
+        assertFalse( file( "listOne", XmlStorageCodec.EXTENSION ).exists() );
+        assertEquals( modified,
+            file( "listOne", BinaryStorageCodec.EXTENSION ).lastModified() );
+        assertEquals( 2, reload( "listTwo" ).friends.size() );
+        assertEquals( 0, psm.migrate( new BinaryStorageCodec() ) );
+
+        assertEquals( 2, psm.migrate( new XmlStorageCodec() ) );
+        assertTrue( file( "listTwo", XmlStorageCodec.EXTENSION ).exists() );
+        assertEquals( "c", reload( "listTwo" ).friends.get( 1 ) );
+    }
+}